@@ -36,7 +36,8 @@ import java.io.*;
 public interface CodeGenerator {
 
     /**
-     * Processes a protobuf definition and outputs code to the outputBuffer
+     * Processes a protobuf definition and outputs code to the outputBuffer.
+     * This may be called concurrently for different files when the compiler runs with more than one thread.
      * @param protoFile the proto file descriptor
      * @param outputBuffer the output buffer
      * @throws IOException
@@ -28,6 +28,7 @@ import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.ExtensionRegistry;
 
 import java.nio.file.Path;
+import java.util.Map;
 
 /**
  * A factory which creates JavascriptGenerator and provides some generator-type-specific features
@@ -37,9 +38,11 @@ public interface CodeGeneratorFactory<T extends CodeGenerator> {
 
     /**
      * Creates a new code generator given the compiler options
+     * @param descriptorSet the descriptors being compiled
+     * @param extraArgs the generator specific arguments given with -E
      * @return a new code generator
      */
-    public T createGenerator(DescriptorProtos.FileDescriptorSet descriptorSet);
+    public T createGenerator(DescriptorProtos.FileDescriptorSet descriptorSet, Map<String, String> extraArgs);
 
     /**
      * Called to register any extensions used by the code generator
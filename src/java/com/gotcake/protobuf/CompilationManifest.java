@@ -0,0 +1,301 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf;
+
+import com.google.protobuf.DescriptorProtos;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Records the descriptors that each generated file was built from, so that incremental compilation can skip
+ * files whose own descriptor and transitive dependencies have not changed.
+ * @author Aaron Cake
+ */
+public class CompilationManifest {
+
+    /**
+     * The name of the manifest file kept in the output directory
+     */
+    public static final String FILE_NAME = ".protobuf-javascript.manifest";
+
+    private static final String HEADER = "# protobuf-javascript incremental compilation manifest";
+    private static final String GENERATOR_PREFIX = "generator\t";
+    private static final String MISSING_HASH = "-";
+
+    private final String generatorFingerprint;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    public CompilationManifest(final String generatorFingerprint) {
+        this.generatorFingerprint = generatorFingerprint;
+    }
+
+    public String getGeneratorFingerprint() {
+        return generatorFingerprint;
+    }
+
+    public Entry getEntry(final String outputPath) {
+        return entries.get(outputPath);
+    }
+
+    public void putEntry(final String outputPath, final Entry entry) {
+        entries.put(outputPath, entry);
+    }
+
+    /**
+     * Copies the entries of a previous manifest for the output files that this one has no entry for, so that files
+     * compiled by an earlier run but not by this one are still known to be up to date. A manifest written by another
+     * generator is ignored, since its outputs will be regenerated anyway.
+     * @param previous the previous manifest
+     */
+    public void mergeEntries(final CompilationManifest previous) {
+        if (!generatorFingerprint.equals(previous.generatorFingerprint)) {
+            return;
+        }
+        for (final Map.Entry<String, Entry> e: previous.entries.entrySet()) {
+            if (!entries.containsKey(e.getKey())) {
+                entries.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Checks if an output file was generated from the same descriptors, by the same generator, as the current entry
+     * @param generatorFingerprint the fingerprint of the current generator and its arguments
+     * @param outputPath the path of the output file, relative to the output directory
+     * @param current the entry for the current descriptors
+     * @return true if the output does not need to be regenerated
+     */
+    public boolean isUpToDate(final String generatorFingerprint, final String outputPath, final Entry current) {
+        if (!this.generatorFingerprint.equals(generatorFingerprint)) {
+            return false;
+        }
+        final Entry entry = entries.get(outputPath);
+        return entry != null && entry.equals(current);
+    }
+
+    /**
+     * Reads a manifest from a file
+     * @param file the manifest file
+     * @return the manifest, or null if the file does not exist or is not a valid manifest
+     * @throws IOException
+     */
+    public static CompilationManifest read(final Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            final String generatorLine = reader.readLine();
+            if (generatorLine == null || !generatorLine.startsWith(GENERATOR_PREFIX)) {
+                return null;
+            }
+            final CompilationManifest manifest = new CompilationManifest(generatorLine.substring(GENERATOR_PREFIX.length()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 5) {
+                    return null;
+                }
+                final List<String> dependencies = parts[4].isEmpty()
+                        ? Collections.<String>emptyList()
+                        : Arrays.asList(parts[4].split(","));
+                manifest.putEntry(parts[0], new Entry(parts[1], parts[2], parts[3], dependencies));
+            }
+            return manifest;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes this manifest to a file, replacing any existing contents
+     * @param file the manifest file
+     * @throws IOException
+     */
+    public void write(final Path file) throws IOException {
+        final Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(GENERATOR_PREFIX);
+            writer.write(generatorFingerprint);
+            writer.write('\n');
+            for (final Map.Entry<String, Entry> e: entries.entrySet()) {
+                final Entry entry = e.getValue();
+                writer.write(Utils.toString(e.getKey(), '\t', entry.protoName, '\t', entry.hash, '\t', entry.dependencyHash, '\t'));
+                for (int i = 0; i < entry.dependencies.size(); i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(entry.dependencies.get(i));
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates an entry for every file in a descriptor set
+     * @param descriptorSet the descriptor set
+     * @param searchDirs the dirs to resolve imports that are not in the descriptor set in, in search order
+     * @return a map of proto file name to entry
+     * @throws IOException if an import can't be read
+     */
+    public static Map<String, Entry> createEntries(final DescriptorProtos.FileDescriptorSet descriptorSet,
+                                                   final Collection<String> searchDirs) throws IOException {
+        final HashMap<String, DescriptorProtos.FileDescriptorProto> filesByName = new HashMap<>();
+        final HashMap<String, String> fileHashes = new HashMap<>();
+        for (final DescriptorProtos.FileDescriptorProto file: descriptorSet.getFileList()) {
+            filesByName.put(file.getName(), file);
+            fileHashes.put(file.getName(), hash(file.toByteArray()));
+        }
+        final HashMap<String, Entry> entries = new HashMap<>();
+        for (final DescriptorProtos.FileDescriptorProto file: descriptorSet.getFileList()) {
+            entries.put(file.getName(), createEntry(file, filesByName, fileHashes, searchDirs));
+        }
+        return entries;
+    }
+
+    private static Entry createEntry(final DescriptorProtos.FileDescriptorProto proto,
+                                     final Map<String, DescriptorProtos.FileDescriptorProto> filesByName,
+                                     final Map<String, String> fileHashes,
+                                     final Collection<String> searchDirs) throws IOException {
+        final TreeSet<String> dependencies = new TreeSet<>();
+        final ArrayDeque<String> pending = new ArrayDeque<>(proto.getDependencyList());
+        while (!pending.isEmpty()) {
+            final String dependency = pending.pop();
+            if (dependencies.add(dependency)) {
+                final DescriptorProtos.FileDescriptorProto file = filesByName.get(dependency);
+                if (file != null) {
+                    pending.addAll(file.getDependencyList());
+                }
+            }
+        }
+
+        // files imported from the search dirs but not compiled are not in the set, so their source is hashed instead
+        final StringBuilder dependencyHashes = new StringBuilder();
+        for (final String dependency: dependencies) {
+            String hash = fileHashes.get(dependency);
+            if (hash == null) {
+                hash = hashImport(dependency, searchDirs);
+                fileHashes.put(dependency, hash);
+            }
+            dependencyHashes.append(dependency).append('=').append(hash).append('\n');
+        }
+
+        return new Entry(proto.getName(), fileHashes.get(proto.getName()),
+                hash(dependencyHashes.toString().getBytes(StandardCharsets.UTF_8)),
+                new ArrayList<>(dependencies));
+    }
+
+    /**
+     * Hashes the source of an imported file, found in the first search dir that has it as protoc would
+     * @param name the name of the import
+     * @param searchDirs the dirs to search, in order
+     * @return the hash, or a placeholder if no search dir has the file
+     * @throws IOException
+     */
+    private static String hashImport(final String name, final Collection<String> searchDirs) throws IOException {
+        for (final String searchDir: searchDirs) {
+            final Path file = Paths.get(searchDir, name);
+            if (Files.isRegularFile(file)) {
+                return hash(Files.readAllBytes(file));
+            }
+        }
+        return MISSING_HASH;
+    }
+
+    /**
+     * Computes a hex encoded SHA-1 hash
+     * @param bytes the data to hash
+     * @return the hash
+     */
+    public static String hash(final byte[] bytes) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] hash = digest.digest(bytes);
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b: hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The record for a single output file
+     */
+    public static class Entry {
+
+        public final String protoName;
+        public final String hash;
+        public final String dependencyHash;
+        public final List<String> dependencies;
+
+        public Entry(final String protoName, final String hash, final String dependencyHash, final List<String> dependencies) {
+            this.protoName = protoName;
+            this.hash = hash;
+            this.dependencyHash = dependencyHash;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) o;
+            return protoName.equals(other.protoName) &&
+                    hash.equals(other.hash) &&
+                    dependencyHash.equals(other.dependencyHash) &&
+                    dependencies.equals(other.dependencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash.hashCode();
+        }
+
+    }
+
+}
@@ -28,11 +28,19 @@ import com.beust.jcommander.*;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.ExtensionRegistry;
 import com.gotcake.protobuf.builder.SectionBuffer;
+import com.gotcake.protobuf.parser.ProtoFileSetParser;
+import com.gotcake.protobuf.parser.ProtoParseException;
 
 import java.io.*;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 
 /**
@@ -43,7 +51,9 @@ public class Compiler {
 
     private CompilerOptions options;
     private ExtensionRegistry extensionRegistry;
-    private CodeGeneratorFactory factory;
+    private CodeGeneratorFactory<?> factory;
+    private CompilationManifest lastManifest;
+    private String generatorCodeHash;
 
     public void setOptions(final CompilerOptions options) {
         this.options = options;
@@ -87,7 +97,11 @@ public class Compiler {
         } else if (options.isModeReadProtoFiles()) {
             final List<String> inputFiles = options.getInputProtoFiles();
             final List<String> searchDirs = options.getProtoImportSearhDirs();
-            compileProtosToJavascript(inputFiles, searchDirs);
+            if (options.isWatch()) {
+                watchProtosToJavascript(inputFiles, searchDirs);
+            } else {
+                compileProtosToJavascript(inputFiles, searchDirs);
+            }
         }
 
     }
@@ -165,6 +179,18 @@ public class Compiler {
     }
 
     private void compileProtosToJavascript(final List<String> inputFiles, final List<String> searchDirs) throws IOException {
+        if (options.isFrontEndJava()) {
+            DescriptorProtos.FileDescriptorSet descriptorSet = null;
+            try {
+                descriptorSet = parseProtosToDescriptor(inputFiles, searchDirs);
+            } catch (ProtoParseException e) {
+                System.err.println("WARNING: In-process parser failed, falling back to protoc: " + e.getMessage());
+            }
+            if (descriptorSet != null) {
+                compileDescriptorSet(descriptorSet);
+                return;
+            }
+        }
         final File tempFile = File.createTempFile("protoc_output", "desc");
         compileProtoToDescriptor(inputFiles, searchDirs, tempFile.getPath());
         final FileInputStream inputStream = new FileInputStream(tempFile);
@@ -173,6 +199,78 @@ public class Compiler {
         tempFile.delete();
     }
 
+    /**
+     * Compiles the proto files, then recompiles them each time a proto file in the search dirs or the input dirs
+     * changes. The generator, extension registry and the manifest of the last compilation are kept between cycles,
+     * so each cycle only parses the protos and regenerates the outputs they affect. Returns when the thread is
+     * interrupted.
+     * @param inputFiles the proto files to compile, which may contain wildcards
+     * @param searchDirs the dirs to search for imports, which may contain wildcards
+     * @throws IOException if the dirs can't be watched
+     */
+    private void watchProtosToJavascript(final List<String> inputFiles, final List<String> searchDirs) throws IOException {
+        final TreeSet<String> watchDirs = new TreeSet<>();
+        for (final String searchDir: searchDirs) {
+            Utils.expandWildcardPath(searchDir, watchDirs);
+        }
+        final HashSet<String> protoFileSet = new HashSet<>();
+        for (final String inputFile: inputFiles) {
+            Utils.expandWildcardPath(inputFile, protoFileSet);
+        }
+        for (final String protoFile: protoFileSet) {
+            watchDirs.add(new File(protoFile).getParent());
+        }
+
+        final ProtoFileWatcher watcher = new ProtoFileWatcher(watchDirs, options.getWatchDebounce());
+        try {
+            compileWatchCycle(inputFiles, searchDirs);
+            while (true) {
+                System.out.println("Watching " + watcher.getWatchedDirCount() + " dirs for changes...");
+                final Set<Path> changed;
+                try {
+                    changed = watcher.awaitChanges();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("Detected changes to " + changed.size() + " files");
+                compileWatchCycle(inputFiles, searchDirs);
+            }
+        } finally {
+            watcher.close();
+        }
+    }
+
+    private void compileWatchCycle(final List<String> inputFiles, final List<String> searchDirs) {
+        final long start = System.nanoTime();
+        try {
+            compileProtosToJavascript(inputFiles, searchDirs);
+        } catch (IOException | RuntimeException e) {
+            // keep watching, so that the next save can fix the error
+            System.err.println("ERROR: Compilation failed: " + e.getMessage());
+        }
+        System.out.println("Finished in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Parses proto files in-process, without starting protoc
+     * @param protoFiles the proto files to parse, which may contain wildcards
+     * @param searchDirs the dirs to search for imports, which may contain wildcards
+     * @return the descriptor set
+     * @throws IOException
+     */
+    private DescriptorProtos.FileDescriptorSet parseProtosToDescriptor(final List<String> protoFiles, final List<String> searchDirs) throws IOException {
+        final HashSet<String> protoFileSet = new HashSet<>();
+        final HashSet<String> searchDirSet = new HashSet<>();
+        for (final String protoFile: protoFiles) {
+            Utils.expandWildcardPath(protoFile, protoFileSet);
+        }
+        for (final String searchDir: searchDirs) {
+            Utils.expandWildcardPath(searchDir, searchDirSet);
+        }
+        final ProtoFileSetParser parser = new ProtoFileSetParser(searchDirSet, extensionRegistry);
+        return parser.parse(protoFileSet);
+    }
+
     private void compileProtoStreamToJavascript(final InputStream in) throws IOException{
         final File tempFile = File.createTempFile("temp", "proto");
         final FileOutputStream tempFileOutputStream = new FileOutputStream(tempFile);
@@ -186,25 +284,52 @@ public class Compiler {
     private void compileDescriptor(final InputStream input) throws IOException {
 
         final DescriptorProtos.FileDescriptorSet descriptorSet = DescriptorProtos.FileDescriptorSet.parseFrom(input, extensionRegistry);
+        compileDescriptorSet(descriptorSet);
 
-        final CodeGenerator generator = factory.createGenerator(descriptorSet);
+    }
+
+    private void compileDescriptorSet(final DescriptorProtos.FileDescriptorSet descriptorSet) throws IOException {
+
+        final CodeGenerator generator = factory.createGenerator(descriptorSet, options.getExtraArgs());
 
         if (options.isModeOutputDir()) {
 
             final Path outputDir = options.getOutputDir();
 
-            System.out.println("Compiling " + descriptorSet.getFileCount() + " proto files to " + outputDir);
+            final List<DescriptorProtos.FileDescriptorProto> protos;
+            CompilationManifest manifest = null;
 
-            for (final DescriptorProtos.FileDescriptorProto proto: descriptorSet.getFileList()) {
-                final SectionBuffer buffer = new SectionBuffer();
-                generator.processProtoFile(proto, buffer);
-                final File outputFile = factory.getOutputFile(proto, outputDir).toFile();
-                System.out.println(proto.getName() + " -> " + outputFile.toString());
-                outputFile.getParentFile().mkdirs();
-                final FileWriter writer = new FileWriter(outputFile);
-                buffer.writeTo(writer);
-                writer.flush();
-                writer.close();
+            if (options.isIncremental() || options.isWatch()) {
+                manifest = new CompilationManifest(getGeneratorFingerprint());
+                protos = filterChangedFiles(descriptorSet, outputDir, manifest);
+                System.out.println("Compiling " + protos.size() + " of " + descriptorSet.getFileCount() +
+                        " proto files to " + outputDir + " (" + (descriptorSet.getFileCount() - protos.size()) + " up to date)");
+            } else {
+                protos = descriptorSet.getFileList();
+                System.out.println("Compiling " + descriptorSet.getFileCount() + " proto files to " + outputDir);
+            }
+
+            final int threadCount = Math.min(options.getThreadCount(), protos.size());
+
+            if (threadCount > 1) {
+                compileFilesParallel(generator, protos, outputDir, threadCount);
+            } else {
+                for (final DescriptorProtos.FileDescriptorProto proto: protos) {
+                    final SectionBuffer buffer = new SectionBuffer();
+                    generator.processProtoFile(proto, buffer);
+                    final Writer writer = openOutputFile(proto, outputDir);
+                    buffer.writeTo(writer);
+                    writer.flush();
+                    writer.close();
+                }
+            }
+
+            // only record the new state once every changed file has been written
+            if (manifest != null) {
+                if (options.isIncremental()) {
+                    manifest.write(outputDir.resolve(CompilationManifest.FILE_NAME));
+                }
+                lastManifest = manifest;
             }
 
         } else {
@@ -213,7 +338,7 @@ public class Compiler {
             for (final DescriptorProtos.FileDescriptorProto proto : descriptorSet.getFileList()) {
                 generator.processProtoFile(proto, buffer);
             }
-            final OutputStreamWriter writer = new OutputStreamWriter(outputStream);
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream));
             buffer.writeTo(writer);
             writer.flush();
             writer.close();
@@ -221,6 +346,187 @@ public class Compiler {
 
     }
 
+    /**
+     * Finds the files which must be regenerated because their descriptor, one of their transitive dependencies or
+     * the generator configuration has changed since the last compilation, or because their output file is missing.
+     * In watch mode, the last compilation is remembered in memory rather than read back from the output dir.
+     * @param descriptorSet the descriptor set being compiled
+     * @param outputDir the output directory, which holds the manifest
+     * @param manifest the new manifest, which receives an entry for every file in the set
+     * @return the files to generate, in descriptor order
+     * @throws IOException
+     */
+    private List<DescriptorProtos.FileDescriptorProto> filterChangedFiles(final DescriptorProtos.FileDescriptorSet descriptorSet,
+                                                                          final Path outputDir,
+                                                                          final CompilationManifest manifest) throws IOException {
+        final CompilationManifest previous;
+        if (lastManifest != null) {
+            previous = lastManifest;
+        } else if (options.isIncremental()) {
+            previous = CompilationManifest.read(outputDir.resolve(CompilationManifest.FILE_NAME));
+        } else {
+            previous = null;
+        }
+        final LinkedHashSet<String> searchDirs = new LinkedHashSet<>();
+        for (final String searchDir: options.getProtoImportSearhDirs()) {
+            Utils.expandWildcardPath(searchDir, searchDirs);
+        }
+        final Map<String, CompilationManifest.Entry> entries = CompilationManifest.createEntries(descriptorSet, searchDirs);
+        final ArrayList<DescriptorProtos.FileDescriptorProto> changed = new ArrayList<>();
+        for (final DescriptorProtos.FileDescriptorProto proto: descriptorSet.getFileList()) {
+            final Path outputFile = factory.getOutputFile(proto, outputDir);
+            final String outputPath = outputDir.relativize(outputFile).toString();
+            final CompilationManifest.Entry entry = entries.get(proto.getName());
+            manifest.putEntry(outputPath, entry);
+            if (previous == null || !previous.isUpToDate(manifest.getGeneratorFingerprint(), outputPath, entry) ||
+                    !outputFile.toFile().isFile()) {
+                changed.add(proto);
+            }
+        }
+        // files compiled by earlier runs but not this one keep their entries, so they are still up to date next time
+        if (previous != null) {
+            manifest.mergeEntries(previous);
+        }
+        return changed;
+    }
+
+    /**
+     * Identifies the generator, its code and its arguments, so that changing any of them invalidates all incremental
+     * output
+     * @return the fingerprint
+     * @throws IOException if the generator's code can't be read
+     */
+    private String getGeneratorFingerprint() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(factory.getClass().getName()).append('\n');
+        sb.append(Compiler.class.getPackage().getImplementationVersion()).append('\n');
+        if (generatorCodeHash == null) {
+            generatorCodeHash = hashGeneratorCode();
+        }
+        sb.append(generatorCodeHash).append('\n');
+        for (final Map.Entry<String, String> arg: new TreeMap<>(options.getExtraArgs()).entrySet()) {
+            sb.append(arg.getKey()).append('=').append(arg.getValue()).append('\n');
+        }
+        return CompilationManifest.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hashes the jars or class directories the generator and the compiler were loaded from, since the version alone
+     * doesn't change when the generator is rebuilt
+     * @return the hash
+     * @throws IOException
+     */
+    private String hashGeneratorCode() throws IOException {
+        final Set<Path> locations = new TreeSet<>();
+        for (final Class<?> type: Arrays.asList(factory.getClass(), Compiler.class)) {
+            final CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) {
+                continue;
+            }
+            try {
+                locations.add(Paths.get(codeSource.getLocation().toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Unable to locate the code of " + type.getName(), e);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Path location: locations) {
+            if (Files.isDirectory(location)) {
+                // sorted so that the hash doesn't depend on the order the file system lists the classes in
+                final Map<String, String> classHashes = new TreeMap<>();
+                Files.walkFileTree(location, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                        if (file.getFileName().toString().endsWith(".class")) {
+                            classHashes.put(location.relativize(file).toString(),
+                                    CompilationManifest.hash(Files.readAllBytes(file)));
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                for (final Map.Entry<String, String> classHash: classHashes.entrySet()) {
+                    sb.append(classHash.getKey()).append('=').append(classHash.getValue()).append('\n');
+                }
+            } else if (Files.isRegularFile(location)) {
+                sb.append(CompilationManifest.hash(Files.readAllBytes(location))).append('\n');
+            }
+        }
+        return CompilationManifest.hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Generates each file on a fork-join pool, then writes the results in descriptor order so that the output
+     * (including the console log) is identical to a sequential run.
+     * @param generator the code generator, which must be safe to call concurrently
+     * @param protos the files to generate
+     * @param outputDir the output directory
+     * @param threadCount the parallelism of the pool
+     * @throws IOException
+     */
+    private void compileFilesParallel(final CodeGenerator generator,
+                                      final List<DescriptorProtos.FileDescriptorProto> protos,
+                                      final Path outputDir,
+                                      final int threadCount) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            final List<ForkJoinTask<String>> tasks = new ArrayList<>(protos.size());
+            for (final DescriptorProtos.FileDescriptorProto proto: protos) {
+                tasks.add(pool.submit(new GenerateFileTask(generator, proto)));
+            }
+            for (int i = 0; i < protos.size(); i++) {
+                final String content;
+                try {
+                    content = tasks.get(i).join();
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                final Writer writer = openOutputFile(protos.get(i), outputDir);
+                writer.write(content);
+                writer.flush();
+                writer.close();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Writer openOutputFile(final DescriptorProtos.FileDescriptorProto proto, final Path outputDir) throws IOException {
+        final File outputFile = factory.getOutputFile(proto, outputDir).toFile();
+        System.out.println(proto.getName() + " -> " + outputFile.toString());
+        outputFile.getParentFile().mkdirs();
+        // generated code is streamed to the file in many small pieces
+        return new BufferedWriter(new FileWriter(outputFile));
+    }
+
+    /**
+     * A task which generates the code for a single file into memory
+     */
+    private static class GenerateFileTask extends RecursiveTask<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CodeGenerator generator;
+        private final DescriptorProtos.FileDescriptorProto proto;
+
+        public GenerateFileTask(final CodeGenerator generator, final DescriptorProtos.FileDescriptorProto proto) {
+            this.generator = generator;
+            this.proto = proto;
+        }
+
+        @Override
+        protected String compute() {
+            try {
+                final SectionBuffer buffer = new SectionBuffer();
+                generator.processProtoFile(proto, buffer);
+                final StringBuilder sb = new StringBuilder();
+                buffer.writeTo(sb);
+                return sb.toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
     private static void pipeStream(final InputStream in, final OutputStream out) throws IOException {
         final byte[] buffer = new byte[1024];
         int n;
@@ -17,6 +17,9 @@ import java.util.logging.Level;
  */
 public class CompilerOptions {
 
+    public static final String FRONT_END_PROTOC = "protoc";
+    public static final String FRONT_END_JAVA = "java";
+
     @Parameter(names = { "-i", "--input" }, variableArity = true, description = "Specify one or more input proto files.")
     private List<String> inputFiles = new ArrayList<>();
 
@@ -32,6 +35,21 @@ public class CompilerOptions {
     @Parameter(names = { "-d", "--outputDir" }, description = "Specify to write individual files for each descriptor.")
     private String outputDir = null;
 
+    @Parameter(names = { "-j", "--threads" }, description = "Specify the number of threads used to generate files in output dir mode. Defaults to 1.")
+    private int threads = 1;
+
+    @Parameter(names = { "--incremental" }, description = "Specify to only regenerate files in the output dir whose descriptors or dependencies have changed.")
+    private boolean incremental = false;
+
+    @Parameter(names = { "--frontEnd" }, description = "Specify how proto files are parsed: protoc (default), or java to use the in-process parser, falling back to protoc for files it can't handle.")
+    private String frontEnd = FRONT_END_PROTOC;
+
+    @Parameter(names = { "--watch" }, description = "Specify to keep running, recompiling the changed files in the output dir whenever the input or search dirs change.")
+    private boolean watch = false;
+
+    @Parameter(names = { "--watchDebounce" }, description = "Specify how many milliseconds the proto files must be left unchanged before recompiling in watch mode. Defaults to 50.")
+    private int watchDebounce = 50;
+
     @Parameter(names = { "--stdinDescriptor" }, description = "Specify to read descriptors from stdin.")
     private boolean stdinDescriptor = false;
 
@@ -101,7 +119,31 @@ public class CompilerOptions {
         if (outputCounts > 1)
             return "Please specify only one output target.";
 
+        if (threads < 1)
+            return "The number of threads must be at least 1.";
+
+        if (incremental && outputDir == null)
+            return "Incremental compilation can only be used with the --outputDir option";
+
+        if (watch) {
+            if (inputFiles.isEmpty())
+                return "Watch mode can only be used with proto files as input";
+            if (outputDir == null)
+                return "Watch mode can only be used with the --outputDir option";
+            if (watchDebounce < 0)
+                return "The watch debounce period can't be negative.";
+        }
+
+        if (!FRONT_END_PROTOC.equals(frontEnd) && !FRONT_END_JAVA.equals(frontEnd))
+            return "Unrecognized front end: " + frontEnd;
+
         if (outputLang != null) {
+            if (FRONT_END_JAVA.equals(frontEnd))
+                return "Native java/python compilation requires the protoc front end";
+            if (incremental)
+                return "Native java/python compilation cannot be used with the --incremental option";
+            if (watch)
+                return "Native java/python compilation cannot be used with the --watch option";
             if (outputFile != null)
                 return "Native java/python compilation cannot be used with the --outputFile option";
             if (stdout)
@@ -131,6 +173,26 @@ public class CompilerOptions {
         this.outputDir = outputDir;
     }
 
+    public void setThreadCount(final int threads) {
+        this.threads = threads;
+    }
+
+    public void setIncremental(final boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public void setWatch(final boolean watch) {
+        this.watch = watch;
+    }
+
+    public void setWatchDebounce(final int watchDebounceMillis) {
+        this.watchDebounce = watchDebounceMillis;
+    }
+
+    public void setFrontEnd(final String frontEnd) {
+        this.frontEnd = frontEnd;
+    }
+
     public void setCustomInputProtoStream(final InputStream is) {
         this.customInputStreamIsDescriptor = false;
         this.customInputStream = is;
@@ -246,6 +308,30 @@ public class CompilerOptions {
         return Paths.get(outputDir);
     }
 
+    public int getThreadCount() {
+        return threads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public int getWatchDebounce() {
+        return watchDebounce;
+    }
+
+    public String getFrontEnd() {
+        return frontEnd;
+    }
+
+    public boolean isFrontEndJava() {
+        return FRONT_END_JAVA.equals(frontEnd);
+    }
+
     public String getOutputLanguage() {
         return outputLang;
     }
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directory trees for changes to proto files, grouping each burst of changes (such as an editor saving
+ * several files, or a version control checkout) into a single notification.
+ * @author Aaron Cake
+ */
+public class ProtoFileWatcher implements Closeable {
+
+    private final WatchService watchService;
+    private final HashMap<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final long debounceMillis;
+
+    /**
+     * Creates a new watcher
+     * @param dirs the root directories to watch, including all of their sub-directories
+     * @param debounceMillis how long the files must be left unchanged before a burst of changes is reported
+     * @throws IOException
+     */
+    public ProtoFileWatcher(final Collection<String> dirs, final long debounceMillis) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.debounceMillis = debounceMillis;
+        for (final String dir: dirs) {
+            registerTree(Paths.get(dir));
+        }
+    }
+
+    public int getWatchedDirCount() {
+        return watchedDirs.size();
+    }
+
+    /**
+     * Blocks until at least one proto file has been created, modified or deleted, and then until no further changes
+     * have been seen for the debounce period
+     * @return the changed proto files, or the affected directories if some events were lost
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IOException
+     */
+    public Set<Path> awaitChanges() throws InterruptedException, IOException {
+        final TreeSet<Path> changed = new TreeSet<>();
+        while (true) {
+            final WatchKey key = changed.isEmpty()
+                    ? watchService.take()
+                    : watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+            if (key == null) {
+                return changed;
+            }
+            processEvents(key, changed);
+        }
+    }
+
+    private void processEvents(final WatchKey key, final Set<Path> changed) throws IOException {
+        final Path dir = watchedDirs.get(key);
+        for (final WatchEvent<?> event: key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were dropped, so we can't tell which files changed
+                if (dir != null) {
+                    changed.add(dir);
+                }
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            final Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // a new directory may already contain proto files by the time it is registered
+                registerTree(path);
+                changed.add(path);
+            } else if (path.getFileName().toString().endsWith(".proto")) {
+                changed.add(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+    }
+
+    private void registerTree(final Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                final WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+}
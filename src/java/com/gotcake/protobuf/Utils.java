@@ -46,6 +46,26 @@ public class Utils {
         return (fieldNumber << 3) | wireType;
     }
 
+    /**
+     * Encodes a value as an unsigned varint, such as the tag of a field
+     * @param value the value to encode
+     * @return the bytes of the varint, least significant group first
+     */
+    public static int[] getVarint32Bytes(final int value) {
+        int size = 1;
+        while (size < 5 && (value >>> (7 * size)) != 0) {
+            size++;
+        }
+        final int[] bytes = new int[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (value >>> (7 * i)) & 0x7F;
+            if (i < size - 1) {
+                bytes[i] |= 0x80;
+            }
+        }
+        return bytes;
+    }
+
     public static int getWireType(final DescriptorProtos.FieldDescriptorProto field) {
         final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
         switch (type) {
@@ -54,12 +74,17 @@ public class Utils {
             case TYPE_INT32:
             case TYPE_UINT32:
             case TYPE_SINT32:
+            case TYPE_INT64:
+            case TYPE_UINT64:
+            case TYPE_SINT64:
                 return WireFormat.WIRETYPE_VARINT;
             case TYPE_BYTES:
             case TYPE_STRING:
             case TYPE_MESSAGE:
                 return WireFormat.WIRETYPE_LENGTH_DELIMITED;
             case TYPE_DOUBLE:
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
                 return WireFormat.WIRETYPE_FIXED64;
             case TYPE_FLOAT:
             case TYPE_FIXED32:
@@ -71,6 +96,28 @@ public class Utils {
         }
     }
 
+    /**
+     * Gets the encoded size of a single value of a field, if it does not depend on the value
+     * @param field the field
+     * @return the size in bytes, or -1 if the size varies with the value
+     */
+    public static int getFixedSize(final DescriptorProtos.FieldDescriptorProto field) {
+        switch (field.getType()) {
+            case TYPE_BOOL:
+                return 1;
+            case TYPE_FLOAT:
+            case TYPE_FIXED32:
+            case TYPE_SFIXED32:
+                return 4;
+            case TYPE_DOUBLE:
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
     public static String getTypeName(final DescriptorProtos.FieldDescriptorProto.Type type) {
         switch (type) {
             case TYPE_BOOL:
@@ -98,7 +145,7 @@ public class Utils {
             case TYPE_SFIXED32:
                 return "sfixed32";
             case TYPE_FIXED64:
-                return "sfixed64";
+                return "fixed64";
             case TYPE_SFIXED64:
                 return "sfixed64";
             case TYPE_INT64:
@@ -168,20 +215,26 @@ public class Utils {
         }
     }
 
-    private static final StringBuilder STRING_BUILDER_INSTANCE = new StringBuilder();
+    private static final ThreadLocal<StringBuilder> STRING_BUILDER_INSTANCE = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
 
     /**
      * Concatenates a list of strings or objects to a single string.
-     * WARNING: NOT THREAD SAFE
+     * Each thread re-uses its own builder, so this is safe to call from concurrent code generation.
      * @param strings
      * @return the concatenated string
      */
     public static String toString(final Object... strings) {
-        STRING_BUILDER_INSTANCE.setLength(0);
+        final StringBuilder sb = STRING_BUILDER_INSTANCE.get();
+        sb.setLength(0);
         for (final Object o: strings) {
-            STRING_BUILDER_INSTANCE.append(String.valueOf(o));
+            sb.append(String.valueOf(o));
         }
-        return STRING_BUILDER_INSTANCE.toString();
+        return sb.toString();
     }
 
 
@@ -46,7 +46,9 @@ public class DocBuilder implements LineWritable {
     private String type = null;
     private String returnType = null;
     private String extendsType = null;
+    private String thisType = null;
     private boolean constructor = false;
+    private boolean struct = false;
 
     public DocBuilder setPublic() {
         this.accessModifier = ACCESS_PUBLIC;
@@ -88,11 +90,21 @@ public class DocBuilder implements LineWritable {
         return this;
     }
 
+    public DocBuilder setThisType(final String thisType) {
+        this.thisType = thisType;
+        return this;
+    }
+
     public DocBuilder setConstructor(final boolean constructor) {
         this.constructor = constructor;
         return this;
     }
 
+    public DocBuilder setStruct(final boolean struct) {
+        this.struct = struct;
+        return this;
+    }
+
     public DocBuilder addParameter(final String name, final String type, final Object... paramDesc) {
         parameterList.add(new Parameter(name, type, Utils.toString(paramDesc)));
         return this;
@@ -105,6 +117,10 @@ public class DocBuilder implements LineWritable {
 
     @Override
     public void writeTo(final IndentedLineBuffer buffer) throws IOException {
+        if (buffer.isCompact()) {
+            writeCompactTo(buffer);
+            return;
+        }
         buffer.line("/**");
         if (description != null)
             buffer.line(" * ", description);
@@ -125,8 +141,12 @@ public class DocBuilder implements LineWritable {
             buffer.line(" * @enum {", enumType, "}");
         if (returnType != null)
             buffer.line(" * @return {", returnType, "}");
+        if (thisType != null)
+            buffer.line(" * @this {", thisType, "}");
         if (constructor)
             buffer.line(" * @constructor");
+        if (struct)
+            buffer.line(" * @struct");
         if (accessModifier == ACCESS_PRIVATE)
             buffer.line(" * @private");
         else if (accessModifier == ACCESS_PROTECTED)
@@ -137,6 +157,35 @@ public class DocBuilder implements LineWritable {
     }
 
 
+    /**
+     * Writes only the annotations, on a single line, leaving out the descriptions
+     */
+    private void writeCompactTo(final IndentedLineBuffer buffer) throws IOException {
+        buffer.write("/**");
+        for (Parameter p: parameterList) {
+            buffer.write(" @param {", p.type != null ? p.type : "*", "} ", p.name);
+        }
+        if (type != null)
+            buffer.write(" @type {", type, "}");
+        if (enumType != null)
+            buffer.write(" @enum {", enumType, "}");
+        if (returnType != null)
+            buffer.write(" @return {", returnType, "}");
+        if (thisType != null)
+            buffer.write(" @this {", thisType, "}");
+        if (constructor)
+            buffer.write(" @constructor");
+        if (struct)
+            buffer.write(" @struct");
+        if (accessModifier == ACCESS_PRIVATE)
+            buffer.write(" @private");
+        else if (accessModifier == ACCESS_PROTECTED)
+            buffer.write(" @protected");
+        if (extendsType != null)
+            buffer.write(" @extends {", extendsType, "}");
+        buffer.line(" */");
+    }
+
     private static class Parameter {
 
         public final String name;
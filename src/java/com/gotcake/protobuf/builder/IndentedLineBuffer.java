@@ -27,86 +27,223 @@ package com.gotcake.protobuf.builder;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A class that provides the ability to create nested, indented sections of code easily.
+ * All text is kept in a single builder, with the end offset of each finished line.
+ * A buffer created with a sink streams its text to the sink in large chunks rather than keeping its lines, and
+ * must be flushed once everything has been written.
+ * A compact buffer drops indentation, leading whitespace and blank lines from everything written to it, including
+ * the lines of the buffers written into it.
  * @author Aaron Cake
  */
 public class IndentedLineBuffer implements LineWritable {
 
-    private final StringBuilder indentString;
-    private ArrayList<String> lines;
-    private StringBuilder currentLine;
+    private static final int[] EMPTY_LINE_ENDS = new int[0];
+    private static final int SINK_FLUSH_SIZE = 8192;
+    private static final int WRITE_CHUNK_SIZE = 4096;
+
+    /**
+     * Indent strings shared by all buffers, indexed by width
+     */
+    private static final String[] INDENTS = new String[65];
+
+    private final Appendable sink;
     private final int indentSize;
+    private int indent;
+    private final StringBuilder text;
+    private int[] lineEnds;
+    private int lineCount;
+    private int currentLineLength;
+    private boolean compact;
 
     public IndentedLineBuffer(final int indentSize) {
-        indentString = new StringBuilder();
-        currentLine = new StringBuilder();
-        lines = new ArrayList<>();
-        this.indentSize = Math.max(0, indentSize);
+        this(indentSize, null);
     }
 
     public IndentedLineBuffer() {
         this(4);
     }
 
+    /**
+     * Creates a streaming buffer
+     * @param sink the destination of every line written to this buffer
+     */
+    public IndentedLineBuffer(final Appendable sink) {
+        this(4, sink);
+    }
+
+    public IndentedLineBuffer(final int indentSize, final Appendable sink) {
+        this.sink = sink;
+        this.indentSize = Math.max(0, indentSize);
+        this.text = new StringBuilder(sink == null ? 64 : SINK_FLUSH_SIZE + 256);
+        this.lineEnds = EMPTY_LINE_ENDS;
+    }
+
     public IndentedLineBuffer in() {
-        for (int i = 0; i < indentSize; i++) {
-            indentString.append(' ');
-        }
+        indent += indentSize;
         return this;
     }
 
     public IndentedLineBuffer out() {
-        final int newSize = Math.max(0, indentString.length() - indentSize);
-        indentString.setLength(newSize);
+        indent = Math.max(0, indent - indentSize);
         return this;
     }
 
     public IndentedLineBuffer resetIndent() {
-        indentString.setLength(0);
+        indent = 0;
         return this;
     }
 
+    public IndentedLineBuffer setCompact(final boolean compact) {
+        this.compact = compact;
+        return this;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
     public IndentedLineBuffer write(final Object... values) throws IOException {
-        if (values.length > 0 && currentLine.length() == 0 && indentString.length() > 0) {
-            currentLine.append(indentString);
+        if (values.length > 0) {
+            startText();
         }
         for (final Object value: values) {
-            currentLine.append(String.valueOf(value));
+            if (compact && currentLineLength == 0) {
+                final String string = String.valueOf(value);
+                writeText(string, 0, string.length());
+                continue;
+            }
+            final int start = text.length();
+            // append the common boxed types directly, without converting them to strings first
+            if (value instanceof Integer) {
+                text.append(((Integer) value).intValue());
+            } else if (value instanceof Character) {
+                text.append(((Character) value).charValue());
+            } else {
+                text.append(value);
+            }
+            currentLineLength += text.length() - start;
         }
         return this;
     }
 
     public IndentedLineBuffer line(final Object... values) throws IOException {
         write(values);
-        lines.add(currentLine.toString());
-        currentLine.setLength(0);
+        endLine();
         return this;
     }
 
+    /**
+     * Writes part of the text of another buffer, indenting it if it starts a new line
+     */
+    private void writeText(final CharSequence source, final int start, final int end) {
+        startText();
+        int from = start;
+        if (compact && currentLineLength == 0) {
+            while (from < end && Character.isWhitespace(source.charAt(from))) {
+                from++;
+            }
+        }
+        text.append(source, from, end);
+        currentLineLength += end - from;
+    }
+
+    private void startText() {
+        if (currentLineLength == 0 && indent > 0 && !compact) {
+            text.append(getIndent(indent));
+            currentLineLength += indent;
+        }
+    }
+
+    private static String getIndent(final int width) {
+        if (width >= INDENTS.length) {
+            final char[] spaces = new char[width];
+            Arrays.fill(spaces, ' ');
+            return new String(spaces);
+        }
+        // racing threads may each create an indent, but they will be equal
+        String indent = INDENTS[width];
+        if (indent == null) {
+            final char[] spaces = new char[width];
+            Arrays.fill(spaces, ' ');
+            indent = new String(spaces);
+            INDENTS[width] = indent;
+        }
+        return indent;
+    }
+
+    private void endLine() throws IOException {
+        if (compact && currentLineLength == 0) {
+            return;
+        }
+        if (sink == null) {
+            if (lineCount == lineEnds.length) {
+                lineEnds = Arrays.copyOf(lineEnds, Math.max(4, lineCount * 2));
+            }
+            lineEnds[lineCount] = text.length();
+        }
+        text.append('\n');
+        lineCount++;
+        currentLineLength = 0;
+        if (sink != null && text.length() >= SINK_FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes any text held by a streaming buffer to its sink
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (sink != null && text.length() > 0) {
+            writeText(sink);
+            text.setLength(0);
+        }
+    }
+
+    private void writeText(final Appendable out) throws IOException {
+        if (out instanceof Writer) {
+            // hand the writer contiguous ranges rather than copying the whole text to a string
+            final Writer writer = (Writer) out;
+            final char[] chunk = new char[Math.min(text.length(), WRITE_CHUNK_SIZE)];
+            for (int start = 0; start < text.length(); start += chunk.length) {
+                final int end = Math.min(text.length(), start + chunk.length);
+                text.getChars(start, end, chunk, 0);
+                writer.write(chunk, 0, end - start);
+            }
+        } else {
+            out.append(text);
+        }
+    }
+
     @Override
     public boolean isEmpty() {
-        return lines.isEmpty() && currentLine.length() == 0;
+        return lineCount == 0 && currentLineLength == 0;
     }
 
     public void writeTo(final IndentedLineBuffer buffer) throws IOException {
-        for (final String line: lines) {
-            buffer.line(line);
+        checkNotStreaming();
+        int start = 0;
+        for (int i = 0; i < lineCount; i++) {
+            buffer.writeText(text, start, lineEnds[i]);
+            buffer.endLine();
+            start = lineEnds[i] + 1;
         }
-        if (currentLine.length() > 0) {
-            buffer.write(currentLine.toString());
+        if (currentLineLength > 0) {
+            buffer.writeText(text, start, text.length());
         }
     }
 
     public void writeTo(final Writer writer) throws IOException {
-        for (final String line: lines) {
-            writer.write(line);
-            writer.write('\n');
-        }
-        if (currentLine.length() > 0) {
-            writer.write(currentLine.toString());
+        checkNotStreaming();
+        writeText(writer);
+    }
+
+    private void checkNotStreaming() {
+        if (sink != null) {
+            throw new IllegalStateException("The contents of a streaming buffer have already been written to its sink");
         }
     }
 
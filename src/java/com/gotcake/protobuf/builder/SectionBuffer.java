@@ -25,9 +25,8 @@
 package com.gotcake.protobuf.builder;
 
 import java.io.IOException;
-import java.io.Writer;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 /**
  * A class which allows the generation of sections of code to be out of order and acts as a code builder
@@ -35,8 +34,26 @@ import java.util.TreeMap;
  */
 public class SectionBuffer implements LineWritable {
 
-    private final TreeMap<Integer, ArrayList<LineWritable>> contents;
+    private static final int DEFAULT_SLOT_COUNT = 8;
+
+    /**
+     * The number of constants in each section enum, so that a buffer can be sized without cloning the enum's values
+     */
+    private static final ClassValue<Integer> SECTION_COUNTS = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(final Class<?> type) {
+            return type.getEnumConstants().length;
+        }
+    };
+
+    /**
+     * Indexed by section ordinal. Each slot holds null, a single LineWritable, or an ArrayList of them, since most
+     * sections only ever receive one item. Allocated on the first write.
+     */
+    private Object[] slots;
+    private int usedSlotCount;
     private final boolean indented;
+    private boolean compact;
 
     public SectionBuffer() {
         this(false);
@@ -44,22 +61,47 @@ public class SectionBuffer implements LineWritable {
 
     public SectionBuffer(final boolean indented) {
         this.indented = indented;
-        this.contents = new TreeMap<>();
     }
 
+    /**
+     * Appends content to a section
+     * @param section the section, which must not be negative
+     * @param content the content, which is ignored if null
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
     public SectionBuffer section(final int section, final LineWritable content) {
         if (content != null) {
-            ArrayList<LineWritable> lineWritables = contents.get(section);
-            if (lineWritables == null) {
-                lineWritables = new ArrayList<>();
-                contents.put(section, lineWritables);
+            ensureSlot(section, DEFAULT_SLOT_COUNT);
+            final Object slot = slots[section];
+            if (slot == null) {
+                slots[section] = content;
+                usedSlotCount++;
+            } else if (slot instanceof LineWritable) {
+                final ArrayList<LineWritable> lineWritables = new ArrayList<>(4);
+                lineWritables.add((LineWritable) slot);
+                lineWritables.add(content);
+                slots[section] = lineWritables;
+            } else {
+                ((ArrayList<LineWritable>) slot).add(content);
             }
-            lineWritables.add(content);
         }
         return this;
     }
 
+    private void ensureSlot(final int section, final int sectionCount) {
+        if (slots == null) {
+            slots = new Object[Math.max(section + 1, sectionCount)];
+        } else if (section >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(section + 1, slots.length * 2));
+        }
+    }
+
     public SectionBuffer section(final Enum<?> section, final LineWritable content) {
+        if (slots == null && content != null) {
+            // size the slots for every section of the enum up front
+            ensureSlot(section.ordinal(), SECTION_COUNTS.get(section.getDeclaringClass()));
+        }
         return this.section(section.ordinal(), content);
     }
 
@@ -81,6 +123,19 @@ public class SectionBuffer implements LineWritable {
         return this.stringSection(section.ordinal(), strings);
     }
 
+    /**
+     * Sets whether this buffer is written as compact code, without indentation, blank lines or descriptive comments.
+     * Sections created afterwards inherit the setting, so that generators can check it while filling them.
+     * @param compact true to write compact code
+     */
+    public void setCompact(final boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
     public IndentedLineBuffer lineBufferSection(final int section) {
         final IndentedLineBuffer buffer = new IndentedLineBuffer();
         this.section(section, buffer);
@@ -93,6 +148,7 @@ public class SectionBuffer implements LineWritable {
 
     public FunctionBuilder functionSection(final int section) {
         final FunctionBuilder builder = new FunctionBuilder();
+        builder.body().setCompact(compact);
         this.section(section, builder);
         return builder;
     }
@@ -114,6 +170,7 @@ public class SectionBuffer implements LineWritable {
 
     public SectionBuffer childSection(final int section) {
         final SectionBuffer child = new SectionBuffer();
+        child.setCompact(compact);
         this.section(section, child);
         return child;
     }
@@ -123,13 +180,15 @@ public class SectionBuffer implements LineWritable {
     }
 
     public void clearSection(final int section) {
-        if (this.contents.containsKey(section)) {
-            this.contents.remove(section);
+        if (slots != null && section < slots.length && slots[section] != null) {
+            slots[section] = null;
+            usedSlotCount--;
         }
     }
 
     public SectionBuffer indentedChildSection(final int section) {
         final SectionBuffer child = new SectionBuffer(true);
+        child.setCompact(compact);
         this.section(section, child);
         return child;
     }
@@ -143,31 +202,48 @@ public class SectionBuffer implements LineWritable {
     }
 
     public void clearAll() {
-        this.contents.clear();
+        if (slots != null) {
+            Arrays.fill(slots, null);
+        }
+        usedSlotCount = 0;
     }
 
     @Override
     public boolean isEmpty() {
-        return contents.isEmpty();
+        return usedSlotCount == 0;
     }
 
     @Override
     public void writeTo(final IndentedLineBuffer buffer) throws IOException {
         if (indented)
             buffer.in();
-        for (final int section: contents.keySet()) {
-            for (final LineWritable writable: contents.get(section)) {
-                writable.writeTo(buffer);
+        if (slots != null) {
+            for (final Object slot: slots) {
+                if (slot instanceof LineWritable) {
+                    ((LineWritable) slot).writeTo(buffer);
+                } else if (slot != null) {
+                    @SuppressWarnings("unchecked")
+                    final ArrayList<LineWritable> lineWritables = (ArrayList<LineWritable>) slot;
+                    for (int i = 0; i < lineWritables.size(); i++) {
+                        lineWritables.get(i).writeTo(buffer);
+                    }
+                }
             }
         }
         if (indented)
             buffer.out();
     }
 
-    public void writeTo(final Writer writer) throws IOException {
-        final IndentedLineBuffer buffer = new IndentedLineBuffer();
+    /**
+     * Streams the contents of this buffer to a writer, indenting each line as it is written
+     * @param out the destination
+     * @throws IOException
+     */
+    public void writeTo(final Appendable out) throws IOException {
+        final IndentedLineBuffer buffer = new IndentedLineBuffer(out);
+        buffer.setCompact(compact);
         writeTo(buffer);
-        buffer.writeTo(writer);
+        buffer.flush();
     }
 
 
@@ -28,14 +28,19 @@ import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.WireFormat;
 import com.gotcake.protobuf.CodeGenerator;
 import com.gotcake.protobuf.Utils;
+import com.gotcake.protobuf.builder.DocBuilder;
 import com.gotcake.protobuf.builder.IndentedLineBuffer;
 import com.gotcake.protobuf.builder.SectionBuffer;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * A {@code CodeGenerator} that generates closure compatible javascript.
+ * The generator holds no per-file state, so it is safe to process several files concurrently.
  * @author Aaron Cake
  */
 public class ClosureJavascriptGenerator implements CodeGenerator {
@@ -60,14 +65,30 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
     @Override
     public void processProtoFile(final DescriptorProtos.FileDescriptorProto protoFile, final SectionBuffer outputBuffer) throws IOException {
 
+        if (options.isMinified(protoFile)) {
+            outputBuffer.setCompact(true);
+        }
+
         outputBuffer.lineBufferSection(GlobalSection.Docs)
                 .line("// DO NOT EDIT!! This file contains auto-generated code")
                 .line();
 
         outputBuffer.lineBufferSection(GlobalSection.Requires)
                 .line("goog.require('gotcake.proto.Buffer');")
-                .line("goog.require('gotcake.proto.Message');")
-                .line();
+                .line("goog.require('gotcake.proto.Message');");
+        if (hasInt64Field(protoFile.getMessageTypeList())) {
+            outputBuffer.lineBufferSection(GlobalSection.Requires)
+                    .line("goog.require('gotcake.proto.Int64');");
+        }
+        if (hasFieldMasks(protoFile.getMessageTypeList())) {
+            outputBuffer.lineBufferSection(GlobalSection.Requires)
+                    .line("goog.require('gotcake.proto.FieldMask');");
+        }
+        if (options.isRetainUnknownFields(protoFile)) {
+            outputBuffer.lineBufferSection(GlobalSection.Requires)
+                    .line("goog.require('gotcake.proto.UnknownFields');");
+        }
+        outputBuffer.lineBufferSection(GlobalSection.Requires).line();
 
         // blank line before content
         outputBuffer.lineBufferSection(GlobalSection.Content).line();
@@ -77,6 +98,39 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
 
     }
 
+    /**
+     * Checks if any of the messages, or the messages nested in them, has a 64-bit integer field
+     * @param messageList the list of messages to check
+     * @return true if the generated code uses gotcake.proto.Int64
+     */
+    private static boolean hasInt64Field(final List<DescriptorProtos.DescriptorProto> messageList) {
+        for (final DescriptorProtos.DescriptorProto message : messageList) {
+            for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+                if (ClosureOptions.isInt64(field)) {
+                    return true;
+                }
+            }
+            if (hasInt64Field(message.getNestedTypeList())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if any of the messages, or the messages nested in them, is generated with field masks
+     * @param messageList the list of messages to check
+     * @return true if the generated code uses gotcake.proto.FieldMask
+     */
+    private boolean hasFieldMasks(final List<DescriptorProtos.DescriptorProto> messageList) {
+        for (final DescriptorProtos.DescriptorProto message : messageList) {
+            if (options.isFieldMasks(message) || hasFieldMasks(message.getNestedTypeList())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Processes a list of enums, writing the output for each to the globalBuffer
      * @param enumList the list of enums to process
@@ -159,17 +213,78 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
 
         writeMessageConstructor(descriptor, javascriptName, buffer.childSection(MessageSection.Constructor));
 
+        writeMessageClearFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+
+        writePresenceFieldAccessors(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+
+        writeLazyFieldAccessors(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+
         writeMessageValidatorFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
 
-        writeMessageDecoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+        checkMessageFieldCodecs(descriptor);
+
+        // messages without a decoder or an encoder fall back to the methods of gotcake.proto.Message, which throw
+        if (options.hasDecoder(descriptor)) {
+
+            if (options.isTableDispatch(descriptor)) {
+                writeFieldDecoderTable(descriptor, javascriptName, buffer);
+            }
+
+            if (!options.isInlineDecode(descriptor)) {
+                writeMessageDecoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+            }
+
+            if (options.isInlineDecode(descriptor) || options.isExpectFieldOrder(descriptor)) {
+                writeInlineMessageDecoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+            }
+
+            if (options.isRetainUnknownFields(descriptor)) {
+                writeUnknownFieldRetainer(javascriptName, buffer.childSection(MessageSection.Methods));
+            }
+
+            if (options.isFieldMasks(descriptor)) {
+                writeMaskedMessageDecoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+                writeMaskFieldFunction(descriptor, javascriptName, buffer.childSection(MessageSection.StaticMethods));
+            }
+
+        }
+
+        if (options.hasEncoder(descriptor)) {
+
+            writeMessageSizeCalculatorFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
 
-        writeMessageEncoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+            writeMessageEncoderFunction(descriptor, javascriptName, buffer.childSection(MessageSection.Methods));
+
+        }
 
         processAllEnums(descriptor.getEnumTypeList(), globalBuffer);
         processAllMessages(descriptor.getNestedTypeList(), globalBuffer);
 
     }
 
+    /**
+     * Checks that the type of each message field of a message can be decoded if the message can, and encoded if the
+     * message can, since a message decodes and encodes its message fields with their own codecs
+     * @param message the message descriptor
+     */
+    private void checkMessageFieldCodecs(final DescriptorProtos.DescriptorProto message) {
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+            final DescriptorProtos.DescriptorProto fieldType =
+                    field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE ? options.getMessageType(field) : null;
+            if (fieldType == null) {
+                continue;
+            }
+            if (options.hasDecoder(message) && !options.hasDecoder(fieldType)) {
+                throw new RuntimeException("Message " + message.getName() + " is decoded, but the type of its field " +
+                        field.getName() + " is optimized for " + options.getOptimizeFor(fieldType));
+            }
+            if (options.hasEncoder(message) && !options.hasEncoder(fieldType)) {
+                throw new RuntimeException("Message " + message.getName() + " is encoded, but the type of its field " +
+                        field.getName() + " is optimized for " + options.getOptimizeFor(fieldType));
+            }
+        }
+    }
+
     /**
      * Writes the message constructor to the given buffer
      * @param message the message descriptor
@@ -183,6 +298,7 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
         buffer.docSection(FunctionSection.Docs)
                 .setDescription("Constructs an un-initialized ", javascriptName)
                 .setConstructor(true)
+                .setStruct(options.isShapeStable(message))
                 .setExtendsType("gotcake.proto.Message");
 
         buffer.lineBufferSection(FunctionSection.Header)
@@ -197,27 +313,40 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
                 final SectionBuffer fieldSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
                 final String fieldName = Utils.toCamelCase(field.getName(), false);
                 final String typeName = options.getJavascriptTypeForField(field);
-                final String defaultValue = field.getDefaultValue();
                 final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+                final String typedArrayType = options.getTypedArrayType(field);
 
                 fieldSection.docSection(FieldSection.Docs)
-                        .setDescription("number = ", field.getNumber(), " type = ", Utils.getTypeName(field.getType()))
-                        .setType(typeName + (isRepeated ? "[]" : ""));
+                        .setDescription("number = ", field.getNumber(), " type = ", Utils.getTypeName(field.getType()),
+                                options.isBytesView(field) ? ", viewing the source buffer" : "")
+                        .setType(typedArrayType != null ? typedArrayType : typeName + (isRepeated ? "[]" : ""));
 
-                if (isRepeated) {
-                    fieldSection.lineBufferSection(FieldSection.Body)
-                            .line("this.", fieldName, " = [];");
-                } else {
-                    fieldSection.lineBufferSection(FieldSection.Body)
-                            .line("this.", fieldName, " = ", defaultValue.isEmpty() ? "null" : defaultValue, ";");
+                fieldSection.lineBufferSection(FieldSection.Body)
+                        .line("this.", fieldName, " = ", getInitialValue(message, field), ";")
+                        .line();
+
+                if (options.isHighLow(field)) {
+                    writeHighFieldState(message, field, constructorBody, fieldName, isRepeated);
                 }
 
-                fieldSection.lineBufferSection(FieldSection.Body).line();
+                if (options.isLazy(field)) {
+                    writeLazyFieldState(constructorBody, fieldName, isRepeated);
+                } else if (field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE) {
+                    writeSpareFieldState(constructorBody, fieldName, typeName, isRepeated);
+                } else if (typedArrayType != null) {
+                    writeTypedArrayCapacityState(constructorBody, fieldName, typedArrayType);
+                }
 
             }
 
         }
 
+        writePresenceBitfieldState(message, constructorBody);
+
+        if (options.isRetainUnknownFields(message)) {
+            writeUnknownFieldsState(constructorBody);
+        }
+
         buffer.lineBufferSection(FunctionSection.Closer)
                 .line("};")
                 .line("goog.inherits(", javascriptName, ", gotcake.proto.Message);")
@@ -226,146 +355,1537 @@ public class ClosureJavascriptGenerator implements CodeGenerator {
     }
 
     /**
-     * Writes the message encoder function to the given buffer
+     * Gets the javascript expression for the value of a field in a new or cleared message
+     * @param field the field
+     * @return the javascript expression
+     */
+    private String getInitialValue(final DescriptorProtos.DescriptorProto message,
+                                   final DescriptorProtos.FieldDescriptorProto field) {
+        final String typedArrayType = options.getTypedArrayType(field);
+        if (typedArrayType != null) {
+            return Utils.toString("new ", typedArrayType, "(0)");
+        } else if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
+            return "[]";
+        } else {
+            return options.getDefaultValueJavascript(field, options.isShapeStable(message));
+        }
+    }
+
+    /**
+     * Gets the javascript value of the high 32 bits of a 64-bit field held as a high/low pair in a new or cleared message
+     * @param field the field
+     * @return the javascript expression
+     */
+    private String getHighInitialValue(final DescriptorProtos.DescriptorProto message,
+                                       final DescriptorProtos.FieldDescriptorProto field) {
+        if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
+            return "[]";
+        }
+        return options.getHighDefaultValueJavascript(field, options.isShapeStable(message));
+    }
+
+    /**
+     * Gets the javascript reference to the high 32 bits of a value of a field
+     * @param field the field
+     * @param value the javascript reference to the value, which is the low 32 bits for a high/low pair
+     * @param index the javascript index of the value within a repeated field, or null if the field is singular
+     * @return the javascript reference, or null if the field is not a high/low pair
+     */
+    private String getHighValue(final DescriptorProtos.FieldDescriptorProto field, final String value, final String index) {
+        if (!options.isHighLow(field)) {
+            return null;
+        }
+        return index == null ? value + "High" : Utils.toString(value, "High[", index, "]");
+    }
+
+    /**
+     * Writes the field holding the high 32 bits of a 64-bit field held as a high/low pair
+     * @param message the message descriptor
+     * @param field the field
+     * @param constructorBody the constructor body to write to
+     * @param fieldName the javascript name of the field
+     * @param isRepeated true if the field is repeated
+     * @throws IOException
+     */
+    private void writeHighFieldState(final DescriptorProtos.DescriptorProto message,
+                                     final DescriptorProtos.FieldDescriptorProto field,
+                                     final SectionBuffer constructorBody,
+                                     final String fieldName,
+                                     final boolean isRepeated) throws IOException {
+        final SectionBuffer highSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+        highSection.docSection(FieldSection.Docs)
+                .setDescription("The high 32 bits of ", fieldName, ", which holds the low 32 bits")
+                .setType(isRepeated ? "number[]" : "number");
+        highSection.lineBufferSection(FieldSection.Body)
+                .line("this.", fieldName, "High = ", getHighInitialValue(message, field), ";")
+                .line();
+    }
+
+    /**
+     * Gets the fields of a message that have a bit in its presence bitfield, in the order of their bits
+     * @param message the message descriptor
+     * @return the fields
+     */
+    private List<DescriptorProtos.FieldDescriptorProto> getPresenceBitFields(final DescriptorProtos.DescriptorProto message) {
+        final ArrayList<DescriptorProtos.FieldDescriptorProto> fields = new ArrayList<>();
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+            if (options.isFieldTypeSupported(field) && options.hasPresenceBit(field)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Gets the javascript reference to the word of the presence bitfield holding the given bit
+     */
+    private static String getPresenceWord(final int bit) {
+        return Utils.toString("this.hasBits", bit >>> 5, "_");
+    }
+
+    /**
+     * Gets the mask of the given bit within its word of the presence bitfield
+     */
+    private static int getPresenceMask(final int bit) {
+        return 1 << (bit & 31);
+    }
+
+    /**
+     * Gets the javascript condition that checks if the value of a singular field is set and ready to encode.
+     * A field is set if its bit is, or if it was assigned directly and no longer holds its initial value.
+     * A lazy field may instead hold the bytes of a value that has not been decoded, so its value is checked directly.
+     * @param message the message descriptor
+     * @param field the field
+     * @param fieldName the javascript name of the field
+     * @return the javascript expression
+     */
+    private String getPresenceCheck(final DescriptorProtos.DescriptorProto message,
+                                    final DescriptorProtos.FieldDescriptorProto field,
+                                    final String fieldName) {
+        if (options.isLazy(field)) {
+            return Utils.toString("this.", fieldName, " !== null");
+        }
+        return Utils.toString(getPresenceBitCheck(getPresenceBitFields(message).indexOf(field)), " || ",
+                getAssignedCheck(message, field, fieldName));
+    }
+
+    /**
+     * Gets the javascript condition that checks if a singular field holds a value other than its initial value
+     * @param message the message descriptor
+     * @param field the field
+     * @param fieldName the javascript name of the field
+     * @return the javascript expression
+     */
+    private String getAssignedCheck(final DescriptorProtos.DescriptorProto message,
+                                    final DescriptorProtos.FieldDescriptorProto field,
+                                    final String fieldName) {
+        final String initialValue = getInitialValue(message, field);
+        // NaN is the only value that is not equal to itself
+        final String check = initialValue.equals("NaN")
+                ? Utils.toString("this.", fieldName, " === this.", fieldName)
+                : Utils.toString("this.", fieldName, " !== ", initialValue);
+        if (options.isHighLow(field)) {
+            return Utils.toString(check, " || this.", fieldName, "High !== ", getHighInitialValue(message, field));
+        }
+        return check;
+    }
+
+    /**
+     * Gets the javascript condition that checks if the given bit of the presence bitfield is set
+     */
+    private static String getPresenceBitCheck(final int bit) {
+        return Utils.toString("(", getPresenceWord(bit), " & ", getPresenceMask(bit), ") !== 0");
+    }
+
+    /**
+     * Writes the words of the presence bitfield of a message. Shape-stable messages are followed by the cached size,
+     * so that every property of the message is created by the constructor.
+     * @param message the message descriptor
+     * @param constructorBody the constructor body to write to
+     * @throws IOException
+     */
+    private void writePresenceBitfieldState(final DescriptorProtos.DescriptorProto message,
+                                            final SectionBuffer constructorBody) throws IOException {
+        final int bitCount = getPresenceBitFields(message).size();
+        for (int bit = 0; bit < bitCount; bit += 32) {
+            final SectionBuffer wordSection = constructorBody.indentedChildSection(ConstructorBodySection.AfterFields);
+            wordSection.docSection(FieldSection.Docs)
+                    .setDescription("Bits recording which fields have been set")
+                    .setType("number")
+                    .setPrivate();
+            wordSection.lineBufferSection(FieldSection.Body)
+                    .line(getPresenceWord(bit), " = 0;")
+                    .line();
+        }
+        if (options.isShapeStable(message)) {
+            constructorBody.indentedChildSection(ConstructorBodySection.AfterFields)
+                    .lineBufferSection(FieldSection.Body)
+                    .line("this.cachedSize = -1;");
+        }
+    }
+
+    /**
+     * Writes the private field that holds the unknown fields of a message, which is only created once one is decoded
+     * @param constructorBody the constructor body to write to
+     * @throws IOException
+     */
+    private static void writeUnknownFieldsState(final SectionBuffer constructorBody) throws IOException {
+        final SectionBuffer unknownSection = constructorBody.indentedChildSection(ConstructorBodySection.AfterFields);
+        unknownSection.docSection(FieldSection.Docs)
+                .setDescription("The fields that the message type doesn't know, to be encoded again with the message")
+                .setType("gotcake.proto.UnknownFields")
+                .setPrivate();
+        unknownSection.lineBufferSection(FieldSection.Body)
+                .line("this.unknownFields_ = null;")
+                .line();
+    }
+
+    /**
+     * Writes a has, set and clear method for each field with a presence bit, which test, set and clear its bit along
+     * with the field. Lazy fields get their setter from writeLazyFieldAccessors.
      * @param message the message descriptor
      * @param javascriptName the javascript name of the message
      * @param buffer the buffer to write to
      */
-    public void writeMessageEncoderFunction(final DescriptorProtos.DescriptorProto message,
+    public void writePresenceFieldAccessors(final DescriptorProtos.DescriptorProto message,
                                             final String javascriptName,
                                             final SectionBuffer buffer) throws IOException {
 
+        final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+
+        for (int bit = 0; bit < presenceFields.size(); bit++) {
+
+            final DescriptorProtos.FieldDescriptorProto field = presenceFields.get(bit);
+            final String fieldName = Utils.toCamelCase(field.getName(), false);
+            final String accessorName = Utils.toCamelCase(field.getName(), true);
+
+            final SectionBuffer has = buffer.childSection(MessageSection.Methods);
+            has.docSection(FunctionSection.Docs)
+                    .setDescription("Checks if ", fieldName, " has been set")
+                    .setReturnType("boolean");
+            has.lineBufferSection(FunctionSection.Header)
+                    .line(javascriptName, ".prototype.has", accessorName, " = function(){");
+            has.lineBufferSection(FunctionSection.Body).in()
+                    .line("return ", options.isLazy(field) ? getPresenceBitCheck(bit) : getPresenceCheck(message, field, fieldName), ";");
+            has.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+            if (!options.isLazy(field)) {
+                final boolean isHighLow = options.isHighLow(field);
+                final SectionBuffer setter = buffer.childSection(MessageSection.Methods);
+                final DocBuilder setterDocs = setter.docSection(FunctionSection.Docs)
+                        .setDescription("Sets ", fieldName, " and marks it as present")
+                        .addParameter("value", options.getJavascriptTypeForField(field));
+                if (isHighLow) {
+                    setterDocs.addParameter("high", "number", "The high 32 bits of the value");
+                }
+                setter.lineBufferSection(FunctionSection.Header)
+                        .line(javascriptName, ".prototype.set", accessorName,
+                                isHighLow ? " = function(value, high){" : " = function(value){");
+                final IndentedLineBuffer setterBody = setter.lineBufferSection(FunctionSection.Body).in()
+                        .line("this.", fieldName, " = value;");
+                if (isHighLow) {
+                    setterBody.line("this.", fieldName, "High = high;");
+                }
+                setterBody.line(getPresenceWord(bit), " |= ", getPresenceMask(bit), ";");
+                setter.lineBufferSection(FunctionSection.Closer).line("};").line();
+            }
+
+            final SectionBuffer clearer = buffer.childSection(MessageSection.Methods);
+            clearer.docSection(FunctionSection.Docs)
+                    .setDescription("Resets ", fieldName, " to its default value and marks it as not present");
+            clearer.lineBufferSection(FunctionSection.Header)
+                    .line(javascriptName, ".prototype.clear", accessorName, " = function(){");
+            final IndentedLineBuffer clearerBody = clearer.lineBufferSection(FunctionSection.Body).in();
+            writeFieldClear(message, field, fieldName, clearerBody);
+            clearerBody.line(getPresenceWord(bit), " &= ~", getPresenceMask(bit), ";");
+            clearer.lineBufferSection(FunctionSection.Closer).line("};").line();
+        }
     }
 
     /**
-     * Writes the message decoder function to the given buffer
+     * Writes the private field that holds the cleared instances of a message field, so that they can be reused
+     * by the next decode instead of being allocated again
+     * @param constructorBody the constructor body to write to
+     * @param fieldName the javascript name of the field
+     * @param typeName the javascript type of the field
+     * @param isRepeated true if the field is repeated
+     * @throws IOException
+     */
+    private static void writeSpareFieldState(final SectionBuffer constructorBody,
+                                             final String fieldName,
+                                             final String typeName,
+                                             final boolean isRepeated) throws IOException {
+        final SectionBuffer spareSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+        if (isRepeated) {
+            spareSection.docSection(FieldSection.Docs)
+                    .setDescription("The cleared values of ", fieldName, ", which are reused when decoding")
+                    .setType(typeName + "[]")
+                    .setPrivate();
+            spareSection.lineBufferSection(FieldSection.Body)
+                    .line("this.", fieldName, "Spares_ = [];")
+                    .line();
+        } else {
+            spareSection.docSection(FieldSection.Docs)
+                    .setDescription("The cleared value of ", fieldName, ", which is reused when decoding")
+                    .setType(typeName)
+                    .setPrivate();
+            spareSection.lineBufferSection(FieldSection.Body)
+                    .line("this.", fieldName, "Spare_ = null;")
+                    .line();
+        }
+    }
+
+    /**
+     * Writes the private field that holds the array unpacked values of a typed array field are appended into, which
+     * has room for more values than the field views
+     * @param constructorBody the constructor body to write to
+     * @param fieldName the javascript name of the field
+     * @param typedArrayType the typed array type of the field
+     * @throws IOException
+     */
+    private static void writeTypedArrayCapacityState(final SectionBuffer constructorBody,
+                                                     final String fieldName,
+                                                     final String typedArrayType) throws IOException {
+        final SectionBuffer capacitySection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+        capacitySection.docSection(FieldSection.Docs)
+                .setDescription("The array that unpacked values of ", fieldName, " are appended into, whose start ",
+                        fieldName, " views")
+                .setType(typedArrayType)
+                .setPrivate();
+        capacitySection.lineBufferSection(FieldSection.Body)
+                .line("this.", fieldName, "Capacity_ = null;")
+                .line();
+    }
+
+    /**
+     * Writes the message clear function to the given buffer.
+     * It resets every field without allocating: arrays are truncated in place, and nested messages are cleared
+     * and kept aside to be reused by the next decode.
      * @param message the message descriptor
      * @param javascriptName the javascript name of the message
      * @param buffer the buffer to write to
      */
-    public void writeMessageDecoderFunction(final DescriptorProtos.DescriptorProto message,
-                                            final String javascriptName,
-                                            final SectionBuffer buffer) throws IOException {
+    public void writeMessageClearFunction(final DescriptorProtos.DescriptorProto message,
+                                          final String javascriptName,
+                                          final SectionBuffer buffer) throws IOException {
 
         buffer.docSection(FunctionSection.Docs)
-                .setDescription("A method that gets called by the decode method to decode each field")
-                .addParameter("tag", "number", "The tag value for the field to decode")
-                .addParameter("buffer", "gotcake.proto.Buffer", "The buffer to decode from")
-                .setProtected();
+                .setDescription("Resets every field to its default value, keeping arrays and nested messages to reuse when decoding")
+                .setReturnType(javascriptName);
 
         buffer.lineBufferSection(FunctionSection.Header)
-                .line(javascriptName, ".prototype.decodeFieldCallback = function(tag, buffer){");
+                .line(javascriptName, ".prototype.clear = function(){");
 
-        final IndentedLineBuffer decoderBody = buffer.lineBufferSection(FunctionSection.Body)
-                .in()
-                .line("switch (tag) {")
-                .in();
+        final IndentedLineBuffer clearBody = buffer.lineBufferSection(FunctionSection.Body).in();
 
         for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
 
             if (options.isFieldTypeSupported(field)) {
+                writeFieldClear(message, field, Utils.toCamelCase(field.getName(), false), clearBody);
+            }
 
-                final String fieldName = Utils.toCamelCase(field.getName(), false);
-                final int unpackedTag = Utils.getTag(field, false);
+        }
 
-                final int nonPackedWireType = Utils.getWireType(field);
-                final IndentedLineBuffer decoder = decoderBody.line("// wireType = ", Utils.getWireTypeName(nonPackedWireType),
-                        ", number = ", field.getNumber())
-                        .line("case ", unpackedTag, ":")
-                        .in();
-                if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
-                    decoder.line("this.", fieldName, ".push(", options.getDecoderJavascriptForType(field), "); break;")
-                            .out();
-                } else {
-                    decoder.line("this.", fieldName, " = ", options.getDecoderJavascriptForType(field), "; break;")
-                            .out();
-                }
+        final int bitCount = getPresenceBitFields(message).size();
+        for (int bit = 0; bit < bitCount; bit += 32) {
+            clearBody.line(getPresenceWord(bit), " = 0;");
+        }
 
-                if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED &&
-                        nonPackedWireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
-                    decoderBody.line("// wireType = LENGTH_DELIMITED, number = ", field.getNumber())
-                            .line("case ", Utils.getTag(field, true), ":")
-                            .in()
-                            .line("return ", unpackedTag, ";")
-                            .out();
-                }
+        if (options.isRetainUnknownFields(message)) {
+            clearBody.line("if (this.unknownFields_ !== null) {")
+                    .in()
+                    .line("this.unknownFields_.clear();")
+                    .out()
+                    .line("}");
+        }
+
+        clearBody.line("return this;");
+
+        buffer.lineBufferSection(FunctionSection.Closer)
+                .line("};")
+                .line();
+
+    }
+
+    /**
+     * Writes javascript that resets a field to its initial value without allocating. Arrays are truncated in place,
+     * and nested messages are cleared and kept aside to be reused by the next decode.
+     * @param message the message descriptor
+     * @param field the field
+     * @param fieldName the javascript name of the field
+     * @param clearBody the function body to write to
+     * @throws IOException
+     */
+    private void writeFieldClear(final DescriptorProtos.DescriptorProto message,
+                                 final DescriptorProtos.FieldDescriptorProto field,
+                                 final String fieldName,
+                                 final IndentedLineBuffer clearBody) throws IOException {
+        final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+        final boolean isMessage = field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE;
+
+        if (options.isLazy(field)) {
+            clearBody.line(isRepeated ? Utils.toString("this.", fieldName, ".length = 0;") : Utils.toString("this.", fieldName, " = null;"))
+                    .line("this.", fieldName, "Bytes_ = null;");
+            if (isRepeated) {
+                clearBody.line("this.", fieldName, "Ranges_.length = 0;");
             }
+        } else if (isMessage && isRepeated) {
+            clearBody.line("for (var i = 0; i < this.", fieldName, ".length; ++i) {")
+                    .in()
+                    .line("this.", fieldName, "Spares_.push(this.", fieldName, "[i].clear());")
+                    .out()
+                    .line("}")
+                    .line("this.", fieldName, ".length = 0;");
+        } else if (isMessage) {
+            clearBody.line("if (this.", fieldName, " !== null) {")
+                    .in()
+                    .line("this.", fieldName, "Spare_ = this.", fieldName, ".clear();")
+                    .line("this.", fieldName, " = null;")
+                    .out()
+                    .line("}");
+        } else if (isRepeated && options.getTypedArrayType(field) == null) {
+            clearBody.line("this.", fieldName, ".length = 0;");
+        } else if (options.getTypedArrayType(field) != null) {
+            clearBody.line("this.", fieldName, " = ", getInitialValue(message, field), ";")
+                    .line("this.", fieldName, "Capacity_ = null;");
+        } else {
+            clearBody.line("this.", fieldName, " = ", getInitialValue(message, field), ";");
+        }
+        if (options.isHighLow(field)) {
+            clearBody.line(isRepeated
+                    ? Utils.toString("this.", fieldName, "High.length = 0;")
+                    : Utils.toString("this.", fieldName, "High = ", getHighInitialValue(message, field), ";"));
+        }
+    }
+
+    /**
+     * Writes the private fields that record where the encoded value of a lazy field is until it is decoded
+     * @param constructorBody the constructor body to write to
+     * @param fieldName the javascript name of the field
+     * @param isRepeated true if the field is repeated
+     * @throws IOException
+     */
+    private static void writeLazyFieldState(final SectionBuffer constructorBody,
+                                            final String fieldName,
+                                            final boolean isRepeated) throws IOException {
+
+        final SectionBuffer bytesSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+        bytesSection.docSection(FieldSection.Docs)
+                .setDescription("The buffer holding the encoded ", fieldName, " until it is decoded")
+                .setType("ArrayBuffer")
+                .setPrivate();
+        bytesSection.lineBufferSection(FieldSection.Body)
+                .line("this.", fieldName, "Bytes_ = null;")
+                .line();
+
+        if (isRepeated) {
+            final SectionBuffer rangesSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+            rangesSection.docSection(FieldSection.Docs)
+                    .setDescription("The offset and length of each encoded value of ", fieldName, " in its buffer")
+                    .setType("number[]")
+                    .setPrivate();
+            rangesSection.lineBufferSection(FieldSection.Body)
+                    .line("this.", fieldName, "Ranges_ = [];")
+                    .line();
+        } else {
+            final SectionBuffer offsetSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+            offsetSection.docSection(FieldSection.Docs)
+                    .setDescription("The offset of the encoded ", fieldName, " in its buffer")
+                    .setType("number")
+                    .setPrivate();
+            offsetSection.lineBufferSection(FieldSection.Body)
+                    .line("this.", fieldName, "Offset_ = 0;")
+                    .line();
 
+            final SectionBuffer lengthSection = constructorBody.indentedChildSection(ConstructorBodySection.Fields);
+            lengthSection.docSection(FieldSection.Docs)
+                    .setDescription("The length of the encoded ", fieldName)
+                    .setType("number")
+                    .setPrivate();
+            lengthSection.lineBufferSection(FieldSection.Body)
+                    .line("this.", fieldName, "Length_ = 0;")
+                    .line();
         }
+    }
+
+    /**
+     * Writes a getter and a setter for each lazy field of a message.
+     * The getter decodes the value the first time it is called, and the setter discards any value that is still encoded.
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeLazyFieldAccessors(final DescriptorProtos.DescriptorProto message,
+                                        final String javascriptName,
+                                        final SectionBuffer buffer) throws IOException {
 
-        decoderBody.out().line("}");
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
 
-        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+            if (options.isFieldTypeSupported(field) && options.isLazy(field)) {
 
+                final String fieldName = Utils.toCamelCase(field.getName(), false);
+                final String accessorName = Utils.toCamelCase(field.getName(), true);
+                final String typeName = options.getJavascriptTypeForField(field);
+                final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+                final String fieldType = isRepeated ? typeName + "[]" : typeName;
+
+                final SectionBuffer getter = buffer.childSection(MessageSection.Methods);
+                getter.docSection(FunctionSection.Docs)
+                        .setDescription("Gets ", fieldName, ", decoding it from the source buffer the first time it is called")
+                        .setReturnType(fieldType);
+                getter.lineBufferSection(FunctionSection.Header)
+                        .line(javascriptName, ".prototype.get", accessorName, " = function(){");
+                final IndentedLineBuffer getterBody = getter.lineBufferSection(FunctionSection.Body).in();
+                if (isRepeated) {
+                    getterBody.line("var ranges = this.", fieldName, "Ranges_;")
+                            .line("for (var i = 0; i < ranges.length; i += 2) {")
+                            .in()
+                            .line("this.", fieldName, ".push(new ", typeName, "().decode(new gotcake.proto.Buffer(this.",
+                                    fieldName, "Bytes_, ranges[i], ranges[i + 1])));")
+                            .out()
+                            .line("}")
+                            .line("ranges.length = 0;")
+                            .line("this.", fieldName, "Bytes_ = null;");
+                } else {
+                    getterBody.line("if (this.", fieldName, "Bytes_ !== null) {")
+                            .in()
+                            .line("this.", fieldName, " = new ", typeName, "().decode(new gotcake.proto.Buffer(this.",
+                                    fieldName, "Bytes_, this.", fieldName, "Offset_, this.", fieldName, "Length_));")
+                            .line("this.", fieldName, "Bytes_ = null;")
+                            .out()
+                            .line("}");
+                }
+                getterBody.line("return this.", fieldName, ";");
+                getter.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+                final SectionBuffer setter = buffer.childSection(MessageSection.Methods);
+                setter.docSection(FunctionSection.Docs)
+                        .setDescription("Sets ", fieldName, ", discarding any value that has not been decoded yet")
+                        .addParameter("value", fieldType);
+                setter.lineBufferSection(FunctionSection.Header)
+                        .line(javascriptName, ".prototype.set", accessorName, " = function(value){");
+                final IndentedLineBuffer setterBody = setter.lineBufferSection(FunctionSection.Body).in()
+                        .line("this.", fieldName, " = value;")
+                        .line("this.", fieldName, "Bytes_ = null;");
+                if (isRepeated) {
+                    setterBody.line("this.", fieldName, "Ranges_.length = 0;");
+                } else {
+                    final int bit = getPresenceBitFields(message).indexOf(field);
+                    setterBody.line(getPresenceWord(bit), " |= ", getPresenceMask(bit), ";");
+                }
+                setter.lineBufferSection(FunctionSection.Closer).line("};").line();
+            }
+        }
     }
 
     /**
-     * Writes the message validator function to the given buffer
+     * Writes the message encoder function to the given buffer
      * @param message the message descriptor
      * @param javascriptName the javascript name of the message
      * @param buffer the buffer to write to
      */
-    public void writeMessageValidatorFunction(final DescriptorProtos.DescriptorProto message,
+    public void writeMessageEncoderFunction(final DescriptorProtos.DescriptorProto message,
                                             final String javascriptName,
                                             final SectionBuffer buffer) throws IOException {
 
         buffer.docSection(FunctionSection.Docs)
-                .setDescription("Validates that all required fields have been set")
-                .setReturnType("boolean");
+                .setDescription("A method that gets called by the encode method to write each field")
+                .addParameter("buffer", "gotcake.proto.Buffer", "The buffer to encode to")
+                .setProtected();
 
         buffer.lineBufferSection(FunctionSection.Header)
-                .line(javascriptName, ".prototype.isInitialized = function(){");
-
-        final IndentedLineBuffer validatorBody = buffer.lineBufferSection(FunctionSection.Body)
-                .in().write("return ");
+                .line(javascriptName, ".prototype.encodeFields = function(buffer){");
 
-        boolean hasRequiredField = false;
+        final IndentedLineBuffer encoderBody = buffer.lineBufferSection(FunctionSection.Body).in();
 
         for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
 
             if (options.isFieldTypeSupported(field)) {
 
                 final String fieldName = Utils.toCamelCase(field.getName(), false);
-                if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED) {
+                final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+                final boolean isPacked = isRepeated && field.getOptions().getPacked();
+                final int tag = Utils.getTag(field, isPacked);
 
-                    if (hasRequiredField) {
-                        validatorBody.line(" &&");
+                if (!buffer.isCompact()) {
+                    encoderBody.line("// wireType = ", Utils.getWireTypeName(tag & 0x07), ", number = ", field.getNumber());
+                }
+                if (isPacked) {
+                    encoderBody.line("if (this.", fieldName, ".length > 0) {").in();
+                    writeTagBytes(encoderBody, tag);
+                    writePackedDataSize(encoderBody, field, fieldName);
+                    encoderBody.line("buffer.writeVarint32(dataSize);");
+                    if (options.getTypedArrayType(field) != null && Utils.getFixedSize(field) > 0) {
+                        encoderBody.line("buffer.writeTypedArray(this.", fieldName, ");");
                     } else {
-                        hasRequiredField = true;
-                        validatorBody.in().in();
+                        encoderBody.line("for (var i = 0; i < this.", fieldName, ".length; ++i) {")
+                                .in();
+                        writeValueEncoder(encoderBody, field, "this." + fieldName + "[i]",
+                                getHighValue(field, "this." + fieldName, "i"));
+                        encoderBody.out()
+                                .line("}");
+                    }
+                } else if (isRepeated) {
+                    encoderBody.line("for (var i = 0; i < this.", fieldName, ".length; ++i) {").in();
+                    writeTagBytes(encoderBody, tag);
+                    writeValueEncoder(encoderBody, field, "this." + fieldName + "[i]",
+                            getHighValue(field, "this." + fieldName, "i"));
+                    if (options.isLazy(field)) {
+                        // values that were never decoded are copied back out verbatim
+                        encoderBody.out()
+                                .line("}")
+                                .line("for (var i = 0; i < this.", fieldName, "Ranges_.length; i += 2) {")
+                                .in();
+                        writeTagBytes(encoderBody, tag);
+                        encoderBody.line("buffer.writeVarint32(this.", fieldName, "Ranges_[i + 1]);")
+                                .line("buffer.writeRawBytes(this.", fieldName, "Bytes_, this.", fieldName, "Ranges_[i], this.",
+                                        fieldName, "Ranges_[i + 1]);");
+                    }
+                } else {
+                    encoderBody.line("if (", getPresenceCheck(message, field, fieldName), ") {").in();
+                    writeTagBytes(encoderBody, tag);
+                    writeValueEncoder(encoderBody, field, "this." + fieldName,
+                            getHighValue(field, "this." + fieldName, null));
+                    if (options.isLazy(field)) {
+                        encoderBody.out()
+                                .line("} else if (this.", fieldName, "Bytes_ !== null) {")
+                                .in();
+                        writeTagBytes(encoderBody, tag);
+                        encoderBody.line("buffer.writeVarint32(this.", fieldName, "Length_);")
+                                .line("buffer.writeRawBytes(this.", fieldName, "Bytes_, this.", fieldName, "Offset_, this.",
+                                        fieldName, "Length_);");
                     }
-                    validatorBody.write("this.", fieldName, " !== null");
-
                 }
+                encoderBody.out().line("}");
             }
-        }
 
-        if (hasRequiredField) {
-            validatorBody.line(";");
-            buffer.lineBufferSection(FunctionSection.Closer)
-                    .line("};")
-                    .line();
-        } else { // if there are no required fields, do no override the isInitialized method
-            buffer.clearAll();
-            buffer.lineBufferSection(FunctionSection.Docs)
-                    .line("// No required fields for " + javascriptName + ", using default validator implementation.")
-                    .line();
         }
 
+        if (options.isRetainUnknownFields(message)) {
+            // unknown fields follow the known ones, as they do in the other protobuf implementations
+            encoderBody.line("if (this.unknownFields_ !== null) {")
+                    .in()
+                    .line("this.unknownFields_.encode(buffer);")
+                    .out()
+                    .line("}");
+        }
 
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
 
     }
 
     /**
-     * Writes the message validator function to the given buffer
-     * @param message the message descriptor
-     * @param javascriptName the javascript name of the message
-     * @param buffer the buffer to write to
+     * Writes javascript that computes the size of the data of a non-empty packed field into a variable named dataSize
+     * @param body the function body to write to
+     * @param field the packed field
+     * @param fieldName the javascript name of the field
+     * @throws IOException
      */
-    public void writeMessageSizeCalculatorFunction(final DescriptorProtos.DescriptorProto message,
-                                              final String javascriptName,
-                                              final SectionBuffer buffer) throws IOException {
+    private void writePackedDataSize(final IndentedLineBuffer body,
+                                     final DescriptorProtos.FieldDescriptorProto field,
+                                     final String fieldName) throws IOException {
+        final int fixedSize = Utils.getFixedSize(field);
+        if (fixedSize > 0) {
+            body.line("var dataSize = this.", fieldName, ".length * ", fixedSize, ";");
+        } else {
+            body.line("var dataSize = 0;")
+                    .line("for (var i = 0; i < this.", fieldName, ".length; ++i) {")
+                    .in()
+                    .line("dataSize += ", options.getSizeJavascriptForType(field, "this." + fieldName + "[i]",
+                            getHighValue(field, "this." + fieldName, "i")), ";")
+                    .out()
+                    .line("}");
+        }
+    }
+
+    /**
+     * Writes the javascript that writes a single value of a field to a buffer named buffer. A message value is
+     * written as its cached size followed by its fields, since the size was cached when the outer message was measured.
+     * @param body the function body to write to
+     * @param field the field
+     * @param value the javascript expression for the value to write
+     * @param highValue the javascript expression for the high 32 bits of the value, if the field is a high/low pair
+     * @throws IOException
+     */
+    private void writeValueEncoder(final IndentedLineBuffer body,
+                                   final DescriptorProtos.FieldDescriptorProto field,
+                                   final String value,
+                                   final String highValue) throws IOException {
+        if (field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE) {
+            body.line("buffer.writeVarint32(", value, ".cachedSize);")
+                    .line(value, ".encodeFields(buffer);");
+        } else {
+            body.line(options.getEncoderJavascriptForType(field, value, highValue));
+        }
+    }
+
+    /**
+     * Writes the bytes of a tag varint, which are known at generation time, as literal byte writes
+     * @param body the function body to write to
+     * @param tag the tag to write
+     * @throws IOException
+     */
+    private static void writeTagBytes(final IndentedLineBuffer body, final int tag) throws IOException {
+        final int[] bytes = Utils.getVarint32Bytes(tag);
+        for (int i = 0; i < bytes.length; i++) {
+            body.write(i == 0 ? "" : " ", "buffer.writeByte(", bytes[i], ");");
+        }
+        body.line();
+    }
+
+    /**
+     * Writes the message decoder function to the given buffer
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeMessageDecoderFunction(final DescriptorProtos.DescriptorProto message,
+                                            final String javascriptName,
+                                            final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("A method that gets called by the decode method to decode each field")
+                .addParameter("tag", "number", "The tag value for the field to decode")
+                .addParameter("buffer", "gotcake.proto.Buffer", "The buffer to decode from")
+                .setProtected();
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.decodeFieldCallback = function(tag, buffer){");
+
+        final IndentedLineBuffer decoderBody = buffer.lineBufferSection(FunctionSection.Body).in();
+
+        if (options.isTableDispatch(message)) {
+            decoderBody.line("var decoder = ", javascriptName, ".fieldDecoders_[tag >>> 3];")
+                    .line("return decoder === undefined ? false : decoder.call(this, tag, buffer);");
+        } else {
+            if (options.isInlineVarints(message)) {
+                decoderBody.line(options.getInlineVarintLocalsJavascript());
+            }
+            decoderBody.line("switch (tag) {").in();
+            writeFieldDecoderCases(message, decoderBody, buffer.isCompact(), false);
+            decoderBody.line("default:")
+                    .in()
+                    .line("return false;")
+                    .out()
+                    .out()
+                    .line("}");
+        }
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+    }
+
+    /**
+     * Writes a self-contained decode method to the given buffer, which replaces the generic decode loop of
+     * {@code gotcake.proto.Message}. Fields are dispatched inline if the message is inline decoded, or otherwise
+     * through decodeField. If fields are expected in order, the tag of each field is tried in field number order before
+     * the loop, which is the order encoders write them in, so that a message in that order is decoded without any
+     * dispatch. The first tag that is out of order leaves the rest of the message to the loop.
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeInlineMessageDecoderFunction(final DescriptorProtos.DescriptorProto message,
+                                                  final String javascriptName,
+                                                  final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Decodes a message from the given source")
+                .addParameter("source", "string|ArrayBuffer|gotcake.proto.Buffer", "The source to decode from")
+                .addParameter("opt_lengthDelimited", "boolean=", "Specify true to decode a length-delimited message")
+                .setReturnType(javascriptName);
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.decode = function(source, opt_lengthDelimited){");
+
+        final IndentedLineBuffer decoderBody = buffer.lineBufferSection(FunctionSection.Body)
+                .in()
+                .line("var buffer = source instanceof gotcake.proto.Buffer ? source : new gotcake.proto.Buffer(source);");
+        if (options.isInlineVarints(message)) {
+            decoderBody.line(options.getInlineVarintLocalsJavascript());
+        }
+        final String varint = options.getVarint32DecoderJavascript(message);
+        decoderBody.line("var end = buffer.end;")
+                .line("if (opt_lengthDelimited) {")
+                .in()
+                .line("end = ", varint, ";")
+                .line("end += buffer.offset;")
+                .out()
+                .line("}");
+
+        final boolean expectFieldOrder = options.isExpectFieldOrder(message);
+        if (expectFieldOrder) {
+            // a tag of zero is never valid, so it marks the end of the message
+            decoderBody.line("var tag = buffer.offset < end ? ", varint, " : 0;");
+            final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+            for (final DescriptorProtos.FieldDescriptorProto field : getFieldsByNumber(message)) {
+                if (options.isFieldTypeSupported(field)) {
+                    writeExpectedFieldDecoder(field, presenceFields, decoderBody, buffer.isCompact());
+                }
+            }
+            // once a tag is out of order the rest of the message is dispatched, which bounds the cost of the chain
+            decoderBody.line("while (tag !== 0) {")
+                    .in();
+        } else {
+            decoderBody.line("while (buffer.offset < end) {")
+                    .in()
+                    .line("var tag = ", varint, ";");
+        }
+
+        if (!options.isInlineDecode(message)) {
+            decoderBody.line("this.decodeField(tag, buffer);");
+        } else if (options.isTableDispatch(message)) {
+            decoderBody.line("var decoder = ", javascriptName, ".fieldDecoders_[tag >>> 3];")
+                    .line("if (decoder === undefined || decoder.call(this, tag, buffer) === false) {")
+                    .in()
+                    .line(getUnknownFieldSkipper(message))
+                    .out()
+                    .line("}");
+        } else {
+            decoderBody.line("switch (tag) {").in();
+            writeFieldDecoderCases(message, decoderBody, buffer.isCompact(), true);
+            decoderBody.line("default:")
+                    .in()
+                    .line(getUnknownFieldSkipper(message))
+                    .out()
+                    .out()
+                    .line("}");
+        }
+
+        if (expectFieldOrder) {
+            decoderBody.line("tag = buffer.offset < end ? ", varint, " : 0;");
+        }
+        decoderBody.out()
+                .line("}")
+                .line("return this;");
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+    }
+
+    /**
+     * Gets the javascript statement that skips over a field which the inline decoder of a message doesn't know
+     */
+    private String getUnknownFieldSkipper(final DescriptorProtos.DescriptorProto message) {
+        return options.isRetainUnknownFields(message)
+                ? "this.skipUnknownField(tag, buffer);"
+                : "gotcake.proto.Message.skipField(tag & 0x07, buffer);";
+    }
+
+    /**
+     * Writes an override of skipUnknownField that records each unknown field rather than skipping it
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeUnknownFieldRetainer(final String javascriptName,
+                                          final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Records a field that the message type doesn't know, so that it is encoded again with the message")
+                .addParameter("tag", "number", "The tag of the field, which has already been read")
+                .addParameter("buffer", "gotcake.proto.Buffer", "The buffer to decode from")
+                .setProtected();
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.skipUnknownField = function(tag, buffer){");
 
+        buffer.lineBufferSection(FunctionSection.Body)
+                .in()
+                .line("if (this.unknownFields_ === null) {")
+                .in()
+                .line("this.unknownFields_ = new gotcake.proto.UnknownFields();")
+                .out()
+                .line("}")
+                .line("this.unknownFields_.retain(tag, buffer);");
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+    }
+
+    /**
+     * Writes a decodeMasked method, which only decodes the fields selected by a field mask. Each field tests its bit
+     * in the mask with a word index and mask known at generation time, and a field that isn't selected is skipped by
+     * the code for its wire type without decoding it. Message fields pass their nested mask on to the sub-message.
+     * Unknown fields are always skipped, since a partly decoded message isn't meant to be encoded again.
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeMaskedMessageDecoderFunction(final DescriptorProtos.DescriptorProto message,
+                                                  final String javascriptName,
+                                                  final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Decodes the fields selected by a field mask from the given source, skipping the others without decoding them")
+                .addParameter("source", "string|ArrayBuffer|gotcake.proto.Buffer", "The source to decode from")
+                .addParameter("mask", "gotcake.proto.FieldMask", "The fields to decode, or null to decode every field")
+                .addParameter("opt_lengthDelimited", "boolean=", "Specify true to decode a length-delimited message")
+                .setReturnType(javascriptName);
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.decodeMasked = function(source, mask, opt_lengthDelimited){");
+
+        final IndentedLineBuffer decoderBody = buffer.lineBufferSection(FunctionSection.Body)
+                .in()
+                .line("if (mask === null) {")
+                .in()
+                .line("this.decode(source, opt_lengthDelimited);")
+                .line("return this;")
+                .out()
+                .line("}")
+                .line("var buffer = source instanceof gotcake.proto.Buffer ? source : new gotcake.proto.Buffer(source);");
+        if (options.isInlineVarints(message)) {
+            decoderBody.line(options.getInlineVarintLocalsJavascript());
+        }
+        final String varint = options.getVarint32DecoderJavascript(message);
+        decoderBody.line("var end = buffer.end;")
+                .line("if (opt_lengthDelimited) {")
+                .in()
+                .line("end = ", varint, ";")
+                .line("end += buffer.offset;")
+                .out()
+                .line("}")
+                .line("var words = mask.words;")
+                .line("while (buffer.offset < end) {")
+                .in()
+                .line("var tag = ", varint, ";")
+                .line("switch (tag) {")
+                .in();
+
+        final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+            if (options.isFieldTypeSupported(field)) {
+                writeMaskedFieldDecoderCase(field, presenceFields, decoderBody, buffer.isCompact());
+            }
+        }
+
+        decoderBody.line("default:")
+                .in()
+                .line("gotcake.proto.Message.skipField(tag & 0x07, buffer);")
+                .out()
+                .out()
+                .line("}")
+                .out()
+                .line("}")
+                .line("return this;");
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+    }
+
+    /**
+     * Writes a switch case for each tag a field can be decoded from, which decodes the field if it is selected by the
+     * mask and skips it otherwise
+     * @param field the field
+     * @param presenceFields the fields of the message with a presence bit
+     * @param decoderBody the body of the switch statement
+     * @param compact true to leave out comments
+     * @throws IOException
+     */
+    private void writeMaskedFieldDecoderCase(final DescriptorProtos.FieldDescriptorProto field,
+                                             final List<DescriptorProtos.FieldDescriptorProto> presenceFields,
+                                             final IndentedLineBuffer decoderBody,
+                                             final boolean compact) throws IOException {
+
+        final String fieldName = Utils.toCamelCase(field.getName(), false);
+        final int number = field.getNumber();
+        final String maskCheck = Utils.toString("words[", number >>> 5, "] & ", 1 << (number & 31));
+        final String highDecoder = options.isHighLow(field) ? options.getHighDecoderJavascriptForType(field) : null;
+        final int nonPackedWireType = Utils.getWireType(field);
+
+        if (!compact) {
+            decoderBody.line("// wireType = ", Utils.getWireTypeName(nonPackedWireType), ", number = ", number);
+        }
+        decoderBody.line("case ", Utils.getTag(field, false), ":")
+                .in()
+                .line("if (", maskCheck, ") {")
+                .in();
+        writeFieldValueDecoder(field, fieldName, presenceFields.indexOf(field), highDecoder, decoderBody, "",
+                Utils.toString("decodeMasked(buffer, mask.getNested(", number, "), true)"));
+        decoderBody.out()
+                .line("} else {")
+                .in()
+                .line(getSkipJavascript(field, nonPackedWireType))
+                .out()
+                .line("}")
+                .line("break;")
+                .out();
+
+        if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED &&
+                nonPackedWireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            if (!compact) {
+                decoderBody.line("// wireType = LENGTH_DELIMITED, number = ", number);
+            }
+            decoderBody.line("case ", Utils.getTag(field, true), ":")
+                    .in()
+                    .line("if (", maskCheck, ") {")
+                    .in();
+            if (options.getTypedArrayType(field) != null) {
+                decoderBody.line("this.", fieldName, " = ",
+                        options.getPackedDecoderJavascriptForTypedArray(field, "this." + fieldName), ";");
+            } else {
+                writePackedFieldDecoder(field, fieldName, highDecoder, decoderBody);
+            }
+            decoderBody.out()
+                    .line("} else {")
+                    .in()
+                    .line(getSkipJavascript(field, WireFormat.WIRETYPE_LENGTH_DELIMITED))
+                    .out()
+                    .line("}")
+                    .line("break;")
+                    .out();
+        }
+    }
+
+    /**
+     * Gets the javascript statement that skips over a value of a field encoded with the given wire type
+     */
+    private String getSkipJavascript(final DescriptorProtos.FieldDescriptorProto field, final int wireType) {
+        switch (wireType) {
+            case WireFormat.WIRETYPE_VARINT:
+                return "buffer.skipVarint();";
+            case WireFormat.WIRETYPE_FIXED32:
+                return "buffer.skip(4);";
+            case WireFormat.WIRETYPE_FIXED64:
+                return "buffer.skip(8);";
+            default:
+                return Utils.toString("buffer.skip(", options.getVarint32DecoderJavascript(field), ");");
+        }
+    }
+
+    /**
+     * Writes a getMaskField function, which looks up a field by its name in the proto file for
+     * gotcake.proto.FieldMask.fromPaths
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeMaskFieldFunction(final DescriptorProtos.DescriptorProto message,
+                                       final String javascriptName,
+                                       final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Looks up a field by its name in the proto file, for compiling field masks from paths. " +
+                        "Returns the number of the field, followed by the getMaskField function of its type if it is a " +
+                        "message field, or null if there is no such field")
+                .addParameter("name", "string", "The name of the field")
+                .setReturnType("Array");
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".getMaskField = function(name){");
+
+        final IndentedLineBuffer body = buffer.lineBufferSection(FunctionSection.Body)
+                .in()
+                .line("switch (name) {")
+                .in();
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+            if (options.isFieldTypeSupported(field)) {
+                if (field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE) {
+                    // the message type is looked up when the function is called, since it may be defined later
+                    body.line("case '", field.getName(), "': return [", field.getNumber(), ", ",
+                            options.getJavascriptTypeForField(field), ".getMaskField];");
+                } else {
+                    body.line("case '", field.getName(), "': return [", field.getNumber(), "];");
+                }
+            }
+        }
+        body.out()
+                .line("}")
+                .line("return null;");
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
+
+    }
+
+    /**
+     * Writes a table with a function for each field that decodes it, indexed by field number, which the decoder
+     * dispatches through instead of a switch on the tag
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the message buffer to write to
+     */
+    public void writeFieldDecoderTable(final DescriptorProtos.DescriptorProto message,
+                                       final String javascriptName,
+                                       final SectionBuffer buffer) throws IOException {
+
+        final String tableName = javascriptName + ".fieldDecoders_";
+        final boolean inline = options.isInlineDecode(message);
+
+        final SectionBuffer tableSection = buffer.childSection(MessageSection.StaticFields);
+        tableSection.docSection(FieldSection.Docs)
+                .setDescription("The function that decodes each field, indexed by field number")
+                .setType(Utils.toString("Array.<function(this:", javascriptName, ", number, gotcake.proto.Buffer):(boolean|number|undefined)>"))
+                .setPrivate();
+        tableSection.lineBufferSection(FieldSection.Body)
+                .line(tableName, " = [];")
+                .line();
+
+        final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+
+        // the functions are added in field number order, so that the array is filled from the front
+        for (final DescriptorProtos.FieldDescriptorProto field : getFieldsByNumber(message)) {
+
+            if (options.isFieldTypeSupported(field)) {
+
+                final SectionBuffer fieldDecoder = buffer.childSection(MessageSection.StaticMethods);
+                fieldDecoder.docSection(FunctionSection.Docs)
+                        .setDescription("Decodes ", Utils.toCamelCase(field.getName(), false))
+                        .addParameter("tag", "number", "The tag value for the field to decode")
+                        .addParameter("buffer", "gotcake.proto.Buffer", "The buffer to decode from")
+                        .setReturnType("boolean|number|undefined")
+                        .setThisType(javascriptName);
+                fieldDecoder.lineBufferSection(FunctionSection.Header)
+                        .line(tableName, "[", field.getNumber(), "] = function(tag, buffer){");
+                final IndentedLineBuffer decoderBody = fieldDecoder.lineBufferSection(FunctionSection.Body).in();
+                if (options.isInlineVarints(message)) {
+                    decoderBody.line(options.getInlineVarintLocalsJavascript());
+                }
+                decoderBody.line("switch (tag) {")
+                        .in();
+                writeFieldDecoderCase(message, field, presenceFields, decoderBody, buffer.isCompact(), inline);
+                decoderBody.line("default:")
+                        .in()
+                        .line("return false;")
+                        .out()
+                        .out()
+                        .line("}");
+                fieldDecoder.lineBufferSection(FunctionSection.Closer).line("};").line();
+            }
+        }
+    }
+
+    /**
+     * Gets the fields of a message sorted by field number
+     */
+    private static List<DescriptorProtos.FieldDescriptorProto> getFieldsByNumber(final DescriptorProtos.DescriptorProto message) {
+        final ArrayList<DescriptorProtos.FieldDescriptorProto> fields = new ArrayList<>(message.getFieldList());
+        Collections.sort(fields, new Comparator<DescriptorProtos.FieldDescriptorProto>() {
+            @Override
+            public int compare(final DescriptorProtos.FieldDescriptorProto a, final DescriptorProtos.FieldDescriptorProto b) {
+                return Integer.compare(a.getNumber(), b.getNumber());
+            }
+        });
+        return fields;
+    }
+
+    /**
+     * Writes a switch case for each tag a field can be decoded from
+     * @param message the message descriptor
+     * @param decoderBody the body of the switch statement
+     * @param compact true to leave out comments
+     * @param inline true to decode packed fields in place, false to return the unpacked tag to the decode method
+     * @throws IOException
+     */
+    private void writeFieldDecoderCases(final DescriptorProtos.DescriptorProto message,
+                                        final IndentedLineBuffer decoderBody,
+                                        final boolean compact,
+                                        final boolean inline) throws IOException {
+
+        final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+            if (options.isFieldTypeSupported(field)) {
+                writeFieldDecoderCase(message, field, presenceFields, decoderBody, compact, inline);
+            }
+        }
+    }
+
+    /**
+     * Writes a switch case for each tag a field can be decoded from, which is one tag for most fields and two for
+     * repeated fields that may be packed
+     * @param message the message descriptor
+     * @param field the field
+     * @param presenceFields the fields of the message with a presence bit
+     * @param decoderBody the body of the switch statement
+     * @param compact true to leave out comments
+     * @param inline true to decode packed fields in place, false to return the unpacked tag to the decode method
+     * @throws IOException
+     */
+    private void writeFieldDecoderCase(final DescriptorProtos.DescriptorProto message,
+                                       final DescriptorProtos.FieldDescriptorProto field,
+                                       final List<DescriptorProtos.FieldDescriptorProto> presenceFields,
+                                       final IndentedLineBuffer decoderBody,
+                                       final boolean compact,
+                                       final boolean inline) throws IOException {
+
+        final String fieldName = Utils.toCamelCase(field.getName(), false);
+        final int unpackedTag = Utils.getTag(field, false);
+        final int bit = presenceFields.indexOf(field);
+        // the high 32 bits of a high/low pair are read from the scratch value straight after the low bits
+        final String highDecoder = options.isHighLow(field) ? options.getHighDecoderJavascriptForType(field) : null;
+
+        final int nonPackedWireType = Utils.getWireType(field);
+        if (!compact) {
+            decoderBody.line("// wireType = ", Utils.getWireTypeName(nonPackedWireType), ", number = ", field.getNumber());
+        }
+        final String typedArrayType = options.getTypedArrayType(field);
+        decoderBody.line("case ", unpackedTag, ":").in();
+        writeFieldValueDecoder(field, fieldName, bit, highDecoder, decoderBody, " break;");
+        decoderBody.out();
+
+        if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED &&
+                nonPackedWireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            if (!compact) {
+                decoderBody.line("// wireType = LENGTH_DELIMITED, number = ", field.getNumber());
+            }
+            decoderBody.line("case ", Utils.getTag(field, true), ":").in();
+            if (typedArrayType != null) {
+                // typed arrays are decoded in bulk in either mode
+                decoderBody.line("this.", fieldName, " = ",
+                        options.getPackedDecoderJavascriptForTypedArray(field, "this." + fieldName), "; break;");
+            } else if (inline) {
+                writePackedFieldDecoder(field, fieldName, highDecoder, decoderBody);
+                decoderBody.line("break;");
+            } else {
+                decoderBody.line("return ", unpackedTag, ";");
+            }
+            decoderBody.out();
+        }
+    }
+
+    /**
+     * Writes a step of the chain that decodes fields in field number order. If the tag is the one the field is
+     * expected to be encoded with, which is the packed tag for packed fields, the field is decoded and the next tag
+     * is read. Repeated fields are decoded for as long as the tag repeats.
+     * @param field the field
+     * @param presenceFields the fields of the message with a presence bit
+     * @param decoderBody the body of the decode loop
+     * @param compact true to leave out comments
+     * @throws IOException
+     */
+    private void writeExpectedFieldDecoder(final DescriptorProtos.FieldDescriptorProto field,
+                                           final List<DescriptorProtos.FieldDescriptorProto> presenceFields,
+                                           final IndentedLineBuffer decoderBody,
+                                           final boolean compact) throws IOException {
+
+        final String fieldName = Utils.toCamelCase(field.getName(), false);
+        final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+        final boolean isPacked = isRepeated && field.getOptions().getPacked();
+        final String highDecoder = options.isHighLow(field) ? options.getHighDecoderJavascriptForType(field) : null;
+
+        if (!compact) {
+            decoderBody.line("// wireType = ", isPacked ? "LENGTH_DELIMITED" : Utils.getWireTypeName(Utils.getWireType(field)),
+                    ", number = ", field.getNumber());
+        }
+        decoderBody.line(isRepeated ? "while" : "if", " (tag === ", Utils.getTag(field, isPacked), ") {").in();
+        if (!isPacked) {
+            writeFieldValueDecoder(field, fieldName, presenceFields.indexOf(field), highDecoder, decoderBody, "");
+        } else if (options.getTypedArrayType(field) != null) {
+            decoderBody.line("this.", fieldName, " = ",
+                    options.getPackedDecoderJavascriptForTypedArray(field, "this." + fieldName), ";");
+        } else {
+            writePackedFieldDecoder(field, fieldName, highDecoder, decoderBody);
+        }
+        decoderBody.line("tag = buffer.offset < end ? ", options.getVarint32DecoderJavascript(field), " : 0;")
+                .out()
+                .line("}");
+    }
+
+    /**
+     * Writes the decoding of a single value of a field, which is appended if the field is repeated
+     * @param field the field
+     * @param fieldName the javascript name of the field
+     * @param bit the presence bit of the field, if it is singular
+     * @param highDecoder the javascript that reads the high 32 bits of a high/low pair, or null
+     * @param decoder the buffer to write to
+     * @param terminator appended to the last statement
+     * @throws IOException
+     */
+    private void writeFieldValueDecoder(final DescriptorProtos.FieldDescriptorProto field,
+                                        final String fieldName,
+                                        final int bit,
+                                        final String highDecoder,
+                                        final IndentedLineBuffer decoder,
+                                        final String terminator) throws IOException {
+        writeFieldValueDecoder(field, fieldName, bit, highDecoder, decoder, terminator, "decode(buffer, true)");
+    }
+
+    /**
+     * Writes the decoding of a single value of a field, which is appended if the field is repeated
+     * @param field the field
+     * @param fieldName the javascript name of the field
+     * @param bit the presence bit of the field, if it is singular
+     * @param highDecoder the javascript that reads the high 32 bits of a high/low pair, or null
+     * @param decoder the buffer to write to
+     * @param terminator appended to the last statement
+     * @param messageDecode the call that decodes a message field into a new or reused instance
+     * @throws IOException
+     */
+    private void writeFieldValueDecoder(final DescriptorProtos.FieldDescriptorProto field,
+                                        final String fieldName,
+                                        final int bit,
+                                        final String highDecoder,
+                                        final IndentedLineBuffer decoder,
+                                        final String terminator,
+                                        final String messageDecode) throws IOException {
+        if (options.isLazy(field)) {
+            writeLazyFieldDecoder(decoder, field, fieldName, bit, terminator);
+        } else if (options.getTypedArrayType(field) != null) {
+            decoder.line("this.", fieldName, "Capacity_ = gotcake.proto.Message.appendToTypedArray(this.", fieldName,
+                    ", this.", fieldName, "Capacity_, ", options.getDecoderJavascriptForType(field), ");")
+                    .line("this.", fieldName, " = this.", fieldName, "Capacity_.subarray(0, this.", fieldName,
+                            ".length + 1);", terminator);
+        } else if (field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE) {
+            // a cleared instance is reused if there is one
+            final String typeName = options.getJavascriptTypeForField(field);
+            if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
+                decoder.line("this.", fieldName, ".push((this.", fieldName, "Spares_.pop() || new ", typeName,
+                        "()).", messageDecode, ");", terminator);
+            } else {
+                decoder.line("this.", fieldName, " = (this.", fieldName, "Spare_ || new ", typeName,
+                        "()).", messageDecode, ";")
+                        .line("this.", fieldName, "Spare_ = null;")
+                        .line(getPresenceWord(bit), " |= ", getPresenceMask(bit), ";", terminator);
+            }
+        } else if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
+            if (highDecoder != null) {
+                decoder.line("this.", fieldName, ".push(", options.getDecoderJavascriptForType(field), ");")
+                        .line("this.", fieldName, "High.push(", highDecoder, ");", terminator);
+            } else {
+                decoder.line("this.", fieldName, ".push(", options.getDecoderJavascriptForType(field), ");", terminator);
+            }
+        } else {
+            decoder.line("this.", fieldName, " = ", options.getDecoderJavascriptForType(field),
+                    highDecoder == null && bit < 0 ? ";" + terminator : ";");
+            if (highDecoder != null) {
+                decoder.line("this.", fieldName, "High = ", highDecoder, bit < 0 ? ";" + terminator : ";");
+            }
+            if (bit >= 0) {
+                decoder.line(getPresenceWord(bit), " |= ", getPresenceMask(bit), ";", terminator);
+            }
+        }
+    }
+
+    /**
+     * Writes a loop that decodes the values of a packed field in place
+     * @param field the packed field
+     * @param fieldName the javascript name of the field
+     * @param highDecoder the javascript that reads the high 32 bits of a high/low pair, or null
+     * @param decoder the buffer to write to
+     * @throws IOException
+     */
+    private void writePackedFieldDecoder(final DescriptorProtos.FieldDescriptorProto field,
+                                         final String fieldName,
+                                         final String highDecoder,
+                                         final IndentedLineBuffer decoder) throws IOException {
+        decoder.line("var packedEnd = ", options.getVarint32DecoderJavascript(field), ";")
+                .line("packedEnd += buffer.offset;")
+                .line("while (buffer.offset < packedEnd) {")
+                .in()
+                .line("this.", fieldName, ".push(", options.getDecoderJavascriptForType(field), ");");
+        if (highDecoder != null) {
+            decoder.line("this.", fieldName, "High.push(", highDecoder, ");");
+        }
+        decoder.out()
+                .line("}");
+    }
+
+    /**
+     * Writes the decoding of a lazy field, which records where the value is in the source buffer and skips over it
+     * @param decoder the buffer to write to
+     * @param field the lazy field
+     * @param fieldName the javascript name of the field
+     * @param bit the presence bit of the field, if it is singular
+     * @param terminator appended to the last statement
+     * @throws IOException
+     */
+    private void writeLazyFieldDecoder(final IndentedLineBuffer decoder,
+                                              final DescriptorProtos.FieldDescriptorProto field,
+                                              final String fieldName,
+                                              final int bit,
+                                              final String terminator) throws IOException {
+        if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED) {
+            decoder.line("if (this.", fieldName, "Bytes_ !== buffer.buffer) {")
+                    .in()
+                    .line("this.get", Utils.toCamelCase(field.getName(), true), "(); // values from another buffer are decoded now")
+                    .line("this.", fieldName, "Bytes_ = buffer.buffer;")
+                    .out()
+                    .line("}")
+                    .line("var length = ", options.getVarint32DecoderJavascript(field), ";")
+                    .line("this.", fieldName, "Ranges_.push(buffer.offset, length);")
+                    .line("buffer.skip(length);", terminator);
+        } else {
+            decoder.line("this.", fieldName, " = null;")
+                    .line("this.", fieldName, "Bytes_ = buffer.buffer;")
+                    .line("this.", fieldName, "Length_ = ", options.getVarint32DecoderJavascript(field), ";")
+                    .line("this.", fieldName, "Offset_ = buffer.offset;")
+                    .line("buffer.skip(this.", fieldName, "Length_);")
+                    .line(getPresenceWord(bit), " |= ", getPresenceMask(bit), ";", terminator);
+        }
+    }
+
+    /**
+     * Writes the message validator function to the given buffer
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeMessageValidatorFunction(final DescriptorProtos.DescriptorProto message,
+                                            final String javascriptName,
+                                            final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Validates that all required fields have been set")
+                .setReturnType("boolean");
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.isInitialized = function(){");
+
+        final IndentedLineBuffer validatorBody = buffer.lineBufferSection(FunctionSection.Body)
+                .in().write("return ");
+
+        // the bits of the required fields are known now, so each word of the bitfield is checked with one mask
+        final List<DescriptorProtos.FieldDescriptorProto> presenceFields = getPresenceBitFields(message);
+        final int[] requiredMasks = new int[(presenceFields.size() + 31) >>> 5];
+        for (int bit = 0; bit < presenceFields.size(); bit++) {
+            if (presenceFields.get(bit).getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED) {
+                requiredMasks[bit >>> 5] |= getPresenceMask(bit);
+            }
+        }
+
+        boolean hasRequiredField = false;
+
+        for (int word = 0; word < requiredMasks.length; word++) {
+            if (requiredMasks[word] != 0) {
+                if (hasRequiredField) {
+                    validatorBody.line(" &&");
+                } else {
+                    hasRequiredField = true;
+                    validatorBody.in().in();
+                }
+                // the bits are checked with one mask, then each field in case it was assigned directly
+                final boolean isSingleField = Integer.bitCount(requiredMasks[word]) == 1;
+                String separator = "";
+                if (!isSingleField) {
+                    validatorBody.write("((", getPresenceWord(word << 5), " & ", requiredMasks[word], ") === ",
+                            requiredMasks[word]);
+                    separator = " ||";
+                }
+                final int end = Math.min(presenceFields.size(), (word + 1) << 5);
+                for (int bit = word << 5; bit < end; bit++) {
+                    final DescriptorProtos.FieldDescriptorProto field = presenceFields.get(bit);
+                    if (field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED) {
+                        final String fieldName = Utils.toCamelCase(field.getName(), false);
+                        if (!separator.isEmpty()) {
+                            validatorBody.line(separator);
+                        }
+                        validatorBody.write("(", getPresenceBitCheck(bit), " || ",
+                                options.isLazy(field) ? Utils.toString("this.", fieldName, " !== null")
+                                        : getAssignedCheck(message, field, fieldName), ")");
+                        separator = " &&";
+                    }
+                }
+                if (!isSingleField) {
+                    validatorBody.write(")");
+                }
+            }
+        }
+
+        if (hasRequiredField) {
+            validatorBody.line(";");
+            buffer.lineBufferSection(FunctionSection.Closer)
+                    .line("};")
+                    .line();
+        } else { // if there are no required fields, do no override the isInitialized method
+            buffer.clearAll();
+            if (!buffer.isCompact()) {
+                buffer.lineBufferSection(FunctionSection.Docs)
+                        .line("// No required fields for " + javascriptName + ", using default validator implementation.")
+                        .line();
+            }
+        }
+
+
+
+    }
+
+    /**
+     * Writes the message size calculator function to the given buffer
+     * @param message the message descriptor
+     * @param javascriptName the javascript name of the message
+     * @param buffer the buffer to write to
+     */
+    public void writeMessageSizeCalculatorFunction(final DescriptorProtos.DescriptorProto message,
+                                              final String javascriptName,
+                                              final SectionBuffer buffer) throws IOException {
+
+        buffer.docSection(FunctionSection.Docs)
+                .setDescription("Computes the encoded size of the message and caches it, along with the size of each nested message")
+                .setReturnType("number");
+
+        buffer.lineBufferSection(FunctionSection.Header)
+                .line(javascriptName, ".prototype.getSerializedSize = function(){");
+
+        final IndentedLineBuffer sizeBody = buffer.lineBufferSection(FunctionSection.Body)
+                .in()
+                .line("var size = 0;");
+
+        for (final DescriptorProtos.FieldDescriptorProto field : message.getFieldList()) {
+
+            if (options.isFieldTypeSupported(field)) {
+
+                final String fieldName = Utils.toCamelCase(field.getName(), false);
+                final boolean isRepeated = field.getLabel() == DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+                final boolean isPacked = isRepeated && field.getOptions().getPacked();
+                // tag sizes and fixed value sizes are known now, so only variable sizes are computed at runtime
+                final int tagSize = Utils.getVarint32Bytes(Utils.getTag(field, isPacked)).length;
+                final int fixedSize = Utils.getFixedSize(field);
+
+                if (isPacked) {
+                    sizeBody.line("if (this.", fieldName, ".length > 0) {").in();
+                    writePackedDataSize(sizeBody, field, fieldName);
+                    sizeBody.line("size += ", tagSize, " + gotcake.proto.Buffer.getLengthDelimitedSize(dataSize);")
+                            .out()
+                            .line("}");
+                } else if (isRepeated && fixedSize > 0) {
+                    sizeBody.line("size += this.", fieldName, ".length * ", tagSize + fixedSize, ";");
+                } else if (isRepeated) {
+                    sizeBody.line("size += this.", fieldName, ".length", tagSize > 1 ? " * " + tagSize : "", ";")
+                            .line("for (var i = 0; i < this.", fieldName, ".length; ++i) {")
+                            .in()
+                            .line("size += ", options.getSizeJavascriptForType(field, "this." + fieldName + "[i]",
+                                    getHighValue(field, "this." + fieldName, "i")), ";")
+                            .out()
+                            .line("}");
+                    if (options.isLazy(field)) {
+                        sizeBody.line("for (var i = 0; i < this.", fieldName, "Ranges_.length; i += 2) {")
+                                .in()
+                                .line("size += ", tagSize, " + gotcake.proto.Buffer.getLengthDelimitedSize(this.", fieldName, "Ranges_[i + 1]);")
+                                .out()
+                                .line("}");
+                    }
+                } else {
+                    sizeBody.line("if (", getPresenceCheck(message, field, fieldName), ") {")
+                            .in()
+                            .line("size += ", fixedSize > 0
+                                    ? tagSize + fixedSize
+                                    : Utils.toString(tagSize, " + ", options.getSizeJavascriptForType(field, "this." + fieldName,
+                                            getHighValue(field, "this." + fieldName, null))), ";")
+                            .out();
+                    if (options.isLazy(field)) {
+                        sizeBody.line("} else if (this.", fieldName, "Bytes_ !== null) {")
+                                .in()
+                                .line("size += ", tagSize, " + gotcake.proto.Buffer.getLengthDelimitedSize(this.", fieldName, "Length_);")
+                                .out();
+                    }
+                    sizeBody.line("}");
+                }
+            }
+
+        }
+
+        if (options.isRetainUnknownFields(message)) {
+            sizeBody.line("if (this.unknownFields_ !== null) {")
+                    .in()
+                    .line("size += this.unknownFields_.getSerializedSize();")
+                    .out()
+                    .line("}");
+        }
+
+        sizeBody.line("this.cachedSize = size;")
+                .line("return size;");
+
+        buffer.lineBufferSection(FunctionSection.Closer).line("};").line();
 
     }
 
@@ -32,6 +32,7 @@ import com.gotcake.protobuf.proto.ClosureOptionProtos;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 
 /**
  * A factory for ClosureJavascriptGenerator
@@ -39,8 +40,9 @@ import java.nio.file.Paths;
  */
 public class ClosureJavascriptGeneratorFactory implements CodeGeneratorFactory<ClosureJavascriptGenerator> {
 
-    public ClosureJavascriptGenerator createGenerator(final DescriptorProtos.FileDescriptorSet descriptorSet) {
-        final ClosureOptions options = new ClosureOptions(descriptorSet);
+    public ClosureJavascriptGenerator createGenerator(final DescriptorProtos.FileDescriptorSet descriptorSet,
+                                                      final Map<String, String> extraArgs) {
+        final ClosureOptions options = new ClosureOptions(descriptorSet, extraArgs);
         return new ClosureJavascriptGenerator(options);
     }
 
@@ -1,19 +1,89 @@
 package com.gotcake.protobuf.closure;
 
 import com.google.protobuf.DescriptorProtos;
+import com.gotcake.protobuf.Utils;
+import com.gotcake.protobuf.proto.ClosureOptionProtos;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
- * Created by aaron on 1/11/15.
+ * Resolves how each file, message and field of a descriptor set is generated, from the closure options of the files
+ * and messages and from the generator arguments, which apply to every file that doesn't set the option itself. It
+ * also maps proto type names to the javascript names of their types, and provides the javascript that encodes,
+ * decodes and sizes each field type.
+ * The maps are only written during construction, so a single instance may be shared between threads.
+ * @author Aaron Cake
  */
 public class ClosureOptions {
 
-    private final Map<Object, String> descriptorJavascriptTypeNameMap = new HashMap<>();
+    // reads the one and two byte varints that most tags, lengths and small values fit in without a call,
+    // and leaves longer varints to the buffer, which starts again from the first byte
+    private static final String INLINE_VARINT32_JAVASCRIPT =
+            "((byte0 = bytes[buffer.offset]) < 128 ? (++buffer.offset, byte0)" +
+            " : (byte1 = bytes[buffer.offset + 1]) < 128 ? (buffer.offset += 2, (byte0 & 127) | (byte1 << 7))" +
+            " : buffer.readVarint32())";
+
+    private final Map<Object, String> descriptorJavascriptTypeNameMap = new IdentityHashMap<>();
     private final Map<String, String> typeNameJavascriptTypeNameMap = new HashMap<>();
+    private final Map<Object, DescriptorProtos.FileDescriptorProto> descriptorFileMap = new IdentityHashMap<>();
+    private final Map<DescriptorProtos.FieldDescriptorProto, DescriptorProtos.DescriptorProto> fieldMessageMap = new IdentityHashMap<>();
+    private final Map<String, DescriptorProtos.DescriptorProto> typeNameMessageDescriptorMap = new HashMap<>();
+    private final Map<String, DescriptorProtos.EnumDescriptorProto> typeNameEnumDescriptorMap = new HashMap<>();
+    private final boolean minify;
+    private final boolean inlineDecode;
+    private final boolean typedArrays;
+    private final boolean shapeStable;
+    private final boolean expectFieldOrder;
+    private final boolean inlineVarints;
+    private final boolean bytesViews;
+    private final boolean retainUnknownFields;
+    private final boolean fieldMasks;
+    private final ClosureOptionProtos.Int64Representation int64;
+    private final ClosureOptionProtos.StringDecoding stringDecoding;
+    private final ClosureOptionProtos.OptimizeFor optimizeFor;
 
     public ClosureOptions(final DescriptorProtos.FileDescriptorSet descriptorSet) {
+        this(descriptorSet, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * @param descriptorSet the descriptors being compiled
+     * @param extraArgs the generator arguments, where minify=true minifies every file,
+     *                  inlineDecode=true generates self-contained decode methods for every message and
+     *                  typedArrays=true stores every packed numeric field in a typed array,
+     *                  shapeStable=true generates type-stable fields and a @struct constructor for every message,
+     *                  int64=number|clamped_number|high_low|string sets the default representation of 64-bit integers,
+     *                  expectFieldOrder=false leaves out the in-order decoding of fields for every message,
+     *                  inlineVarints=true reads varints inline in every decoder,
+     *                  stringDecoding=auto|text_decoder|javascript sets the default decoding of strings,
+     *                  bytesViews=true decodes every bytes field as a view of the source buffer,
+     *                  retainUnknownFields=true keeps the unknown fields of every message to encode again,
+     *                  fieldMasks=true generates masked decoding for every message and
+     *                  optimizeFor=speed|code_size|decode_only|encode_only sets what messages are optimized for by default
+     */
+    public ClosureOptions(final DescriptorProtos.FileDescriptorSet descriptorSet, final Map<String, String> extraArgs) {
+        this.minify = Boolean.parseBoolean(extraArgs.get("minify"));
+        this.inlineDecode = Boolean.parseBoolean(extraArgs.get("inlineDecode"));
+        this.typedArrays = Boolean.parseBoolean(extraArgs.get("typedArrays"));
+        this.shapeStable = Boolean.parseBoolean(extraArgs.get("shapeStable"));
+        this.expectFieldOrder = !"false".equals(extraArgs.get("expectFieldOrder"));
+        this.inlineVarints = Boolean.parseBoolean(extraArgs.get("inlineVarints"));
+        this.bytesViews = Boolean.parseBoolean(extraArgs.get("bytesViews"));
+        this.retainUnknownFields = Boolean.parseBoolean(extraArgs.get("retainUnknownFields"));
+        this.fieldMasks = Boolean.parseBoolean(extraArgs.get("fieldMasks"));
+        this.int64 = extraArgs.containsKey("int64")
+                ? ClosureOptionProtos.Int64Representation.valueOf(extraArgs.get("int64").toUpperCase(Locale.ROOT))
+                : ClosureOptionProtos.Int64Representation.NUMBER;
+        this.stringDecoding = extraArgs.containsKey("stringDecoding")
+                ? ClosureOptionProtos.StringDecoding.valueOf(extraArgs.get("stringDecoding").toUpperCase(Locale.ROOT))
+                : ClosureOptionProtos.StringDecoding.AUTO;
+        this.optimizeFor = extraArgs.containsKey("optimizeFor")
+                ? ClosureOptionProtos.OptimizeFor.valueOf(extraArgs.get("optimizeFor").toUpperCase(Locale.ROOT))
+                : null;
         initTypeNameMap(descriptorSet);
     }
 
@@ -22,7 +92,7 @@ public class ClosureOptions {
             final String namespace = ClosureUtil.getNamespace(file);
             final String protoPackage = file.hasPackage() ? file.getPackage() : null;
             for (final DescriptorProtos.DescriptorProto innerMessageType: file.getMessageTypeList()) {
-                initTypeNameMapMessage(namespace, protoPackage, innerMessageType);
+                initTypeNameMapMessage(file, namespace, protoPackage, innerMessageType);
             }
             for (final DescriptorProtos.EnumDescriptorProto innerEnumType: file.getEnumTypeList()) {
                 initTypeNameMapEnum(namespace, protoPackage, innerEnumType);
@@ -30,13 +100,22 @@ public class ClosureOptions {
         }
     }
 
-    private void initTypeNameMapMessage(final String namespace, final String protoPackage, final DescriptorProtos.DescriptorProto messageType) {
+    private void initTypeNameMapMessage(final DescriptorProtos.FileDescriptorProto file,
+                                        final String namespace,
+                                        final String protoPackage,
+                                        final DescriptorProtos.DescriptorProto messageType) {
         final String typeName = ClosureUtil.concatNames(namespace, messageType.getName());
         final String protoTypeName = ClosureUtil.concatNames(protoPackage, messageType.getName());
         descriptorJavascriptTypeNameMap.put(messageType, typeName);
         typeNameJavascriptTypeNameMap.put(protoTypeName, typeName);
+        typeNameMessageDescriptorMap.put(protoTypeName, messageType);
+        descriptorFileMap.put(messageType, file);
+        for (final DescriptorProtos.FieldDescriptorProto field: messageType.getFieldList()) {
+            descriptorFileMap.put(field, file);
+            fieldMessageMap.put(field, messageType);
+        }
         for (final DescriptorProtos.DescriptorProto innerMessageType: messageType.getNestedTypeList()) {
-            initTypeNameMapMessage(typeName, protoTypeName, innerMessageType);
+            initTypeNameMapMessage(file, typeName, protoTypeName, innerMessageType);
         }
         for (final DescriptorProtos.EnumDescriptorProto innerEnumType: messageType.getEnumTypeList()) {
             initTypeNameMapEnum(typeName, protoTypeName, innerEnumType);
@@ -45,8 +124,407 @@ public class ClosureOptions {
 
     private void initTypeNameMapEnum(final String namespace, final String protoPackage, final DescriptorProtos.EnumDescriptorProto enumType) {
         final String typeName = ClosureUtil.concatNames(namespace, enumType.getName());
+        final String protoTypeName = ClosureUtil.concatNames(protoPackage, enumType.getName());
         descriptorJavascriptTypeNameMap.put(enumType, typeName);
-        typeNameJavascriptTypeNameMap.put(ClosureUtil.concatNames(protoPackage, enumType.getName()), typeName);
+        typeNameJavascriptTypeNameMap.put(protoTypeName, typeName);
+        typeNameEnumDescriptorMap.put(protoTypeName, enumType);
+    }
+
+    /**
+     * Checks if the code for a file should be minified, either for the whole run or by the file's closure options
+     */
+    public boolean isMinified(final DescriptorProtos.FileDescriptorProto file) {
+        return minify || getClosureOptions(file).getMinify();
+    }
+
+    /**
+     * Gets what the code for a message is optimized for, from the message's closure options, the closure options of
+     * its file or the generator arguments, in that order
+     * @return the optimization, or null if none is set, which leaves the choices to the other options
+     */
+    public ClosureOptionProtos.OptimizeFor getOptimizeFor(final DescriptorProtos.DescriptorProto message) {
+        final ClosureOptionProtos.ClosureMessageOptions messageOptions =
+                message.getOptions().getExtension(ClosureOptionProtos.closureMessageOptions);
+        if (messageOptions.hasOptimizeFor()) {
+            return messageOptions.getOptimizeFor();
+        }
+        final ClosureOptionProtos.ClosureOptions fileOptions = getClosureOptions(descriptorFileMap.get(message));
+        return fileOptions.hasOptimizeFor() ? fileOptions.getOptimizeFor() : optimizeFor;
+    }
+
+    /**
+     * Checks if a message is optimized for decoding speed, by SPEED or DECODE_ONLY
+     */
+    private boolean isOptimizedForSpeed(final DescriptorProtos.DescriptorProto message) {
+        final ClosureOptionProtos.OptimizeFor optimization = getOptimizeFor(message);
+        return optimization == ClosureOptionProtos.OptimizeFor.SPEED ||
+                optimization == ClosureOptionProtos.OptimizeFor.DECODE_ONLY;
+    }
+
+    /**
+     * Checks if a message is optimized for the size of its code, by CODE_SIZE
+     */
+    private boolean isOptimizedForCodeSize(final DescriptorProtos.DescriptorProto message) {
+        return getOptimizeFor(message) == ClosureOptionProtos.OptimizeFor.CODE_SIZE;
+    }
+
+    /**
+     * Checks if a message gets a decoder, which is left out of messages optimized for ENCODE_ONLY
+     */
+    public boolean hasDecoder(final DescriptorProtos.DescriptorProto message) {
+        return getOptimizeFor(message) != ClosureOptionProtos.OptimizeFor.ENCODE_ONLY;
+    }
+
+    /**
+     * Checks if a message gets getSerializedSize and an encoder, which are left out of messages optimized for
+     * DECODE_ONLY
+     */
+    public boolean hasEncoder(final DescriptorProtos.DescriptorProto message) {
+        return getOptimizeFor(message) != ClosureOptionProtos.OptimizeFor.DECODE_ONLY;
+    }
+
+    /**
+     * Gets the descriptor of the message type of a message field
+     */
+    public DescriptorProtos.DescriptorProto getMessageType(final DescriptorProtos.FieldDescriptorProto field) {
+        return typeNameMessageDescriptorMap.get(ClosureUtil.cleanTypeName(field.getTypeName()));
+    }
+
+    /**
+     * Checks if a message should get a self-contained decode method rather than a decodeFieldCallback, by what the
+     * message is optimized for, or else for the whole run or by the closure options of the message's file
+     */
+    public boolean isInlineDecode(final DescriptorProtos.DescriptorProto message) {
+        if (isOptimizedForSpeed(message)) {
+            return true;
+        }
+        if (isOptimizedForCodeSize(message)) {
+            return false;
+        }
+        return inlineDecode || getClosureOptions(descriptorFileMap.get(message)).getInlineDecode();
+    }
+
+    /**
+     * Checks if a message should be generated with type-stable field values and a @struct constructor, either for the
+     * whole run or by the closure options of the message's file
+     */
+    public boolean isShapeStable(final DescriptorProtos.DescriptorProto message) {
+        return shapeStable || getClosureOptions(descriptorFileMap.get(message)).getShapeStable();
+    }
+
+    /**
+     * Checks if the decoder of a message should try the tag of each field in field number order before dispatching,
+     * which is true unless turned off for the whole run or by the closure options of the message's file
+     */
+    public boolean isExpectFieldOrder(final DescriptorProtos.DescriptorProto message) {
+        return expectFieldOrder && !isOptimizedForCodeSize(message) &&
+                getClosureOptions(descriptorFileMap.get(message)).getExpectFieldOrder();
+    }
+
+    /**
+     * Checks if the decoders of a message should read varints inline from the bytes of the buffer, by what the message
+     * is optimized for, or else for the whole run or by the closure options of the message's file
+     */
+    public boolean isInlineVarints(final DescriptorProtos.DescriptorProto message) {
+        if (isOptimizedForSpeed(message)) {
+            return true;
+        }
+        if (isOptimizedForCodeSize(message)) {
+            return false;
+        }
+        return inlineVarints || getClosureOptions(descriptorFileMap.get(message)).getInlineVarints();
+    }
+
+    /**
+     * Checks if a message should record the fields it doesn't know and encode them again, either for the whole run or
+     * by the closure options of the message's file. Only messages with both a decoder and an encoder can pass fields
+     * through.
+     */
+    public boolean isRetainUnknownFields(final DescriptorProtos.DescriptorProto message) {
+        return hasDecoder(message) && hasEncoder(message) && isRetainUnknownFields(descriptorFileMap.get(message));
+    }
+
+    /**
+     * Checks if the messages of a file should record the fields they don't know and encode them again
+     */
+    public boolean isRetainUnknownFields(final DescriptorProtos.FileDescriptorProto file) {
+        return retainUnknownFields || getClosureOptions(file).getRetainUnknownFields();
+    }
+
+    /**
+     * Checks if a message should get a decodeMasked method and a getMaskField function, either for the whole run or by
+     * the closure options of the message's file
+     */
+    public boolean isFieldMasks(final DescriptorProtos.DescriptorProto message) {
+        return hasDecoder(message) && (fieldMasks || getClosureOptions(descriptorFileMap.get(message)).getFieldMasks());
+    }
+
+    /**
+     * Gets the javascript expression that reads a 32-bit varint in the decoders of a message, such as a tag or a length.
+     * Inline varints need the locals declared by getInlineVarintLocalsJavascript.
+     */
+    public String getVarint32DecoderJavascript(final DescriptorProtos.DescriptorProto message) {
+        return isInlineVarints(message) ? INLINE_VARINT32_JAVASCRIPT : "buffer.readVarint32()";
+    }
+
+    /**
+     * Gets the javascript expression that reads a 32-bit varint in the decoders of the message a field belongs to
+     */
+    public String getVarint32DecoderJavascript(final DescriptorProtos.FieldDescriptorProto field) {
+        return getVarint32DecoderJavascript(fieldMessageMap.get(field));
+    }
+
+    /**
+     * Gets the javascript statement that declares the locals used by inline varints
+     */
+    public String getInlineVarintLocalsJavascript() {
+        return "var bytes = buffer.bytes, byte0 = 0, byte1 = 0;";
+    }
+
+    /**
+     * Checks if the fields of a message should be decoded through a table of per-field functions indexed by field
+     * number rather than a switch on the tag, as set by the closure options of the message's file. A table lookup
+     * costs the same for any number of fields, but test/js/gotcake/closure/benchmark.js only measures it beating
+     * the switch for messages with hundreds of dense fields, so it is never chosen without the option.
+     * Messages optimized for CODE_SIZE always use a switch, which is the smaller of the two.
+     */
+    public boolean isTableDispatch(final DescriptorProtos.DescriptorProto message) {
+        return !isOptimizedForCodeSize(message) && getClosureOptions(descriptorFileMap.get(message)).getTableDispatch();
+    }
+
+    /**
+     * Checks if the presence of a field is recorded in its message's presence bitfield.
+     * Every singular field has a presence bit, while a repeated field is present when it has any values.
+     */
+    public boolean hasPresenceBit(final DescriptorProtos.FieldDescriptorProto field) {
+        return field.getLabel() != DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED;
+    }
+
+    /**
+     * Gets the javascript value of a singular field which has not been set
+     * @param field the field
+     * @param typeStable true to use a value of the field's own type when it has no default, rather than null
+     * @return the javascript expression
+     */
+    public String getDefaultValueJavascript(final DescriptorProtos.FieldDescriptorProto field, final boolean typeStable) {
+        final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
+        if (!field.hasDefaultValue()) {
+            if (!typeStable) {
+                return "null";
+            }
+            switch (type) {
+                case TYPE_BOOL:
+                    return "false";
+                case TYPE_STRING:
+                    return "''";
+                case TYPE_INT64:
+                case TYPE_UINT64:
+                case TYPE_SINT64:
+                case TYPE_FIXED64:
+                case TYPE_SFIXED64:
+                    return getInt64Representation(field) == ClosureOptionProtos.Int64Representation.STRING ? "'0'" : "0";
+                case TYPE_BYTES:
+                case TYPE_MESSAGE:
+                    return "null";
+                case TYPE_ENUM:
+                    // the first value is the default, as in the other protobuf implementations
+                    return Integer.toString(getEnumType(field).getValue(0).getNumber());
+                default:
+                    return "0";
+            }
+        }
+        final String defaultValue = field.getDefaultValue();
+        switch (type) {
+            case TYPE_STRING:
+                return toJavascriptString(defaultValue);
+            case TYPE_BYTES:
+                return "null";
+            case TYPE_ENUM:
+                return ClosureUtil.concatNames(getClosureTypeForProtoTypeName(field.getTypeName()), defaultValue);
+            case TYPE_DOUBLE:
+            case TYPE_FLOAT:
+                if (defaultValue.equals("inf")) {
+                    return "Infinity";
+                } else if (defaultValue.equals("-inf")) {
+                    return "-Infinity";
+                } else if (defaultValue.equals("nan")) {
+                    return "NaN";
+                }
+                return defaultValue;
+            case TYPE_INT64:
+            case TYPE_UINT64:
+            case TYPE_SINT64:
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                switch (getInt64Representation(field)) {
+                    case STRING:
+                        return toJavascriptString(defaultValue);
+                    case HIGH_LOW:
+                        return Long.toString(parseInt64(defaultValue) & 0xFFFFFFFFL);
+                    default:
+                        return defaultValue;
+                }
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the javascript value of the high 32 bits of a singular 64-bit field held as a high/low pair which has not
+     * been set
+     * @param field the field
+     * @param typeStable true to use 0 when the field has no default, rather than null
+     * @return the javascript expression
+     */
+    public String getHighDefaultValueJavascript(final DescriptorProtos.FieldDescriptorProto field, final boolean typeStable) {
+        if (!field.hasDefaultValue()) {
+            return typeStable ? "0" : "null";
+        }
+        final long value = parseInt64(field.getDefaultValue());
+        return Long.toString(isSignedInt64(field) ? value >> 32 : value >>> 32);
+    }
+
+    private static long parseInt64(final String value) {
+        // uint64 and fixed64 defaults may be above Long.MAX_VALUE
+        return value.startsWith("-") ? Long.parseLong(value) : Long.parseUnsignedLong(value);
+    }
+
+    private DescriptorProtos.EnumDescriptorProto getEnumType(final DescriptorProtos.FieldDescriptorProto field) {
+        return typeNameEnumDescriptorMap.get(ClosureUtil.cleanTypeName(field.getTypeName()));
+    }
+
+    private static String toJavascriptString(final String value) {
+        final StringBuilder builder = new StringBuilder(value.length() + 2).append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\'' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('\'').toString();
+    }
+
+    /**
+     * Gets the representation of a 64-bit integer field, from the field's closure field options, the closure options
+     * of its file or the whole run, in that order
+     */
+    public ClosureOptionProtos.Int64Representation getInt64Representation(final DescriptorProtos.FieldDescriptorProto field) {
+        final ClosureOptionProtos.ClosureFieldOptions fieldOptions =
+                field.getOptions().getExtension(ClosureOptionProtos.closureFieldOptions);
+        if (fieldOptions.hasInt64()) {
+            return fieldOptions.getInt64();
+        }
+        final ClosureOptionProtos.ClosureOptions fileOptions = getClosureOptions(descriptorFileMap.get(field));
+        return fileOptions.hasInt64() ? fileOptions.getInt64() : int64;
+    }
+
+    /**
+     * Gets how a string field is decoded, from the field's closure options, the closure options of its file or the
+     * generator arguments, in that order
+     */
+    public ClosureOptionProtos.StringDecoding getStringDecoding(final DescriptorProtos.FieldDescriptorProto field) {
+        final ClosureOptionProtos.ClosureFieldOptions fieldOptions =
+                field.getOptions().getExtension(ClosureOptionProtos.closureFieldOptions);
+        if (fieldOptions.hasStringDecoding()) {
+            return fieldOptions.getStringDecoding();
+        }
+        final ClosureOptionProtos.ClosureOptions fileOptions = getClosureOptions(descriptorFileMap.get(field));
+        return fileOptions.hasStringDecoding() ? fileOptions.getStringDecoding() : stringDecoding;
+    }
+
+    /**
+     * Checks if a bytes field is decoded as a Uint8Array view of the source buffer rather than copied into a new
+     * ArrayBuffer, by the field's closure field options, or else for the whole run or by the closure options of its file
+     */
+    public boolean isBytesView(final DescriptorProtos.FieldDescriptorProto field) {
+        if (field.getType() != DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES) {
+            return false;
+        }
+        final ClosureOptionProtos.ClosureFieldOptions fieldOptions =
+                field.getOptions().getExtension(ClosureOptionProtos.closureFieldOptions);
+        if (fieldOptions.hasBytesView()) {
+            return fieldOptions.getBytesView();
+        }
+        return bytesViews || getClosureOptions(descriptorFileMap.get(field)).getBytesViews();
+    }
+
+    /**
+     * Checks if a field is a 64-bit integer held as a high/low pair, with its high 32 bits in a second field
+     */
+    public boolean isHighLow(final DescriptorProtos.FieldDescriptorProto field) {
+        return isInt64(field) && getInt64Representation(field) == ClosureOptionProtos.Int64Representation.HIGH_LOW;
+    }
+
+    /**
+     * Checks if a field is a 64-bit integer of any encoding
+     */
+    public static boolean isInt64(final DescriptorProtos.FieldDescriptorProto field) {
+        switch (field.getType()) {
+            case TYPE_INT64:
+            case TYPE_UINT64:
+            case TYPE_SINT64:
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSignedInt64(final DescriptorProtos.FieldDescriptorProto field) {
+        final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
+        return type == DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64 ||
+                type == DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT64 ||
+                type == DescriptorProtos.FieldDescriptorProto.Type.TYPE_SFIXED64;
+    }
+
+    /**
+     * Gets the typed array that stores a packed repeated numeric field, if typed arrays are enabled for it either by
+     * the field's closure field options or for the whole run
+     * @param field the field
+     * @return the javascript typed array type, or null if the field is stored in a plain array
+     */
+    public String getTypedArrayType(final DescriptorProtos.FieldDescriptorProto field) {
+        if (field.getLabel() != DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED || !field.getOptions().getPacked()) {
+            return null;
+        }
+        final ClosureOptionProtos.ClosureFieldOptions fieldOptions =
+                field.getOptions().getExtension(ClosureOptionProtos.closureFieldOptions);
+        if (!(fieldOptions.hasTypedArray() ? fieldOptions.getTypedArray() : typedArrays)) {
+            return null;
+        }
+        switch (field.getType()) {
+            case TYPE_ENUM:
+            case TYPE_INT32:
+            case TYPE_SINT32:
+            case TYPE_SFIXED32:
+                return "Int32Array";
+            case TYPE_UINT32:
+            case TYPE_FIXED32:
+                return "Uint32Array";
+            case TYPE_FLOAT:
+                return "Float32Array";
+            case TYPE_DOUBLE:
+                return "Float64Array";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks if a message field is decoded lazily, by its closure field options
+     */
+    public boolean isLazy(final DescriptorProtos.FieldDescriptorProto field) {
+        return field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE &&
+                field.getOptions().getExtension(ClosureOptionProtos.closureFieldOptions).getLazy();
+    }
+
+    private static ClosureOptionProtos.ClosureOptions getClosureOptions(final DescriptorProtos.FileDescriptorProto file) {
+        return file.getOptions().getExtension(ClosureOptionProtos.closureOptions);
     }
 
     public String getClosureTypeForMessageType(final DescriptorProtos.DescriptorProto messageType) {
@@ -74,8 +552,14 @@ public class ClosureOptions {
             case TYPE_UINT32:
             case TYPE_SINT32:
                 return "number";
+            case TYPE_INT64:
+            case TYPE_UINT64:
+            case TYPE_SINT64:
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                return getInt64Representation(field) == ClosureOptionProtos.Int64Representation.STRING ? "string" : "number";
             case TYPE_BYTES:
-                return "ArrayBuffer";
+                return isBytesView(field) ? "Uint8Array" : "ArrayBuffer";
             case TYPE_STRING:
                 return "string";
             case TYPE_ENUM:
@@ -89,11 +573,6 @@ public class ClosureOptions {
     public boolean isFieldTypeSupported(DescriptorProtos.FieldDescriptorProto field) {
         final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
         switch (type) {
-            case TYPE_INT64:
-            case TYPE_FIXED64:
-            case TYPE_UINT64:
-            case TYPE_SFIXED64:
-            case TYPE_SINT64:
             case TYPE_GROUP:
                 return false;
             default:
@@ -103,23 +582,34 @@ public class ClosureOptions {
 
     public String getDecoderJavascriptForType(final DescriptorProtos.FieldDescriptorProto field) {
         final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
+        final DescriptorProtos.DescriptorProto message = fieldMessageMap.get(field);
+        final String varint = getVarint32DecoderJavascript(message);
         switch (type) {
             case TYPE_BOOL:
-                return "!!buffer.readVarint32()";
+                return "!!" + varint;
             case TYPE_ENUM:
-                return "buffer.readVarint32()";
+                return varint;
             case TYPE_INT32:
-                return "buffer.readVarint32()";
+                return varint;
             case TYPE_UINT32:
-                return "buffer.readVarint32() >>> 0";
+                return varint + " >>> 0";
             case TYPE_SINT32:
-                return "buffer.readVarint32ZigZag() | 0";
+                return isInlineVarints(message)
+                        ? "(((byte0 = " + varint + ") >>> 1) ^ -(byte0 & 1))"
+                        : "buffer.readVarint32ZigZag() | 0";
             case TYPE_BYTES:
-                return "buffer.readVBytes()";
+                return isBytesView(field) ? "buffer.readVBytesView()" : "buffer.readVBytes()";
             case TYPE_STRING:
-                return "buffer.readVString()";
+                switch (getStringDecoding(field)) {
+                    case TEXT_DECODER:
+                        return "buffer.readVStringWithTextDecoder()";
+                    case JAVASCRIPT:
+                        return "buffer.readVStringInJavascript()";
+                    default:
+                        return "buffer.readVString()";
+                }
             case TYPE_MESSAGE:
-                return "new " + getClosureTypeForProtoTypeName(field.getTypeName()) + "().decode(buffer)";
+                return "new " + getClosureTypeForProtoTypeName(field.getTypeName()) + "().decode(buffer, true)";
             case TYPE_DOUBLE:
                 return "buffer.readFloat64()";
             case TYPE_FLOAT:
@@ -128,9 +618,188 @@ public class ClosureOptions {
                 return "buffer.readUint32()";
             case TYPE_SFIXED32:
                 return "buffer.readInt32()";
+            case TYPE_INT64:
+            case TYPE_UINT64:
+                return getInt64ConversionJavascript(field, "buffer.readVarint64()");
+            case TYPE_SINT64:
+                return getInt64ConversionJavascript(field, "buffer.readVarint64().decodeZigZag()");
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                return getInt64ConversionJavascript(field, "buffer.readFixed64()");
             default:
                 throw new RuntimeException("Unsupported type: " + type.name());
         }
     }
 
+    /**
+     * Gets the javascript that converts a 64-bit value just read by a buffer to the representation of its field.
+     * The value is the buffer's scratch instance, so nothing is allocated per value.
+     * @param field the field
+     * @param value the javascript expression that reads the value
+     * @return the javascript expression, which for a high/low pair is the low 32 bits
+     */
+    private String getInt64ConversionJavascript(final DescriptorProtos.FieldDescriptorProto field, final String value) {
+        final boolean signed = isSignedInt64(field);
+        switch (getInt64Representation(field)) {
+            case CLAMPED_NUMBER:
+                return value + ".toNumber(" + signed + ", true)";
+            case HIGH_LOW:
+                return value + ".low";
+            case STRING:
+                return value + ".toDecimalString(" + signed + ")";
+            default:
+                return value + ".toNumber(" + signed + ")";
+        }
+    }
+
+    /**
+     * Gets the javascript for the high 32 bits of a 64-bit value held as a high/low pair, which must be evaluated
+     * straight after the expression from getDecoderJavascriptForType
+     * @param field the field
+     * @return the javascript expression
+     */
+    public String getHighDecoderJavascriptForType(final DescriptorProtos.FieldDescriptorProto field) {
+        return isSignedInt64(field) ? "gotcake.proto.Int64.scratch.high | 0" : "gotcake.proto.Int64.scratch.high";
+    }
+
+    /**
+     * Gets the javascript that writes a single value of a field to a buffer named buffer.
+     * Message values take more than one statement, so the generator writes them itself.
+     * @param field the field
+     * @param value the javascript expression for the value to write
+     * @return the javascript statement
+     */
+    public String getEncoderJavascriptForType(final DescriptorProtos.FieldDescriptorProto field, final String value) {
+        return getEncoderJavascriptForType(field, value, null);
+    }
+
+    /**
+     * Gets the javascript that writes a single value of a field to a buffer named buffer.
+     * Message values take more than one statement, so the generator writes them itself.
+     * @param field the field
+     * @param value the javascript expression for the value to write
+     * @param highValue the javascript expression for the high 32 bits of the value, if the field is a high/low pair
+     * @return the javascript statement
+     */
+    public String getEncoderJavascriptForType(final DescriptorProtos.FieldDescriptorProto field,
+                                              final String value,
+                                              final String highValue) {
+        final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
+        switch (type) {
+            case TYPE_BOOL:
+                return "buffer.writeByte(" + value + " ? 1 : 0);";
+            case TYPE_ENUM:
+            case TYPE_INT32:
+                return "buffer.writeVarint32(" + value + ");";
+            case TYPE_UINT32:
+                return "buffer.writeVarint32(" + value + " >>> 0);";
+            case TYPE_SINT32:
+                return "buffer.writeVarint32ZigZag(" + value + ");";
+            case TYPE_BYTES:
+                return (isBytesView(field) ? "buffer.writeVBytesView(" : "buffer.writeVBytes(") + value + ");";
+            case TYPE_STRING:
+                return "buffer.writeVString(" + value + ");";
+            case TYPE_DOUBLE:
+                return "buffer.writeFloat64(" + value + ");";
+            case TYPE_FLOAT:
+                return "buffer.writeFloat32(" + value + ");";
+            case TYPE_FIXED32:
+                return "buffer.writeUint32(" + value + ");";
+            case TYPE_SFIXED32:
+                return "buffer.writeInt32(" + value + ");";
+            case TYPE_INT64:
+            case TYPE_UINT64:
+                return "buffer.writeVarint64(" + getInt64Javascript(field, value, highValue) + ");";
+            case TYPE_SINT64:
+                return "buffer.writeVarint64(" + getInt64Javascript(field, value, highValue) + ".encodeZigZag());";
+            case TYPE_FIXED64:
+            case TYPE_SFIXED64:
+                return "buffer.writeFixed64(" + getInt64Javascript(field, value, highValue) + ");";
+            default:
+                throw new RuntimeException("Unsupported type: " + type.name());
+        }
+    }
+
+    /**
+     * Gets the javascript that computes the encoded size of a single value of a field whose size varies with its value
+     * @param field the field
+     * @param value the javascript expression for the value
+     * @return the javascript expression for the size in bytes, excluding the tag
+     */
+    public String getSizeJavascriptForType(final DescriptorProtos.FieldDescriptorProto field, final String value) {
+        return getSizeJavascriptForType(field, value, null);
+    }
+
+    /**
+     * Gets the javascript that computes the encoded size of a single value of a field whose size varies with its value
+     * @param field the field
+     * @param value the javascript expression for the value
+     * @param highValue the javascript expression for the high 32 bits of the value, if the field is a high/low pair
+     * @return the javascript expression for the size in bytes, excluding the tag
+     */
+    public String getSizeJavascriptForType(final DescriptorProtos.FieldDescriptorProto field,
+                                           final String value,
+                                           final String highValue) {
+        final DescriptorProtos.FieldDescriptorProto.Type type = field.getType();
+        switch (type) {
+            case TYPE_ENUM:
+            case TYPE_INT32:
+                return "gotcake.proto.Buffer.getVarint32Size(" + value + ")";
+            case TYPE_UINT32:
+                return "gotcake.proto.Buffer.getVarint32Size(" + value + " >>> 0)";
+            case TYPE_SINT32:
+                return "gotcake.proto.Buffer.getVarint32ZigZagSize(" + value + ")";
+            case TYPE_BYTES:
+                return "gotcake.proto.Buffer.getLengthDelimitedSize(" + value + ".byteLength)";
+            case TYPE_STRING:
+                return "gotcake.proto.Buffer.getLengthDelimitedSize(gotcake.proto.Buffer.getUtf8Size(" + value + "))";
+            case TYPE_MESSAGE:
+                return "gotcake.proto.Buffer.getLengthDelimitedSize(" + value + ".getSerializedSize())";
+            case TYPE_INT64:
+            case TYPE_UINT64:
+                return getInt64Javascript(field, value, highValue) + ".getVarintSize()";
+            case TYPE_SINT64:
+                return getInt64Javascript(field, value, highValue) + ".encodeZigZag().getVarintSize()";
+            default:
+                throw new RuntimeException("Unsupported type: " + type.name());
+        }
+    }
+
+    /**
+     * Gets the javascript that loads a 64-bit value into the scratch instance, ready to be measured or written
+     * @param field the field
+     * @param value the javascript expression for the value
+     * @param highValue the javascript expression for the high 32 bits of the value, if the field is a high/low pair
+     * @return the javascript expression for the scratch instance
+     */
+    private String getInt64Javascript(final DescriptorProtos.FieldDescriptorProto field,
+                                      final String value,
+                                      final String highValue) {
+        switch (getInt64Representation(field)) {
+            case HIGH_LOW:
+                return "gotcake.proto.Int64.scratch.setParts(" + value + ", " + highValue + ")";
+            case STRING:
+                return "gotcake.proto.Int64.scratch.setDecimalString(" + value + ")";
+            default:
+                return "gotcake.proto.Int64.scratch.setNumber(" + value + ")";
+        }
+    }
+
+    /**
+     * Gets the javascript that reads all of the values of a packed field stored in a typed array from a buffer named buffer
+     * @param field the field
+     * @param existing the javascript expression for the values already decoded for the field
+     * @return the javascript expression for the new typed array
+     */
+    public String getPackedDecoderJavascriptForTypedArray(final DescriptorProtos.FieldDescriptorProto field, final String existing) {
+        final String typedArrayType = getTypedArrayType(field);
+        if (field.getType() == DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT32) {
+            return "buffer.readPackedVarint32ZigZag(" + existing + ")";
+        } else if (Utils.getFixedSize(field) > 0) {
+            return "buffer.readPackedFixed(" + typedArrayType + ", " + existing + ")";
+        } else {
+            return "buffer.readPackedVarint32(" + typedArrayType + ", " + existing + ")";
+        }
+    }
+
 }
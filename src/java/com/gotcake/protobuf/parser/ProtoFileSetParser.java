@@ -0,0 +1,269 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf.parser;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.ExtensionRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * An in-process replacement for {@code protoc --descriptor_set_out}. It parses a set of proto files and their
+ * imports, found in the given search dirs, and resolves the named types of every field.
+ * @author Aaron Cake
+ */
+public class ProtoFileSetParser {
+
+    private enum SymbolType {
+        PACKAGE,
+        MESSAGE,
+        ENUM
+    }
+
+    private final List<String> searchDirs;
+    private final ExtensionRegistry extensionRegistry;
+    private final LinkedHashMap<String, DescriptorProtos.FileDescriptorProto.Builder> files = new LinkedHashMap<>();
+    private final HashSet<String> loading = new HashSet<>();
+    private final HashMap<String, SymbolType> symbols = new HashMap<>();
+
+    /**
+     * Creates a new parser
+     * @param searchDirs the canonical paths of the directories to search for imports
+     * @param extensionRegistry the registry used to resolve custom options
+     */
+    public ProtoFileSetParser(final Collection<String> searchDirs, final ExtensionRegistry extensionRegistry) {
+        this.searchDirs = new ArrayList<>(searchDirs);
+        this.extensionRegistry = extensionRegistry;
+    }
+
+    /**
+     * Parses the given files, producing the same descriptor set as protoc would for the same arguments
+     * @param protoFiles the canonical paths of the files to parse, each of which must be inside a search dir
+     * @return a descriptor set containing the given files, without their imports
+     * @throws IOException if a file can't be read, parsed or resolved
+     */
+    public DescriptorProtos.FileDescriptorSet parse(final Collection<String> protoFiles) throws IOException {
+        final LinkedHashSet<String> inputNames = new LinkedHashSet<>();
+        for (final String protoFile: protoFiles) {
+            final String name = getNameInSearchDir(protoFile);
+            load(name, new File(protoFile));
+            inputNames.add(name);
+        }
+
+        for (final DescriptorProtos.FileDescriptorProto.Builder file: files.values()) {
+            addSymbols(file);
+        }
+
+        final DescriptorProtos.FileDescriptorSet.Builder descriptorSet = DescriptorProtos.FileDescriptorSet.newBuilder();
+        for (final String name: inputNames) {
+            final DescriptorProtos.FileDescriptorProto.Builder file = files.get(name);
+            resolveFile(file);
+            descriptorSet.addFile(file);
+        }
+        return descriptorSet.build();
+    }
+
+    private String getNameInSearchDir(final String protoFile) throws ProtoParseException {
+        for (final String searchDir: searchDirs) {
+            final String prefix = searchDir.endsWith(File.separator) ? searchDir : searchDir + File.separator;
+            if (protoFile.startsWith(prefix)) {
+                return protoFile.substring(prefix.length()).replace(File.separatorChar, '/');
+            }
+        }
+        throw new ProtoParseException(protoFile, "File does not reside within any search dir.");
+    }
+
+    private File findImport(final String name, final String importedBy) throws ProtoParseException {
+        for (final String searchDir: searchDirs) {
+            final File file = new File(searchDir, name);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new ProtoParseException(importedBy, "Import \"" + name + "\" was not found in any search dir.");
+    }
+
+    private void load(final String name, final File file) throws IOException {
+        if (files.containsKey(name)) {
+            return;
+        }
+        if (!loading.add(name)) {
+            throw new ProtoParseException(name, "File recursively imports itself.");
+        }
+        final String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        final DescriptorProtos.FileDescriptorProto.Builder builder =
+                new ProtoParser(name, source, extensionRegistry).parse();
+        for (final String dependency: builder.getDependencyList()) {
+            load(dependency, findImport(dependency, name));
+        }
+        loading.remove(name);
+        files.put(name, builder);
+    }
+
+    private void addSymbols(final DescriptorProtos.FileDescriptorProto.Builder file) {
+        final String packageName = file.getPackage();
+        if (!packageName.isEmpty()) {
+            int dot = -1;
+            do {
+                dot = packageName.indexOf('.', dot + 1);
+                final String prefix = dot < 0 ? packageName : packageName.substring(0, dot);
+                if (!symbols.containsKey(prefix)) {
+                    symbols.put(prefix, SymbolType.PACKAGE);
+                }
+            } while (dot >= 0);
+        }
+        for (final DescriptorProtos.DescriptorProto.Builder message: file.getMessageTypeBuilderList()) {
+            addSymbols(packageName, message);
+        }
+        for (final DescriptorProtos.EnumDescriptorProto.Builder enumType: file.getEnumTypeBuilderList()) {
+            symbols.put(ProtoParser.concatNames(packageName, enumType.getName()), SymbolType.ENUM);
+        }
+    }
+
+    private void addSymbols(final String scope, final DescriptorProtos.DescriptorProto.Builder message) {
+        final String name = ProtoParser.concatNames(scope, message.getName());
+        symbols.put(name, SymbolType.MESSAGE);
+        for (final DescriptorProtos.DescriptorProto.Builder nested: message.getNestedTypeBuilderList()) {
+            addSymbols(name, nested);
+        }
+        for (final DescriptorProtos.EnumDescriptorProto.Builder enumType: message.getEnumTypeBuilderList()) {
+            symbols.put(ProtoParser.concatNames(name, enumType.getName()), SymbolType.ENUM);
+        }
+    }
+
+    private void resolveFile(final DescriptorProtos.FileDescriptorProto.Builder file) throws ProtoParseException {
+        final String packageName = file.getPackage();
+        for (final DescriptorProtos.DescriptorProto.Builder message: file.getMessageTypeBuilderList()) {
+            resolveMessage(file.getName(), packageName, message);
+        }
+        for (final DescriptorProtos.FieldDescriptorProto.Builder extension: file.getExtensionBuilderList()) {
+            resolveField(file.getName(), packageName, extension);
+        }
+        for (final DescriptorProtos.ServiceDescriptorProto.Builder service: file.getServiceBuilderList()) {
+            final String scope = ProtoParser.concatNames(packageName, service.getName());
+            for (final DescriptorProtos.MethodDescriptorProto.Builder method: service.getMethodBuilderList()) {
+                method.setInputType(resolveMessageType(file.getName(), scope, method.getInputType()));
+                method.setOutputType(resolveMessageType(file.getName(), scope, method.getOutputType()));
+            }
+        }
+    }
+
+    private void resolveMessage(final String fileName,
+                                final String scope,
+                                final DescriptorProtos.DescriptorProto.Builder message) throws ProtoParseException {
+        final String name = ProtoParser.concatNames(scope, message.getName());
+        for (final DescriptorProtos.FieldDescriptorProto.Builder field: message.getFieldBuilderList()) {
+            resolveField(fileName, name, field);
+        }
+        for (final DescriptorProtos.FieldDescriptorProto.Builder extension: message.getExtensionBuilderList()) {
+            resolveField(fileName, name, extension);
+        }
+        for (final DescriptorProtos.DescriptorProto.Builder nested: message.getNestedTypeBuilderList()) {
+            resolveMessage(fileName, name, nested);
+        }
+    }
+
+    private void resolveField(final String fileName,
+                              final String scope,
+                              final DescriptorProtos.FieldDescriptorProto.Builder field) throws ProtoParseException {
+        if (field.hasExtendee()) {
+            field.setExtendee(resolveMessageType(fileName, scope, field.getExtendee()));
+        }
+        if (!field.hasTypeName()) {
+            return;
+        }
+        final String typeName = lookupType(scope, field.getTypeName());
+        if (typeName == null) {
+            throw new ProtoParseException(fileName, "\"" + field.getTypeName() + "\" is not defined.");
+        }
+        if (field.hasType()) {
+            // groups already know their type
+            field.setTypeName("." + typeName);
+        } else if (symbols.get(typeName) == SymbolType.ENUM) {
+            field.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_ENUM)
+                    .setTypeName("." + typeName);
+        } else {
+            if (field.hasDefaultValue()) {
+                throw new ProtoParseException(fileName, "Messages can't have default values.");
+            }
+            field.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                    .setTypeName("." + typeName);
+        }
+    }
+
+    private String resolveMessageType(final String fileName, final String scope, final String name) throws ProtoParseException {
+        final String typeName = lookupType(scope, name);
+        if (typeName == null || symbols.get(typeName) != SymbolType.MESSAGE) {
+            throw new ProtoParseException(fileName, "\"" + name + "\" is not a message type.");
+        }
+        return "." + typeName;
+    }
+
+    /**
+     * Looks up a type name relative to a scope, following the C++ style scoping rules used by protoc: the innermost
+     * scope containing the first component of the name is used, and the rest of the name must be found within it.
+     * @param scope the full name of the scope the name appears in
+     * @param name the type name, which is absolute if it starts with a '.'
+     * @return the full name of the type without a leading '.', or null if it was not found
+     */
+    private String lookupType(final String scope, final String name) {
+        if (name.startsWith(".")) {
+            return isType(name.substring(1)) ? name.substring(1) : null;
+        }
+        final int dot = name.indexOf('.');
+        final String firstPart = dot < 0 ? name : name.substring(0, dot);
+        String s = scope;
+        while (true) {
+            final String candidate = ProtoParser.concatNames(s, firstPart);
+            final SymbolType type = symbols.get(candidate);
+            if (type != null) {
+                if (dot < 0) {
+                    if (type != SymbolType.PACKAGE) {
+                        return candidate;
+                    }
+                } else if (type != SymbolType.ENUM) {
+                    // an aggregate was found, so the rest of the name must be inside it
+                    final String fullName = ProtoParser.concatNames(s, name);
+                    return isType(fullName) ? fullName : null;
+                }
+            }
+            if (s == null || s.isEmpty()) {
+                return null;
+            }
+            final int lastDot = s.lastIndexOf('.');
+            s = lastDot < 0 ? null : s.substring(0, lastDot);
+        }
+    }
+
+    private boolean isType(final String fullName) {
+        final SymbolType type = symbols.get(fullName);
+        return type == SymbolType.MESSAGE || type == SymbolType.ENUM;
+    }
+
+}
@@ -0,0 +1,845 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf.parser;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import com.gotcake.protobuf.parser.ProtoTokenizer.Token;
+import com.gotcake.protobuf.parser.ProtoTokenizer.TokenType;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the source of a single proto file into a {@code FileDescriptorProto}.
+ * Named field types are left unresolved, with the type unset and the type name as written, until
+ * {@link ProtoFileSetParser} resolves them against all of the loaded files. Options are interpreted as they are
+ * parsed, with custom options looked up in the extension registry.
+ * @author Aaron Cake
+ */
+public class ProtoParser {
+
+    private static final Map<String, DescriptorProtos.FieldDescriptorProto.Type> SCALAR_TYPES = new HashMap<>();
+    private static final Map<String, DescriptorProtos.FieldDescriptorProto.Label> LABELS = new HashMap<>();
+
+    private static final int MAX_FIELD_NUMBER = 536870911;
+    private static final BigInteger MIN_INT32 = BigInteger.valueOf(Integer.MIN_VALUE);
+    private static final BigInteger MAX_INT32 = BigInteger.valueOf(Integer.MAX_VALUE);
+    private static final BigInteger MAX_UINT32 = BigInteger.valueOf(0xFFFFFFFFL);
+    private static final BigInteger MIN_INT64 = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger MAX_INT64 = BigInteger.valueOf(Long.MAX_VALUE);
+    private static final BigInteger MAX_UINT64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    static {
+        SCALAR_TYPES.put("double", DescriptorProtos.FieldDescriptorProto.Type.TYPE_DOUBLE);
+        SCALAR_TYPES.put("float", DescriptorProtos.FieldDescriptorProto.Type.TYPE_FLOAT);
+        SCALAR_TYPES.put("int64", DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT64);
+        SCALAR_TYPES.put("uint64", DescriptorProtos.FieldDescriptorProto.Type.TYPE_UINT64);
+        SCALAR_TYPES.put("int32", DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32);
+        SCALAR_TYPES.put("fixed64", DescriptorProtos.FieldDescriptorProto.Type.TYPE_FIXED64);
+        SCALAR_TYPES.put("fixed32", DescriptorProtos.FieldDescriptorProto.Type.TYPE_FIXED32);
+        SCALAR_TYPES.put("bool", DescriptorProtos.FieldDescriptorProto.Type.TYPE_BOOL);
+        SCALAR_TYPES.put("string", DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING);
+        SCALAR_TYPES.put("bytes", DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES);
+        SCALAR_TYPES.put("uint32", DescriptorProtos.FieldDescriptorProto.Type.TYPE_UINT32);
+        SCALAR_TYPES.put("sfixed32", DescriptorProtos.FieldDescriptorProto.Type.TYPE_SFIXED32);
+        SCALAR_TYPES.put("sfixed64", DescriptorProtos.FieldDescriptorProto.Type.TYPE_SFIXED64);
+        SCALAR_TYPES.put("sint32", DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT32);
+        SCALAR_TYPES.put("sint64", DescriptorProtos.FieldDescriptorProto.Type.TYPE_SINT64);
+
+        LABELS.put("optional", DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL);
+        LABELS.put("required", DescriptorProtos.FieldDescriptorProto.Label.LABEL_REQUIRED);
+        LABELS.put("repeated", DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED);
+    }
+
+    private final String fileName;
+    private final ProtoTokenizer tokenizer;
+    private final ExtensionRegistry extensionRegistry;
+
+    private Token current;
+    private String packageName = null;
+
+    /**
+     * Creates a new parser
+     * @param fileName the name of the file, relative to the search dir it was found in
+     * @param source the contents of the file
+     * @param extensionRegistry the registry used to resolve custom options
+     */
+    public ProtoParser(final String fileName, final String source, final ExtensionRegistry extensionRegistry) {
+        this.fileName = fileName;
+        this.tokenizer = new ProtoTokenizer(fileName, source);
+        this.extensionRegistry = extensionRegistry;
+    }
+
+    /**
+     * Parses the file
+     * @return the file descriptor, with named types not yet resolved
+     * @throws ProtoParseException
+     */
+    public DescriptorProtos.FileDescriptorProto.Builder parse() throws ProtoParseException {
+        final DescriptorProtos.FileDescriptorProto.Builder file = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName(fileName);
+        advance();
+        while (current.type != TokenType.END) {
+            parseTopLevelStatement(file);
+        }
+        return file;
+    }
+
+    private void parseTopLevelStatement(final DescriptorProtos.FileDescriptorProto.Builder file) throws ProtoParseException {
+        if (tryConsume(";")) {
+            return;
+        }
+        if (tryConsume("syntax")) {
+            consume("=");
+            final String syntax = consumeString();
+            if (!"proto2".equals(syntax)) {
+                throw error("Unrecognized syntax identifier \"" + syntax + "\".  This parser only recognizes \"proto2\".");
+            }
+            consume(";");
+        } else if (tryConsume("package")) {
+            if (file.hasPackage()) {
+                throw error("Multiple package definitions.");
+            }
+            packageName = consumeFullIdentifier("Expected identifier.");
+            file.setPackage(packageName);
+            consume(";");
+        } else if (tryConsume("import")) {
+            if (tryConsume("public")) {
+                file.addPublicDependency(file.getDependencyCount());
+            } else if (tryConsume("weak")) {
+                file.addWeakDependency(file.getDependencyCount());
+            }
+            file.addDependency(consumeString());
+            consume(";");
+        } else if (tryConsume("option")) {
+            parseOption(file.getOptionsBuilder(), packageName);
+            consume(";");
+        } else if (tryConsume("message")) {
+            parseMessage(file.addMessageTypeBuilder(), packageName);
+        } else if (tryConsume("enum")) {
+            parseEnum(file.addEnumTypeBuilder(), packageName);
+        } else if (tryConsume("service")) {
+            parseService(file.addServiceBuilder(), packageName);
+        } else if (tryConsume("extend")) {
+            final List<DescriptorProtos.DescriptorProto.Builder> groups = new ArrayList<>();
+            for (final DescriptorProtos.FieldDescriptorProto.Builder field: parseExtend(packageName, groups)) {
+                file.addExtension(field);
+            }
+            for (final DescriptorProtos.DescriptorProto.Builder group: groups) {
+                file.addMessageType(group);
+            }
+        } else {
+            throw error("Expected top-level statement (e.g. \"message\").");
+        }
+    }
+
+    private void parseMessage(final DescriptorProtos.DescriptorProto.Builder message, final String scope) throws ProtoParseException {
+        final String name = consumeIdentifier("Expected message name.");
+        message.setName(name);
+        parseMessageBlock(message, concatNames(scope, name));
+    }
+
+    private void parseMessageBlock(final DescriptorProtos.DescriptorProto.Builder message, final String scope) throws ProtoParseException {
+        consume("{");
+        while (!tryConsume("}")) {
+            if (current.type == TokenType.END) {
+                throw error("Reached end of input in message definition (missing '}').");
+            }
+            if (tryConsume(";")) {
+                continue;
+            }
+            if (tryConsume("message")) {
+                parseMessage(message.addNestedTypeBuilder(), scope);
+            } else if (tryConsume("enum")) {
+                parseEnum(message.addEnumTypeBuilder(), scope);
+            } else if (tryConsume("extensions")) {
+                parseExtensions(message);
+            } else if (tryConsume("extend")) {
+                final List<DescriptorProtos.DescriptorProto.Builder> groups = new ArrayList<>();
+                for (final DescriptorProtos.FieldDescriptorProto.Builder field: parseExtend(scope, groups)) {
+                    message.addExtension(field);
+                }
+                for (final DescriptorProtos.DescriptorProto.Builder group: groups) {
+                    message.addNestedType(group);
+                }
+            } else if (tryConsume("option")) {
+                parseOption(message.getOptionsBuilder(), scope);
+                consume(";");
+            } else {
+                final DescriptorProtos.FieldDescriptorProto.Builder field = DescriptorProtos.FieldDescriptorProto.newBuilder();
+                final DescriptorProtos.DescriptorProto.Builder group = parseField(field, scope);
+                message.addField(field);
+                if (group != null) {
+                    message.addNestedType(group);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a field declaration
+     * @param field the builder to parse into
+     * @param scope the full name of the enclosing message, or the package
+     * @return the nested type of the field if it is a group, or null otherwise
+     * @throws ProtoParseException
+     */
+    private DescriptorProtos.DescriptorProto.Builder parseField(final DescriptorProtos.FieldDescriptorProto.Builder field,
+                                                                final String scope) throws ProtoParseException {
+        final DescriptorProtos.FieldDescriptorProto.Label label = LABELS.get(current.text);
+        if (label == null || current.type != TokenType.IDENTIFIER) {
+            throw error("Expected \"required\", \"optional\", or \"repeated\".");
+        }
+        advance();
+        field.setLabel(label);
+
+        final boolean isGroup = tryConsume("group");
+        if (isGroup) {
+            field.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_GROUP);
+        } else if (current.type == TokenType.IDENTIFIER && SCALAR_TYPES.containsKey(current.text)) {
+            field.setType(SCALAR_TYPES.get(current.text));
+            advance();
+        } else {
+            field.setTypeName(consumeTypeName());
+        }
+
+        final String name = consumeIdentifier("Expected field name.");
+        DescriptorProtos.DescriptorProto.Builder group = null;
+        if (isGroup) {
+            if (!Character.isUpperCase(name.charAt(0))) {
+                throw error("Group names must start with a capital letter.");
+            }
+            field.setName(name.toLowerCase());
+            field.setTypeName(name);
+            group = DescriptorProtos.DescriptorProto.newBuilder().setName(name);
+        } else {
+            field.setName(name);
+        }
+
+        consume("=", "Missing field number.");
+        field.setNumber(consumeFieldNumber());
+
+        if (tryConsume("[")) {
+            do {
+                if (lookingAt("default")) {
+                    parseDefaultAssignment(field);
+                } else {
+                    parseOption(field.getOptionsBuilder(), scope);
+                }
+            } while (tryConsume(","));
+            consume("]");
+        }
+
+        if (group != null) {
+            parseMessageBlock(group, concatNames(scope, name));
+        } else {
+            consume(";");
+        }
+        return group;
+    }
+
+    private void parseDefaultAssignment(final DescriptorProtos.FieldDescriptorProto.Builder field) throws ProtoParseException {
+        if (field.hasDefaultValue()) {
+            throw error("Already set option \"default\".");
+        }
+        consume("default");
+        consume("=");
+
+        if (!field.hasType()) {
+            // a named type, which can only have a default if it turns out to be an enum
+            field.setDefaultValue(consumeIdentifier("Expected identifier."));
+            return;
+        }
+
+        switch (field.getType()) {
+            case TYPE_INT32:
+            case TYPE_SINT32:
+            case TYPE_SFIXED32:
+                field.setDefaultValue(consumeSignedInteger(MIN_INT32, MAX_INT32).toString());
+                break;
+            case TYPE_INT64:
+            case TYPE_SINT64:
+            case TYPE_SFIXED64:
+                field.setDefaultValue(consumeSignedInteger(MIN_INT64, MAX_INT64).toString());
+                break;
+            case TYPE_UINT32:
+            case TYPE_FIXED32:
+                field.setDefaultValue(consumeSignedInteger(BigInteger.ZERO, MAX_UINT32).toString());
+                break;
+            case TYPE_UINT64:
+            case TYPE_FIXED64:
+                field.setDefaultValue(consumeSignedInteger(BigInteger.ZERO, MAX_UINT64).toString());
+                break;
+            case TYPE_FLOAT:
+                field.setDefaultValue(formatFloat((float) consumeDouble()));
+                break;
+            case TYPE_DOUBLE:
+                field.setDefaultValue(formatDouble(consumeDouble()));
+                break;
+            case TYPE_BOOL:
+                field.setDefaultValue(Boolean.toString(consumeBoolean()));
+                break;
+            case TYPE_STRING:
+                field.setDefaultValue(consumeString());
+                break;
+            case TYPE_BYTES:
+                field.setDefaultValue(escapeBytes(consumeStringBytes()));
+                break;
+            default:
+                throw error("Messages can't have default values.");
+        }
+    }
+
+    private void parseEnum(final DescriptorProtos.EnumDescriptorProto.Builder enumType, final String scope) throws ProtoParseException {
+        final String name = consumeIdentifier("Expected enum name.");
+        enumType.setName(name);
+        final String enumScope = concatNames(scope, name);
+        consume("{");
+        while (!tryConsume("}")) {
+            if (current.type == TokenType.END) {
+                throw error("Reached end of input in enum definition (missing '}').");
+            }
+            if (tryConsume(";")) {
+                continue;
+            }
+            if (tryConsume("option")) {
+                parseOption(enumType.getOptionsBuilder(), enumScope);
+                consume(";");
+                continue;
+            }
+            final DescriptorProtos.EnumValueDescriptorProto.Builder value = enumType.addValueBuilder();
+            value.setName(consumeIdentifier("Expected enum constant name."));
+            consume("=", "Missing numeric value for enum constant.");
+            value.setNumber(consumeSignedInteger(MIN_INT32, MAX_INT32).intValue());
+            if (tryConsume("[")) {
+                do {
+                    parseOption(value.getOptionsBuilder(), enumScope);
+                } while (tryConsume(","));
+                consume("]");
+            }
+            consume(";");
+        }
+    }
+
+    private void parseService(final DescriptorProtos.ServiceDescriptorProto.Builder service, final String scope) throws ProtoParseException {
+        final String name = consumeIdentifier("Expected service name.");
+        service.setName(name);
+        final String serviceScope = concatNames(scope, name);
+        consume("{");
+        while (!tryConsume("}")) {
+            if (current.type == TokenType.END) {
+                throw error("Reached end of input in service definition (missing '}').");
+            }
+            if (tryConsume(";")) {
+                continue;
+            }
+            if (tryConsume("option")) {
+                parseOption(service.getOptionsBuilder(), serviceScope);
+                consume(";");
+                continue;
+            }
+            if (!tryConsume("rpc")) {
+                throw error("Expected \"rpc\".");
+            }
+            final DescriptorProtos.MethodDescriptorProto.Builder method = service.addMethodBuilder();
+            method.setName(consumeIdentifier("Expected method name."));
+            consume("(");
+            method.setInputType(consumeTypeName());
+            consume(")");
+            consume("returns");
+            consume("(");
+            method.setOutputType(consumeTypeName());
+            consume(")");
+            if (tryConsume("{")) {
+                while (!tryConsume("}")) {
+                    if (current.type == TokenType.END) {
+                        throw error("Reached end of input in method options (missing '}').");
+                    }
+                    if (tryConsume(";")) {
+                        continue;
+                    }
+                    consume("option");
+                    parseOption(method.getOptionsBuilder(), serviceScope);
+                    consume(";");
+                }
+                tryConsume(";");
+            } else {
+                consume(";");
+            }
+        }
+    }
+
+    private List<DescriptorProtos.FieldDescriptorProto.Builder> parseExtend(final String scope,
+                                                                          final List<DescriptorProtos.DescriptorProto.Builder> groups) throws ProtoParseException {
+        final String extendee = consumeTypeName();
+        final List<DescriptorProtos.FieldDescriptorProto.Builder> fields = new ArrayList<>();
+        consume("{");
+        while (!tryConsume("}")) {
+            if (current.type == TokenType.END) {
+                throw error("Reached end of input in extend definition (missing '}').");
+            }
+            if (tryConsume(";")) {
+                continue;
+            }
+            final DescriptorProtos.FieldDescriptorProto.Builder field = DescriptorProtos.FieldDescriptorProto.newBuilder()
+                    .setExtendee(extendee);
+            final DescriptorProtos.DescriptorProto.Builder group = parseField(field, scope);
+            fields.add(field);
+            if (group != null) {
+                groups.add(group);
+            }
+        }
+        return fields;
+    }
+
+    private void parseExtensions(final DescriptorProtos.DescriptorProto.Builder message) throws ProtoParseException {
+        do {
+            final int start = consumeFieldNumber();
+            int end = start;
+            if (tryConsume("to")) {
+                end = tryConsume("max") ? MAX_FIELD_NUMBER : consumeFieldNumber();
+            }
+            message.addExtensionRangeBuilder()
+                    .setStart(start)
+                    .setEnd(end + 1);
+        } while (tryConsume(","));
+        consume(";");
+    }
+
+    /**
+     * Parses an option assignment, such as {@code deprecated = true} or {@code (my_option).sub_field = "x"},
+     * and sets the option in the builder
+     * @param options the options message to set the option in
+     * @param scope the scope custom option names are resolved against
+     * @throws ProtoParseException
+     */
+    private void parseOption(final Message.Builder options, final String scope) throws ProtoParseException {
+        final List<OptionNamePart> parts = new ArrayList<>();
+        do {
+            if (tryConsume("(")) {
+                final String name = (tryConsume(".") ? "." : "") + consumeFullIdentifier("Expected identifier.");
+                consume(")");
+                parts.add(new OptionNamePart(name, true));
+            } else {
+                parts.add(new OptionNamePart(consumeIdentifier("Expected identifier."), false));
+            }
+        } while (tryConsume("."));
+        consume("=");
+        interpretOption(options, parts, 0, scope);
+    }
+
+    private void interpretOption(final Message.Builder builder,
+                                 final List<OptionNamePart> parts,
+                                 final int index,
+                                 final String scope) throws ProtoParseException {
+        final OptionNamePart part = parts.get(index);
+        final Descriptors.FieldDescriptor field = findOptionField(builder, part, scope);
+        if (index < parts.size() - 1) {
+            if (field.getJavaType() != Descriptors.FieldDescriptor.JavaType.MESSAGE || field.isRepeated()) {
+                throw error("Option \"" + part + "\" is an atomic type, not a message.");
+            }
+            final Message.Builder child = builder.hasField(field)
+                    ? ((Message) builder.getField(field)).toBuilder()
+                    : newBuilderForField(builder, field);
+            interpretOption(child, parts, index + 1, scope);
+            builder.setField(field, child.build());
+        } else if (field.isRepeated()) {
+            builder.addRepeatedField(field, parseOptionValue(builder, field, part));
+        } else {
+            if (builder.hasField(field)) {
+                throw error("Option \"" + part + "\" was already set.");
+            }
+            builder.setField(field, parseOptionValue(builder, field, part));
+        }
+    }
+
+    private Descriptors.FieldDescriptor findOptionField(final Message.Builder builder,
+                                                        final OptionNamePart part,
+                                                        final String scope) throws ProtoParseException {
+        final Descriptors.Descriptor optionsType = builder.getDescriptorForType();
+        if (!part.isExtension) {
+            final Descriptors.FieldDescriptor field = optionsType.findFieldByName(part.name);
+            if (field == null) {
+                throw error("Option \"" + part + "\" unknown.");
+            }
+            return field;
+        }
+        ExtensionRegistry.ExtensionInfo info = null;
+        if (part.name.startsWith(".")) {
+            info = extensionRegistry.findExtensionByName(part.name.substring(1));
+        } else {
+            String s = scope;
+            while (info == null) {
+                info = extensionRegistry.findExtensionByName(concatNames(s, part.name));
+                if (s == null || s.isEmpty()) {
+                    break;
+                }
+                final int dot = s.lastIndexOf('.');
+                s = dot < 0 ? null : s.substring(0, dot);
+            }
+        }
+        if (info == null) {
+            throw error("Option \"" + part + "\" unknown. Only options registered by the code generator can be used " +
+                    "with the in-process parser.");
+        }
+        if (!info.descriptor.getContainingType().getFullName().equals(optionsType.getFullName())) {
+            throw error("Option \"" + part + "\" is not a field or extension of message \"" + optionsType.getName() + "\".");
+        }
+        return info.descriptor;
+    }
+
+    private Message.Builder newBuilderForField(final Message.Builder builder, final Descriptors.FieldDescriptor field) {
+        if (field.isExtension()) {
+            final ExtensionRegistry.ExtensionInfo info = extensionRegistry.findExtensionByName(field.getFullName());
+            if (info != null && info.defaultInstance != null) {
+                return info.defaultInstance.newBuilderForType();
+            }
+        }
+        return builder.newBuilderForField(field);
+    }
+
+    private Object parseOptionValue(final Message.Builder builder,
+                                    final Descriptors.FieldDescriptor field,
+                                    final OptionNamePart part) throws ProtoParseException {
+        switch (field.getJavaType()) {
+            case INT:
+                switch (field.getType()) {
+                    case UINT32:
+                    case FIXED32:
+                        return consumeSignedInteger(BigInteger.ZERO, MAX_UINT32).intValue();
+                    default:
+                        return consumeSignedInteger(MIN_INT32, MAX_INT32).intValue();
+                }
+            case LONG:
+                switch (field.getType()) {
+                    case UINT64:
+                    case FIXED64:
+                        return consumeSignedInteger(BigInteger.ZERO, MAX_UINT64).longValue();
+                    default:
+                        return consumeSignedInteger(MIN_INT64, MAX_INT64).longValue();
+                }
+            case FLOAT:
+                return (float) consumeDouble();
+            case DOUBLE:
+                return consumeDouble();
+            case BOOLEAN:
+                return consumeBoolean();
+            case STRING:
+                return consumeString();
+            case BYTE_STRING:
+                return ByteString.copyFrom(consumeStringBytes());
+            case ENUM: {
+                final String valueName = consumeIdentifier("Expected identifier.");
+                final Descriptors.EnumValueDescriptor value = field.getEnumType().findValueByName(valueName);
+                if (value == null) {
+                    throw error("Enum type \"" + field.getEnumType().getFullName() + "\" has no value named \"" +
+                            valueName + "\" for option \"" + part + "\".");
+                }
+                return value;
+            }
+            case MESSAGE: {
+                final Message.Builder child = newBuilderForField(builder, field);
+                final Token open = current;
+                consume("{");
+                int depth = 1;
+                while (depth > 0) {
+                    if (current.type == TokenType.END) {
+                        throw error("Unexpected end of stream while parsing aggregate value.");
+                    }
+                    if (lookingAt("{")) {
+                        depth++;
+                    } else if (lookingAt("}")) {
+                        depth--;
+                    }
+                    if (depth > 0) {
+                        advance();
+                    }
+                }
+                final String text = tokenizer.getSource().substring(open.end, current.start);
+                advance();
+                try {
+                    TextFormat.merge(text, extensionRegistry, child);
+                } catch (TextFormat.ParseException e) {
+                    throw new ProtoParseException(fileName, open.line, open.column,
+                            "Error while parsing option value for \"" + part + "\": " + e.getMessage());
+                }
+                return child.build();
+            }
+            default:
+                throw error("Unsupported option type for \"" + part + "\".");
+        }
+    }
+
+    private void advance() throws ProtoParseException {
+        current = tokenizer.next();
+    }
+
+    private boolean lookingAt(final String text) {
+        return current.type != TokenType.STRING && current.text.equals(text);
+    }
+
+    private boolean tryConsume(final String text) throws ProtoParseException {
+        if (lookingAt(text)) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void consume(final String text) throws ProtoParseException {
+        consume(text, "Expected \"" + text + "\".");
+    }
+
+    private void consume(final String text, final String errorMessage) throws ProtoParseException {
+        if (!tryConsume(text)) {
+            throw error(errorMessage);
+        }
+    }
+
+    private String consumeIdentifier(final String errorMessage) throws ProtoParseException {
+        if (current.type != TokenType.IDENTIFIER) {
+            throw error(errorMessage);
+        }
+        final String text = current.text;
+        advance();
+        return text;
+    }
+
+    private String consumeFullIdentifier(final String errorMessage) throws ProtoParseException {
+        final StringBuilder sb = new StringBuilder(consumeIdentifier(errorMessage));
+        while (tryConsume(".")) {
+            sb.append('.').append(consumeIdentifier(errorMessage));
+        }
+        return sb.toString();
+    }
+
+    private String consumeTypeName() throws ProtoParseException {
+        final String prefix = tryConsume(".") ? "." : "";
+        return prefix + consumeFullIdentifier("Expected type name.");
+    }
+
+    private int consumeFieldNumber() throws ProtoParseException {
+        return consumeSignedInteger(BigInteger.ZERO, BigInteger.valueOf(MAX_FIELD_NUMBER)).intValue();
+    }
+
+    private BigInteger consumeSignedInteger(final BigInteger min, final BigInteger max) throws ProtoParseException {
+        final boolean negative = tryConsume("-");
+        if (current.type != TokenType.INTEGER) {
+            throw error("Expected integer.");
+        }
+        BigInteger value = parseInteger(current.text);
+        if (negative) {
+            value = value.negate();
+        }
+        if (value.compareTo(min) < 0 || value.compareTo(max) > 0) {
+            throw error("Integer out of range.");
+        }
+        advance();
+        return value;
+    }
+
+    private double consumeDouble() throws ProtoParseException {
+        final boolean negative = tryConsume("-");
+        final double value;
+        if (current.type == TokenType.INTEGER) {
+            value = parseInteger(current.text).doubleValue();
+        } else if (current.type == TokenType.FLOAT) {
+            value = Double.parseDouble(current.text.replaceFirst("[fF]$", ""));
+        } else if (current.type == TokenType.IDENTIFIER && (current.text.equals("inf") || current.text.equals("infinity"))) {
+            value = Double.POSITIVE_INFINITY;
+        } else if (current.type == TokenType.IDENTIFIER && current.text.equals("nan")) {
+            value = Double.NaN;
+        } else {
+            throw error("Expected number.");
+        }
+        advance();
+        return negative ? -value : value;
+    }
+
+    private boolean consumeBoolean() throws ProtoParseException {
+        if (tryConsume("true")) {
+            return true;
+        } else if (tryConsume("false")) {
+            return false;
+        }
+        throw error("Expected \"true\" or \"false\".");
+    }
+
+    private String consumeString() throws ProtoParseException {
+        return new String(consumeStringBytes(), StandardCharsets.UTF_8);
+    }
+
+    private byte[] consumeStringBytes() throws ProtoParseException {
+        if (current.type != TokenType.STRING) {
+            throw error("Expected string.");
+        }
+        // adjacent string literals are concatenated
+        byte[] bytes = new byte[0];
+        while (current.type == TokenType.STRING) {
+            final byte[] next = tokenizer.decodeString(current);
+            final byte[] joined = new byte[bytes.length + next.length];
+            System.arraycopy(bytes, 0, joined, 0, bytes.length);
+            System.arraycopy(next, 0, joined, bytes.length, next.length);
+            bytes = joined;
+            advance();
+        }
+        return bytes;
+    }
+
+    private ProtoParseException error(final String message) {
+        return new ProtoParseException(fileName, current.line, current.column, message);
+    }
+
+    private static BigInteger parseInteger(final String text) {
+        if (text.startsWith("0x") || text.startsWith("0X")) {
+            return new BigInteger(text.substring(2), 16);
+        } else if (text.length() > 1 && text.startsWith("0")) {
+            return new BigInteger(text.substring(1), 8);
+        } else {
+            return new BigInteger(text);
+        }
+    }
+
+    static String concatNames(final String scope, final String name) {
+        return scope == null || scope.isEmpty() ? name : scope + '.' + name;
+    }
+
+    /**
+     * Formats a double default value the same way protoc does, using the shortest of 15 or 17 significant digits
+     * which reads back to the same value
+     */
+    static String formatDouble(final double value) {
+        if (Double.isNaN(value)) {
+            return "nan";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        final String shortForm = formatGeneral(value, 15);
+        return Double.parseDouble(shortForm) == value ? shortForm : formatGeneral(value, 17);
+    }
+
+    /**
+     * Formats a float default value the same way protoc does, using the shortest of 6 or 8 significant digits
+     * which reads back to the same value
+     */
+    static String formatFloat(final float value) {
+        if (Float.isNaN(value)) {
+            return "nan";
+        } else if (Float.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        final String shortForm = formatGeneral(value, 6);
+        return Float.parseFloat(shortForm) == value ? shortForm : formatGeneral(value, 8);
+    }
+
+    /**
+     * An equivalent of the C printf {@code %.<precision>g} format
+     */
+    private static String formatGeneral(final double value, final int precision) {
+        if (value == 0) {
+            return 1 / value < 0 ? "-0" : "0";
+        }
+        final BigDecimal rounded = new BigDecimal(value).round(new MathContext(precision, RoundingMode.HALF_EVEN));
+        final int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= precision) {
+            String digits = rounded.unscaledValue().abs().toString().replaceFirst("0+$", "");
+            if (digits.isEmpty()) {
+                digits = "0";
+            }
+            final StringBuilder sb = new StringBuilder();
+            if (value < 0) {
+                sb.append('-');
+            }
+            sb.append(digits.charAt(0));
+            if (digits.length() > 1) {
+                sb.append('.').append(digits, 1, digits.length());
+            }
+            sb.append('e').append(exponent < 0 ? '-' : '+');
+            final int absExponent = Math.abs(exponent);
+            if (absExponent < 10) {
+                sb.append('0');
+            }
+            return sb.append(absExponent).toString();
+        }
+        return rounded.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Escapes bytes the same way as protoc's CEscape, which is how bytes default values are stored in descriptors
+     */
+    static String escapeBytes(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length);
+        for (final byte b: bytes) {
+            final int c = b & 0xFF;
+            switch (c) {
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '"': sb.append("\\\""); break;
+                case '\'': sb.append("\\'"); break;
+                case '\\': sb.append("\\\\"); break;
+                default:
+                    if (c < 0x20 || c >= 0x7F) {
+                        sb.append('\\')
+                                .append((char) ('0' + ((c >> 6) & 7)))
+                                .append((char) ('0' + ((c >> 3) & 7)))
+                                .append((char) ('0' + (c & 7)));
+                    } else {
+                        sb.append((char) c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class OptionNamePart {
+
+        public final String name;
+        public final boolean isExtension;
+
+        public OptionNamePart(final String name, final boolean isExtension) {
+            this.name = name;
+            this.isExtension = isExtension;
+        }
+
+        @Override
+        public String toString() {
+            return isExtension ? "(" + name + ")" : name;
+        }
+
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the source of a proto file into tokens, following the rules of the protoc tokenizer
+ * @author Aaron Cake
+ */
+class ProtoTokenizer {
+
+    enum TokenType {
+        IDENTIFIER,
+        INTEGER,
+        FLOAT,
+        STRING,
+        SYMBOL,
+        END
+    }
+
+    static class Token {
+
+        public final TokenType type;
+        public final String text;
+        public final int line;
+        public final int column;
+        public final int start;
+        public final int end;
+
+        public Token(final TokenType type, final String text, final int line, final int column, final int start, final int end) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+            this.column = column;
+            this.start = start;
+            this.end = end;
+        }
+
+    }
+
+    private final String fileName;
+    private final String source;
+    private int offset = 0;
+    private int line = 1;
+    private int lineStart = 0;
+
+    public ProtoTokenizer(final String fileName, final String source) {
+        this.fileName = fileName;
+        this.source = source;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Reads the next token, skipping whitespace and comments
+     * @return the next token, or a token of type END at the end of the source
+     * @throws ProtoParseException
+     */
+    public Token next() throws ProtoParseException {
+        skipWhitespaceAndComments();
+
+        final int start = offset;
+        final int column = start - lineStart + 1;
+        if (offset >= source.length()) {
+            return new Token(TokenType.END, "", line, column, start, start);
+        }
+
+        final char c = source.charAt(offset);
+        final TokenType type;
+        if (isLetter(c)) {
+            while (offset < source.length() && (isLetter(source.charAt(offset)) || isDigit(source.charAt(offset)))) {
+                offset++;
+            }
+            type = TokenType.IDENTIFIER;
+        } else if (isDigit(c) || (c == '.' && offset + 1 < source.length() && isDigit(source.charAt(offset + 1)))) {
+            type = readNumber(column);
+        } else if (c == '"' || c == '\'') {
+            readString(c, column);
+            type = TokenType.STRING;
+        } else {
+            offset++;
+            type = TokenType.SYMBOL;
+        }
+        return new Token(type, source.substring(start, offset), line, column, start, offset);
+    }
+
+    private void skipWhitespaceAndComments() throws ProtoParseException {
+        while (offset < source.length()) {
+            final char c = source.charAt(offset);
+            if (c == '\n') {
+                offset++;
+                line++;
+                lineStart = offset;
+            } else if (Character.isWhitespace(c)) {
+                offset++;
+            } else if (source.startsWith("//", offset)) {
+                while (offset < source.length() && source.charAt(offset) != '\n') {
+                    offset++;
+                }
+            } else if (source.startsWith("/*", offset)) {
+                final int startLine = line;
+                final int startColumn = offset - lineStart + 1;
+                offset += 2;
+                while (!source.startsWith("*/", offset)) {
+                    if (offset >= source.length()) {
+                        throw new ProtoParseException(fileName, startLine, startColumn, "End-of-file inside block comment.");
+                    }
+                    if (source.charAt(offset) == '\n') {
+                        line++;
+                        lineStart = offset + 1;
+                    }
+                    offset++;
+                }
+                offset += 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private TokenType readNumber(final int column) throws ProtoParseException {
+        final int start = offset;
+        if (source.startsWith("0x", offset) || source.startsWith("0X", offset)) {
+            offset += 2;
+            while (offset < source.length() && Character.digit(source.charAt(offset), 16) >= 0) {
+                offset++;
+            }
+            if (offset == start + 2) {
+                throw new ProtoParseException(fileName, line, column, "\"0x\" must be followed by hex digits.");
+            }
+            return TokenType.INTEGER;
+        }
+        boolean isFloat = false;
+        while (offset < source.length() && isDigit(source.charAt(offset))) {
+            offset++;
+        }
+        if (offset < source.length() && source.charAt(offset) == '.') {
+            isFloat = true;
+            offset++;
+            while (offset < source.length() && isDigit(source.charAt(offset))) {
+                offset++;
+            }
+        }
+        if (offset < source.length() && (source.charAt(offset) == 'e' || source.charAt(offset) == 'E')) {
+            isFloat = true;
+            offset++;
+            if (offset < source.length() && (source.charAt(offset) == '-' || source.charAt(offset) == '+')) {
+                offset++;
+            }
+            final int exponentStart = offset;
+            while (offset < source.length() && isDigit(source.charAt(offset))) {
+                offset++;
+            }
+            if (offset == exponentStart) {
+                throw new ProtoParseException(fileName, line, column, "\"e\" must be followed by exponent.");
+            }
+        }
+        if (offset < source.length() && (source.charAt(offset) == 'f' || source.charAt(offset) == 'F')) {
+            isFloat = true;
+            offset++;
+        }
+        if (offset < source.length() && isLetter(source.charAt(offset))) {
+            throw new ProtoParseException(fileName, line, column, "Need space between number and identifier.");
+        }
+        return isFloat ? TokenType.FLOAT : TokenType.INTEGER;
+    }
+
+    private void readString(final char delimiter, final int column) throws ProtoParseException {
+        offset++;
+        while (true) {
+            if (offset >= source.length() || source.charAt(offset) == '\n') {
+                throw new ProtoParseException(fileName, line, column, "String literals cannot cross line boundaries.");
+            }
+            final char c = source.charAt(offset++);
+            if (c == '\\' && offset < source.length()) {
+                offset++;
+            } else if (c == delimiter) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes the contents of a string token, including its escape sequences, to raw bytes
+     * @param token the string token
+     * @return the bytes of the string
+     * @throws ProtoParseException
+     */
+    public byte[] decodeString(final Token token) throws ProtoParseException {
+        final String text = token.text;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(text.length());
+        int i = 1;
+        final int end = text.length() - 1;
+        while (i < end) {
+            final char c = text.charAt(i++);
+            if (c != '\\') {
+                // consume a full code point so that surrogate pairs are encoded correctly
+                final int codePointEnd = Character.isHighSurrogate(c) && i < end ? i + 1 : i;
+                final byte[] bytes = text.substring(i - 1, codePointEnd).getBytes(StandardCharsets.UTF_8);
+                out.write(bytes, 0, bytes.length);
+                i = codePointEnd;
+                continue;
+            }
+            final char e = text.charAt(i++);
+            switch (e) {
+                case 'a': out.write(7); break;
+                case 'b': out.write('\b'); break;
+                case 'f': out.write('\f'); break;
+                case 'n': out.write('\n'); break;
+                case 'r': out.write('\r'); break;
+                case 't': out.write('\t'); break;
+                case 'v': out.write(11); break;
+                case '\\': out.write('\\'); break;
+                case '?': out.write('?'); break;
+                case '\'': out.write('\''); break;
+                case '"': out.write('"'); break;
+                case 'x':
+                case 'X': {
+                    int value = 0;
+                    int digits = 0;
+                    while (digits < 2 && i < end && Character.digit(text.charAt(i), 16) >= 0) {
+                        value = value * 16 + Character.digit(text.charAt(i++), 16);
+                        digits++;
+                    }
+                    if (digits == 0) {
+                        throw new ProtoParseException(fileName, token.line, token.column, "Expected hex digits for escape sequence.");
+                    }
+                    out.write(value);
+                    break;
+                }
+                default:
+                    if (e >= '0' && e <= '7') {
+                        int value = e - '0';
+                        int digits = 1;
+                        while (digits < 3 && i < end && text.charAt(i) >= '0' && text.charAt(i) <= '7') {
+                            value = value * 8 + (text.charAt(i++) - '0');
+                            digits++;
+                        }
+                        out.write(value);
+                    } else {
+                        throw new ProtoParseException(fileName, token.line, token.column, "Invalid escape sequence in string literal.");
+                    }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isLetter(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
@@ -22,6 +22,8 @@
  * SOFTWARE.
  */
 
+goog.require('gotcake.proto.Int64');
+
 goog.provide("gotcake.proto.Buffer");
 
 // see https://github.com/dcodeIO/ByteBuffer.js/blob/master/dist/ByteBufferAB.js
@@ -30,9 +32,11 @@ goog.provide("gotcake.proto.Buffer");
  * The
  * @param opt_arrayBufferOrSize
  * @param opt_byteOffset
+ * @param {number=} opt_byteLength the number of bytes after the offset that belong to this buffer,
+ *      which defaults to the rest of the array buffer
  * @constructor
  */
-gotcake.proto.Buffer = function(opt_arrayBufferOrSize, opt_byteOffset) {
+gotcake.proto.Buffer = function(opt_arrayBufferOrSize, opt_byteOffset, opt_byteLength) {
     /**
      * The underlying ArrayBuffer
      * @type {ArrayBuffer}
@@ -51,6 +55,13 @@ gotcake.proto.Buffer = function(opt_arrayBufferOrSize, opt_byteOffset) {
      */
     this.view = new DataView(this.buffer);
 
+    /**
+     * The bytes of the buffer, which varints are read from one byte at a time, including by generated decoders that
+     * read them inline
+     * @type {Uint8Array}
+     */
+    this.bytes = new Uint8Array(this.buffer);
+
     /**
      * The read/write offset for this buffer
      * @type {number}
@@ -61,7 +72,7 @@ gotcake.proto.Buffer = function(opt_arrayBufferOrSize, opt_byteOffset) {
      * The end offset for this buffer
      * @type {number}
      */
-    this.end = this.buffer.byteLength;
+    this.end = typeof opt_byteLength === 'number' ? this.offset + opt_byteLength : this.buffer.byteLength;
 };
 
 
@@ -72,6 +83,15 @@ gotcake.proto.Buffer = function(opt_arrayBufferOrSize, opt_byteOffset) {
 gotcake.proto.Buffer.DEFAULT_SIZE = 1024;
 
 
+/**
+ * Whether typed arrays on this platform use the little-endian byte order of the wire format,
+ * which lets packed fixed-width values be copied to and from them directly
+ * @type {boolean}
+ * @private
+ */
+gotcake.proto.Buffer.LITTLE_ENDIAN_ = new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;
+
+
 /**
  * Decodes a zig-zag encoded 32 bit integer to a normal 32 bit integer
  * @param {number} n the number to decode
@@ -89,19 +109,37 @@ gotcake.proto.Buffer.decodeZigZag32_ = function(n) {
  */
 gotcake.proto.Buffer.prototype.readVarint32 = function() {
 
-    var value = 0 >>> 0;
-    var temp;
-    var size = 0;
-
-    do {
-        temp = this.view.getUint8(this.offset + size);
-        if (size < 5) {
-            value |= ((temp & 0x7F) << (7 * size)) >>> 0;
+    var bytes = this.bytes;
+    var offset = this.offset;
+    var temp = bytes[offset++];
+    var value = temp & 0x7F;
+
+    if (temp >= 0x80) {
+        temp = bytes[offset++];
+        value |= (temp & 0x7F) << 7;
+        if (temp >= 0x80) {
+            temp = bytes[offset++];
+            value |= (temp & 0x7F) << 14;
+            if (temp >= 0x80) {
+                temp = bytes[offset++];
+                value |= (temp & 0x7F) << 21;
+                if (temp >= 0x80) {
+                    temp = bytes[offset++];
+                    value |= temp << 28;
+                    // negative values are sign-extended to 10 bytes, and the bits past 32 are dropped
+                    while (temp >= 0x80) {
+                        temp = bytes[offset++];
+                    }
+                }
+            }
         }
-        ++size;
-    } while ((temp & 0x80) === 0x80);
+    }
 
-    this.offset += size;
+    // reading past the end of the bytes gives undefined, which ends the varint
+    if (offset > bytes.length) {
+        throw Error("varint extends past the end of the buffer");
+    }
+    this.offset = offset;
     return value | 0;
 
 };
@@ -138,6 +176,54 @@ gotcake.proto.Buffer.prototype.readInt32 = function() {
 };
 
 
+/**
+ * Reads a 64-bit varint from the buffer into gotcake.proto.Int64.scratch and advances the offset accordingly
+ * @returns {gotcake.proto.Int64} the scratch value, which is overwritten by the next 64-bit read
+ */
+gotcake.proto.Buffer.prototype.readVarint64 = function() {
+    var result = gotcake.proto.Int64.scratch;
+    var low = 0;
+    var high = 0;
+    var temp;
+    var shift;
+    // the first 4 bytes hold bits 0 to 27
+    for (shift = 0; shift < 28; shift += 7) {
+        temp = this.view.getUint8(this.offset++);
+        low |= (temp & 0x7F) << shift;
+        if (temp < 0x80) {
+            return result.setParts(low, 0);
+        }
+    }
+    // the 5th byte is split between the halves
+    temp = this.view.getUint8(this.offset++);
+    low |= (temp & 0x0F) << 28;
+    high = (temp & 0x7F) >> 4;
+    if (temp < 0x80) {
+        return result.setParts(low, high);
+    }
+    for (shift = 3; shift < 32; shift += 7) {
+        temp = this.view.getUint8(this.offset++);
+        high |= (temp & 0x7F) << shift;
+        if (temp < 0x80) {
+            return result.setParts(low, high);
+        }
+    }
+    throw Error("varint is longer than 10 bytes");
+};
+
+
+/**
+ * Reads a 64-bit fixed-width integer from the buffer into gotcake.proto.Int64.scratch and advances the offset by 8 bytes
+ * @returns {gotcake.proto.Int64} the scratch value, which is overwritten by the next 64-bit read
+ */
+gotcake.proto.Buffer.prototype.readFixed64 = function() {
+    var low = this.view.getUint32(this.offset, true);
+    var high = this.view.getUint32(this.offset + 4, true);
+    this.offset += 8;
+    return gotcake.proto.Int64.scratch.setParts(low, high);
+};
+
+
 /**
  * Reads a 32-bit fixed-width float from the buffer and advances the offset by 4 bytes
  * @returns {number}
@@ -161,51 +247,655 @@ gotcake.proto.Buffer.prototype.readFloat64 = function() {
 
 
 /**
- * Reads a variable number of bytes as an array buffer and advances the offset accordingly.
+ * Reads a variable number of bytes as a copy in a new array buffer and advances the offset accordingly.
  * @returns {ArrayBuffer}
  */
 gotcake.proto.Buffer.prototype.readVBytes = function() {
     var numBytes = this.readVarint32();
-    var value = new ArrayBuffer(numBytes);
-    gotcake.proto.Buffer.copyArrayBufferContents_(this.buffer, this.offset, value, 0, numBytes);
-    this.offset += numBytes;
-    return value;
+    var offset = this.reserveLengthDelimited_(numBytes);
+    return this.buffer.slice(offset, offset + numBytes);
 };
 
+
 /**
- * Reads a variable length UTF-8 string from the buffer
+ * Reads a variable number of bytes as a view of this buffer, without copying them, and advances the offset accordingly.
+ * The view shares memory with the buffer, so it sees any later writes to the buffer and keeps the whole buffer from
+ * being collected; use copyBytes to get bytes that the caller owns.
+ * @returns {Uint8Array}
+ */
+gotcake.proto.Buffer.prototype.readVBytesView = function() {
+    var numBytes = this.readVarint32();
+    var offset = this.reserveLengthDelimited_(numBytes);
+    return this.bytes.subarray(offset, offset + numBytes);
+};
+
+
+/**
+ * Copies bytes read as a view into a new array buffer, so that they no longer share memory with the buffer they were
+ * read from
+ * @param {Uint8Array} view
+ * @returns {Uint8Array}
+ */
+gotcake.proto.Buffer.copyBytes = function(view) {
+    return new Uint8Array(view);
+};
+
+
+/**
+ * Reads a variable length UTF-8 string from the buffer, decoding short strings in javascript and longer strings with
+ * TextDecoder where it is available
  * @returns {string}
  */
 gotcake.proto.Buffer.prototype.readVString = function() {
-    //see http://stackoverflow.com/questions/17191945/conversion-between-utf-8-arraybuffer-and-string
     var numBytes = this.readVarint32();
-    var bytes = gotcake.proto.Buffer.copyArrayBuffToArray_(this.buffer, this.offset, numBytes);
+    var offset = this.reserveLengthDelimited_(numBytes);
+    if (numBytes < gotcake.proto.Buffer.TEXT_DECODER_MIN_BYTES_ || !gotcake.proto.Buffer.textDecoder_) {
+        return gotcake.proto.Buffer.decodeUtf8_(this.bytes, offset, offset + numBytes);
+    }
+    return gotcake.proto.Buffer.textDecoder_['decode'](this.bytes.subarray(offset, offset + numBytes));
+};
+
+
+/**
+ * Reads a variable length UTF-8 string from the buffer with TextDecoder, or in javascript where it is unavailable
+ * @returns {string}
+ */
+gotcake.proto.Buffer.prototype.readVStringWithTextDecoder = function() {
+    var numBytes = this.readVarint32();
+    var offset = this.reserveLengthDelimited_(numBytes);
+    if (!gotcake.proto.Buffer.textDecoder_) {
+        return gotcake.proto.Buffer.decodeUtf8_(this.bytes, offset, offset + numBytes);
+    }
+    return gotcake.proto.Buffer.textDecoder_['decode'](this.bytes.subarray(offset, offset + numBytes));
+};
+
+
+/**
+ * Reads a variable length UTF-8 string from the buffer in javascript, without TextDecoder
+ * @returns {string}
+ */
+gotcake.proto.Buffer.prototype.readVStringInJavascript = function() {
+    var numBytes = this.readVarint32();
+    var offset = this.reserveLengthDelimited_(numBytes);
+    return gotcake.proto.Buffer.decodeUtf8_(this.bytes, offset, offset + numBytes);
+};
+
+
+/**
+ * Advances the offset past the value of a length-delimited field, such as a string or bytes
+ * @param {number} numBytes the length of the value in bytes
+ * @returns {number} the offset of the value
+ * @private
+ */
+gotcake.proto.Buffer.prototype.reserveLengthDelimited_ = function(numBytes) {
+    var offset = this.offset;
+    if (offset + numBytes > this.bytes.length) {
+        throw Error("length-delimited field extends past the end of the buffer");
+    }
+    this.offset = offset + numBytes;
+    return offset;
+};
+
+
+/**
+ * Strings shorter than this are decoded faster in javascript than with the call to TextDecoder
+ * @type {number}
+ * @const
+ * @private
+ */
+gotcake.proto.Buffer.TEXT_DECODER_MIN_BYTES_ = 16;
+
+
+/**
+ * The UTF-8 TextDecoder, or null where it is unavailable. It is looked up and called by name, so that it needs no
+ * externs.
+ * @type {?}
+ * @private
+ */
+gotcake.proto.Buffer.textDecoder_ = goog.global['TextDecoder'] ? new goog.global['TextDecoder']('utf-8') : null;
+
+
+/**
+ * The number of UTF-16 code units that are decoded before they are converted to a string. Converting them in chunks
+ * keeps the arguments of String.fromCharCode.apply well within the limits of every engine.
+ * @type {number}
+ * @const
+ * @private
+ */
+gotcake.proto.Buffer.UTF16_CHUNK_SIZE_ = 4096;
+
+
+/**
+ * The code units of the chunk being decoded, shared by every call to decodeUtf8_
+ * @type {Uint16Array}
+ * @private
+ */
+gotcake.proto.Buffer.utf16Chunk_ = new Uint16Array(gotcake.proto.Buffer.UTF16_CHUNK_SIZE_);
+
+
+/**
+ * Decodes UTF-8 bytes to a string. ASCII characters are appended one at a time until the first other character,
+ * which is as fast as anything for the short strings most fields hold, and the rest of the bytes are decoded to
+ * UTF-16 code units in chunks. Malformed and truncated sequences become U+FFFD in the same way as TextDecoder, one for
+ * each maximal part of a sequence, and never take bytes from past the end.
+ * @param {Uint8Array} bytes the bytes to decode from
+ * @param {number} offset the offset of the first byte
+ * @param {number} end the offset after the last byte
+ * @returns {string}
+ * @private
+ */
+gotcake.proto.Buffer.decodeUtf8_ = function(bytes, offset, end) {
+    var result = '';
+    var c;
+    if (end - offset < gotcake.proto.Buffer.TEXT_DECODER_MIN_BYTES_) {
+        while (offset < end && (c = bytes[offset]) < 0x80) {
+            result += String.fromCharCode(c);
+            ++offset;
+        }
+    }
+    var chunk = gotcake.proto.Buffer.utf16Chunk_;
+    var count = 0;
+    var needed, lower, upper, next;
+    while (offset < end) {
+        c = bytes[offset++];
+        if (c >= 0x80) {
+            // the range of the first continuation byte excludes overlong forms, surrogates and values past U+10FFFF
+            lower = 0x80;
+            upper = 0xBF;
+            if (c >= 0xC2 && c <= 0xDF) {
+                needed = 1;
+                c &= 0x1F;
+            } else if (c >= 0xE0 && c <= 0xEF) {
+                needed = 2;
+                if (c === 0xE0) {
+                    lower = 0xA0;
+                } else if (c === 0xED) {
+                    upper = 0x9F;
+                }
+                c &= 0x0F;
+            } else if (c >= 0xF0 && c <= 0xF4) {
+                needed = 3;
+                if (c === 0xF0) {
+                    lower = 0x90;
+                } else if (c === 0xF4) {
+                    upper = 0x8F;
+                }
+                c &= 0x07;
+            } else {
+                needed = 0;
+                c = 0xFFFD;
+            }
+            while (needed > 0) {
+                next = offset < end ? bytes[offset] : -1;
+                if (next < lower || next > upper) {
+                    // the byte that breaks the sequence is decoded again as the start of the next one
+                    c = 0xFFFD;
+                    break;
+                }
+                c = (c << 6) | (next & 0x3F);
+                ++offset;
+                --needed;
+                lower = 0x80;
+                upper = 0xBF;
+            }
+            if (c >= 0x10000) {
+                // a character outside the basic multilingual plane, which takes a surrogate pair
+                c -= 0x10000;
+                chunk[count++] = 0xD800 | (c >> 10);
+                c = 0xDC00 | (c & 0x3FF);
+            }
+        }
+        chunk[count++] = c;
+        // leave room for a surrogate pair
+        if (count >= gotcake.proto.Buffer.UTF16_CHUNK_SIZE_ - 1) {
+            result += String.fromCharCode.apply(null, chunk.subarray(0, count));
+            count = 0;
+        }
+    }
+    return count === 0 ? result : result + String.fromCharCode.apply(null, chunk.subarray(0, count));
+};
+
+
+/**
+ * Computes the number of bytes needed to encode a 32-bit varint
+ * @param {number} value the value to encode, where negative values are sign-extended to 64 bits
+ * @returns {number} the encoded size in bytes
+ */
+gotcake.proto.Buffer.getVarint32Size = function(value) {
+    if (value < 0) {
+        return 10;
+    }
+    value = value >>> 0;
+    if (value < 0x80) {
+        return 1;
+    } else if (value < 0x4000) {
+        return 2;
+    } else if (value < 0x200000) {
+        return 3;
+    } else if (value < 0x10000000) {
+        return 4;
+    }
+    return 5;
+};
+
+
+/**
+ * Computes the number of bytes needed to encode a 32-bit integer as a zig-zag encoded varint
+ * @param {number} value the value to encode
+ * @returns {number} the encoded size in bytes
+ */
+gotcake.proto.Buffer.getVarint32ZigZagSize = function(value) {
+    return gotcake.proto.Buffer.getVarint32Size(((value << 1) ^ (value >> 31)) >>> 0);
+};
+
+
+/**
+ * Computes the number of bytes needed to encode a length-delimited value, including its length prefix
+ * @param {number} length the length of the value in bytes
+ * @returns {number} the encoded size in bytes
+ */
+gotcake.proto.Buffer.getLengthDelimitedSize = function(length) {
+    return gotcake.proto.Buffer.getVarint32Size(length) + length;
+};
+
+
+/**
+ * Computes the number of bytes needed to encode a string as UTF-8
+ * @param {string} value the string to encode
+ * @returns {number} the encoded size in bytes
+ */
+gotcake.proto.Buffer.getUtf8Size = function(value) {
+    var size = 0;
+    for (var i = 0; i < value.length; ++i) {
+        var c = value.charCodeAt(i);
+        if (c < 0x80) {
+            size += 1;
+        } else if (c < 0x800) {
+            size += 2;
+        } else if (c >= 0xD800 && c < 0xDC00 && i + 1 < value.length) {
+            // a surrogate pair encodes a single 4 byte code point
+            size += 4;
+            ++i;
+        } else {
+            size += 3;
+        }
+    }
+    return size;
+};
+
+
+/**
+ * Makes sure there is room to write n more bytes at the current offset, growing the underlying ArrayBuffer if needed
+ * @param {number} n the number of bytes about to be written
+ * @private
+ */
+gotcake.proto.Buffer.prototype.ensureCapacity_ = function(n) {
+    var required = this.offset + n;
+    if (required > this.buffer.byteLength) {
+        var newBuffer = new ArrayBuffer(Math.max(this.buffer.byteLength * 2, required));
+        gotcake.proto.Buffer.copyArrayBufferContents_(this.buffer, 0, newBuffer, 0, this.offset);
+        this.buffer = newBuffer;
+        this.view = new DataView(newBuffer);
+        this.bytes = new Uint8Array(newBuffer);
+        this.end = newBuffer.byteLength;
+    }
+};
+
+
+/**
+ * Writes a single byte to the buffer and advances the offset by 1 byte
+ * @param {number} value the byte to write
+ */
+gotcake.proto.Buffer.prototype.writeByte = function(value) {
+    this.ensureCapacity_(1);
+    this.view.setUint8(this.offset++, value);
+};
+
+
+/**
+ * Writes a 32-bit varint to the buffer and advances the offset accordingly.
+ * Negative values are sign-extended to 10 bytes, as required for int32 and enum fields.
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeVarint32 = function(value) {
+    this.ensureCapacity_(gotcake.proto.Buffer.getVarint32Size(value));
+    var negative = value < 0;
+    value = value >>> 0;
+    while (value >= 0x80) {
+        this.view.setUint8(this.offset++, (value & 0x7F) | 0x80);
+        value = value >>> 7;
+    }
+    if (negative) {
+        // the top bits of the 5th byte and the remaining 5 bytes hold the sign extension
+        this.view.setUint8(this.offset++, value | 0xF0);
+        for (var i = 0; i < 4; ++i) {
+            this.view.setUint8(this.offset++, 0xFF);
+        }
+        value = 0x01;
+    }
+    this.view.setUint8(this.offset++, value);
+};
+
+
+/**
+ * Writes a 32-bit integer as a zig-zag encoded varint and advances the offset accordingly
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeVarint32ZigZag = function(value) {
+    this.writeVarint32(((value << 1) ^ (value >> 31)) >>> 0);
+};
+
+
+/**
+ * Writes a 32-bit fixed-width unsigned integer to the buffer and advances the offset by 4 bytes
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeUint32 = function(value) {
+    this.ensureCapacity_(4);
+    this.view.setUint32(this.offset, value, true);
+    this.offset += 4;
+};
+
+
+/**
+ * Writes a 32-bit fixed-width signed integer to the buffer and advances the offset by 4 bytes
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeInt32 = function(value) {
+    this.ensureCapacity_(4);
+    this.view.setInt32(this.offset, value, true);
+    this.offset += 4;
+};
+
+
+/**
+ * Writes a 64-bit integer as a varint and advances the offset accordingly
+ * @param {gotcake.proto.Int64} value
+ */
+gotcake.proto.Buffer.prototype.writeVarint64 = function(value) {
+    this.ensureCapacity_(value.getVarintSize());
+    var low = value.low;
+    var high = value.high;
+    while (high > 0 || low >= 0x80) {
+        this.view.setUint8(this.offset++, (low & 0x7F) | 0x80);
+        low = ((low >>> 7) | (high << 25)) >>> 0;
+        high = high >>> 7;
+    }
+    this.view.setUint8(this.offset++, low);
+};
+
+
+/**
+ * Writes a 64-bit fixed-width integer to the buffer and advances the offset by 8 bytes
+ * @param {gotcake.proto.Int64} value
+ */
+gotcake.proto.Buffer.prototype.writeFixed64 = function(value) {
+    this.ensureCapacity_(8);
+    this.view.setUint32(this.offset, value.low, true);
+    this.view.setUint32(this.offset + 4, value.high, true);
+    this.offset += 8;
+};
+
+
+/**
+ * Writes a 32-bit fixed-width float to the buffer and advances the offset by 4 bytes
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeFloat32 = function(value) {
+    this.ensureCapacity_(4);
+    this.view.setFloat32(this.offset, value, true);
+    this.offset += 4;
+};
+
+
+/**
+ * Writes a 64-bit fixed-width float to the buffer and advances the offset by 8 bytes
+ * @param {number} value
+ */
+gotcake.proto.Buffer.prototype.writeFloat64 = function(value) {
+    this.ensureCapacity_(8);
+    this.view.setFloat64(this.offset, value, true);
+    this.offset += 8;
+};
+
+
+/**
+ * Writes an array buffer prefixed with its length and advances the offset accordingly
+ * @param {ArrayBuffer} value
+ */
+gotcake.proto.Buffer.prototype.writeVBytes = function(value) {
+    var numBytes = value.byteLength;
+    this.writeVarint32(numBytes);
+    this.ensureCapacity_(numBytes);
+    gotcake.proto.Buffer.copyArrayBufferContents_(value, 0, this.buffer, this.offset, numBytes);
     this.offset += numBytes;
-    var encodedString = String.fromCharCode.apply(null, bytes);
-    return decodeURIComponent(escape(encodedString));
 };
 
 
 /**
- * Skips n bytes in the buffer by advancing the offset.
- * @param n
+ * Writes the bytes of a view prefixed with their length and advances the offset accordingly
+ * @param {Uint8Array} value
  */
-gotcake.proto.Buffer.prototype.skip = function(n) {
-    this.offset += n;
+gotcake.proto.Buffer.prototype.writeVBytesView = function(value) {
+    var numBytes = value.length;
+    this.writeVarint32(numBytes);
+    this.ensureCapacity_(numBytes);
+    this.bytes.set(value, this.offset);
+    this.offset += numBytes;
 };
 
 
 /**
- * Copies data from a ArrayBuffer to to an array
- * @param {ArrayBuffer} source the source buffer
- * @param {number} offset the offset to start copying at
- * @param {number} length the length to copy
+ * Writes a string as UTF-8 prefixed with its length in bytes and advances the offset accordingly
+ * @param {string} value
+ */
+gotcake.proto.Buffer.prototype.writeVString = function(value) {
+    var numBytes = gotcake.proto.Buffer.getUtf8Size(value);
+    this.writeVarint32(numBytes);
+    this.ensureCapacity_(numBytes);
+    var view = this.view;
+    var offset = this.offset;
+    for (var i = 0; i < value.length; ++i) {
+        var c = value.charCodeAt(i);
+        if (c < 0x80) {
+            view.setUint8(offset++, c);
+        } else if (c < 0x800) {
+            view.setUint8(offset++, 0xC0 | (c >> 6));
+            view.setUint8(offset++, 0x80 | (c & 0x3F));
+        } else if (c >= 0xD800 && c < 0xDC00 && i + 1 < value.length) {
+            c = 0x10000 + ((c - 0xD800) << 10) + (value.charCodeAt(++i) - 0xDC00);
+            view.setUint8(offset++, 0xF0 | (c >> 18));
+            view.setUint8(offset++, 0x80 | ((c >> 12) & 0x3F));
+            view.setUint8(offset++, 0x80 | ((c >> 6) & 0x3F));
+            view.setUint8(offset++, 0x80 | (c & 0x3F));
+        } else {
+            view.setUint8(offset++, 0xE0 | (c >> 12));
+            view.setUint8(offset++, 0x80 | ((c >> 6) & 0x3F));
+            view.setUint8(offset++, 0x80 | (c & 0x3F));
+        }
+    }
+    this.offset = offset;
+};
+
+
+/**
+ * Copies a range of bytes from an array buffer, such as an encoded message that was never decoded,
+ * and advances the offset accordingly
+ * @param {ArrayBuffer} source the buffer to copy from
+ * @param {number} offset the offset of the bytes in the source buffer
+ * @param {number} length the number of bytes to copy
+ */
+gotcake.proto.Buffer.prototype.writeRawBytes = function(source, offset, length) {
+    this.ensureCapacity_(length);
+    gotcake.proto.Buffer.copyArrayBufferContents_(source, offset, this.buffer, this.offset, length);
+    this.offset += length;
+};
+
+
+/**
+ * Writes the values of a fixed-width typed array without a length prefix and advances the offset accordingly.
+ * On little-endian platforms the values are copied in bulk.
+ * @param {Int32Array|Uint32Array|Float32Array|Float64Array} values
+ */
+gotcake.proto.Buffer.prototype.writeTypedArray = function(values) {
+    var numBytes = values.byteLength;
+    this.ensureCapacity_(numBytes);
+    if (gotcake.proto.Buffer.LITTLE_ENDIAN_) {
+        new Uint8Array(this.buffer, this.offset, numBytes)
+                .set(new Uint8Array(values.buffer, values.byteOffset, numBytes));
+        this.offset += numBytes;
+    } else {
+        var write = values instanceof Float64Array ? this.writeFloat64
+                : values instanceof Float32Array ? this.writeFloat32
+                : values instanceof Int32Array ? this.writeInt32
+                : this.writeUint32;
+        for (var i = 0; i < values.length; ++i) {
+            write.call(this, values[i]);
+        }
+    }
+};
+
+
+/**
+ * Gets the bytes before the current offset, such as the bytes written by an encoder, as an ArrayBuffer.
+ * If the buffer has been filled exactly, as it is by an encoder that sized it, the underlying ArrayBuffer is
+ * returned without copying.
+ * @returns {ArrayBuffer}
+ */
+gotcake.proto.Buffer.prototype.toArrayBuffer = function() {
+    if (this.offset === this.buffer.byteLength) {
+        return this.buffer;
+    }
+    return this.buffer.slice(0, this.offset);
+};
+
+
+/**
+ * Reads the values of a packed fixed-width field into a typed array and advances the offset accordingly.
+ * The array is sized from the length of the field, and on little-endian platforms the values are copied in bulk.
+ * @param {function(new:(Int32Array|Uint32Array|Float32Array|Float64Array), number)} ArrayType the type of array
+ * @param {(Int32Array|Uint32Array|Float32Array|Float64Array)=} opt_existing values already decoded for the field,
+ *      which are kept before the new values
+ * @returns {Int32Array|Uint32Array|Float32Array|Float64Array}
+ */
+gotcake.proto.Buffer.prototype.readPackedFixed = function(ArrayType, opt_existing) {
+    var numBytes = this.readVarint32();
+    if (numBytes % ArrayType.BYTES_PER_ELEMENT !== 0) {
+        throw Error("invalid packed field length");
+    }
+    var start = opt_existing ? opt_existing.length : 0;
+    var values = new ArrayType(start + numBytes / ArrayType.BYTES_PER_ELEMENT);
+    if (opt_existing) {
+        values.set(opt_existing);
+    }
+    if (gotcake.proto.Buffer.LITTLE_ENDIAN_) {
+        new Uint8Array(values.buffer, start * ArrayType.BYTES_PER_ELEMENT)
+                .set(new Uint8Array(this.buffer, this.offset, numBytes));
+        this.offset += numBytes;
+    } else {
+        var read = gotcake.proto.Buffer.getFixedReader_(ArrayType);
+        for (var i = start; i < values.length; ++i) {
+            values[i] = read.call(this);
+        }
+    }
+    return values;
+};
+
+
+/**
+ * Reads the values of a packed varint field into a typed array and advances the offset accordingly.
+ * The values are counted before they are decoded, so that the array is allocated once.
+ * @param {function(new:(Int32Array|Uint32Array), number)} ArrayType Int32Array for signed values or
+ *      Uint32Array for unsigned values
+ * @param {(Int32Array|Uint32Array)=} opt_existing values already decoded for the field,
+ *      which are kept before the new values
+ * @returns {Int32Array|Uint32Array}
+ */
+gotcake.proto.Buffer.prototype.readPackedVarint32 = function(ArrayType, opt_existing) {
+    var values = this.allocatePackedVarint32_(ArrayType, opt_existing);
+    for (var i = opt_existing ? opt_existing.length : 0; i < values.length; ++i) {
+        values[i] = this.readVarint32();
+    }
+    return values;
+};
+
+
+/**
+ * Reads the values of a packed zig-zag encoded varint field into an Int32Array and advances the offset accordingly
+ * @param {Int32Array=} opt_existing values already decoded for the field, which are kept before the new values
+ * @returns {Int32Array}
+ */
+gotcake.proto.Buffer.prototype.readPackedVarint32ZigZag = function(opt_existing) {
+    var values = this.allocatePackedVarint32_(Int32Array, opt_existing);
+    for (var i = opt_existing ? opt_existing.length : 0; i < values.length; ++i) {
+        values[i] = this.readVarint32ZigZag();
+    }
+    return values;
+};
+
+
+/**
+ * Reads the length of a packed varint field and allocates a typed array for its values
+ * @param {function(new:(Int32Array|Uint32Array), number)} ArrayType the type of array
+ * @param {(Int32Array|Uint32Array)=} opt_existing values already decoded for the field, which are copied to the array
+ * @returns {Int32Array|Uint32Array}
+ * @private
+ */
+gotcake.proto.Buffer.prototype.allocatePackedVarint32_ = function(ArrayType, opt_existing) {
+    var numBytes = this.readVarint32();
+    var bytes = new Uint8Array(this.buffer, this.offset, numBytes);
+    var count = 0;
+    for (var i = 0; i < numBytes; ++i) {
+        // every varint ends with the only one of its bytes that has the high bit clear
+        if (bytes[i] < 0x80) {
+            ++count;
+        }
+    }
+    var start = opt_existing ? opt_existing.length : 0;
+    var values = new ArrayType(start + count);
+    if (opt_existing) {
+        values.set(opt_existing);
+    }
+    return values;
+};
+
+
+/**
+ * Gets the method that reads a single value of the given type of fixed-width typed array
+ * @param {Function} ArrayType the type of array
+ * @returns {function(this:gotcake.proto.Buffer): number}
  * @private
  */
-gotcake.proto.Buffer.copyArrayBuffToArray_ = function(source, offset, length) {
-    return Array.prototype.slice.call(new Uint8Array(source, offset, length));
+gotcake.proto.Buffer.getFixedReader_ = function(ArrayType) {
+    switch (ArrayType) {
+        case Float64Array: return gotcake.proto.Buffer.prototype.readFloat64;
+        case Float32Array: return gotcake.proto.Buffer.prototype.readFloat32;
+        case Int32Array: return gotcake.proto.Buffer.prototype.readInt32;
+        default: return gotcake.proto.Buffer.prototype.readUint32;
+    }
 };
 
+
+/**
+ * Skips a varint of any length by advancing the offset past it
+ */
+gotcake.proto.Buffer.prototype.skipVarint = function() {
+    var bytes = this.bytes;
+    var offset = this.offset;
+    while (bytes[offset++] >= 0x80) {}
+    this.offset = offset;
+};
+
+
+/**
+ * Skips n bytes in the buffer by advancing the offset.
+ * @param n
+ */
+gotcake.proto.Buffer.prototype.skip = function(n) {
+    this.offset += n;
+};
+
+
 /**
  * Copies data from one ArrayBuffer to another
  * @param {ArrayBuffer} source the source buffer
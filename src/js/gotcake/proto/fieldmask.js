@@ -0,0 +1,143 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+goog.provide('gotcake.proto.FieldMask');
+
+/**
+ * A compiled set of the fields of a message to decode, for decodeMasked. The fields are held as a bitset indexed by
+ * field number, which generated decoders test with a constant word index and mask for each field. A message field can
+ * carry a nested mask that selects the fields of the sub-message to decode; without one the sub-message is decoded
+ * whole.
+ * @param {number[]=} opt_numbers the numbers of the fields to decode
+ * @constructor
+ * @struct
+ */
+gotcake.proto.FieldMask = function(opt_numbers) {
+
+    /**
+     * The bits of the selected field numbers, 32 to a word
+     * @type {number[]}
+     */
+    this.words = [];
+
+    /**
+     * The nested mask of each message field that has one, by field number
+     * @type {Object.<number, gotcake.proto.FieldMask>}
+     * @private
+     */
+    this.nested_ = {};
+
+    if (opt_numbers) {
+        for (var i = 0; i < opt_numbers.length; ++i) {
+            this.add(opt_numbers[i]);
+        }
+    }
+
+};
+
+/**
+ * Compiles a mask from paths of field names, as they are named in the proto file, such as 'address.city'.
+ * A path that ends at a message field selects the whole sub-message.
+ * @param {function(string):Array} getMaskField the getMaskField function of the message type, which is generated for
+ *      message types with field masks
+ * @param {string[]} paths the paths of the fields to decode
+ * @return {gotcake.proto.FieldMask}
+ */
+gotcake.proto.FieldMask.fromPaths = function(getMaskField, paths) {
+    var mask = new gotcake.proto.FieldMask();
+    for (var i = 0; i < paths.length; ++i) {
+        mask.addPath_(getMaskField, paths[i].split('.'), 0, paths[i]);
+    }
+    return mask;
+};
+
+/**
+ * Selects a field
+ * @param {number} number the field number
+ * @param {gotcake.proto.FieldMask=} opt_nested the fields to decode from a message field, rather than all of them
+ * @return {gotcake.proto.FieldMask} this mask
+ */
+gotcake.proto.FieldMask.prototype.add = function(number, opt_nested) {
+    var index = number >>> 5;
+    while (this.words.length <= index) {
+        this.words.push(0);
+    }
+    this.words[index] |= 1 << (number & 31);
+    if (opt_nested) {
+        this.nested_[number] = opt_nested;
+    } else {
+        delete this.nested_[number];
+    }
+    return this;
+};
+
+/**
+ * Checks if a field is selected
+ * @param {number} number the field number
+ * @return {boolean}
+ */
+gotcake.proto.FieldMask.prototype.has = function(number) {
+    return ((this.words[number >>> 5] | 0) & (1 << (number & 31))) !== 0;
+};
+
+/**
+ * Gets the nested mask of a message field
+ * @param {number} number the field number
+ * @return {gotcake.proto.FieldMask} the nested mask, or null to decode the whole sub-message
+ */
+gotcake.proto.FieldMask.prototype.getNested = function(number) {
+    return this.nested_[number] || null;
+};
+
+/**
+ * Adds the rest of a path of field names
+ * @param {function(string):Array} getMaskField the getMaskField function of the message type at this point
+ * @param {string[]} names the names in the path
+ * @param {number} index the index of the next name
+ * @param {string} path the whole path, for errors
+ * @private
+ */
+gotcake.proto.FieldMask.prototype.addPath_ = function(getMaskField, names, index, path) {
+    var field = getMaskField(names[index]);
+    if (field === null) {
+        throw Error("unknown field in path " + path);
+    }
+    var number = field[0];
+    if (index + 1 === names.length) {
+        this.add(number);
+        return;
+    }
+    if (!field[1]) {
+        throw Error("no field masks for the type of " + names[index] + " in path " + path);
+    }
+    var nested = this.getNested(number);
+    if (nested === null) {
+        if (this.has(number)) {
+            return; // the whole sub-message is already selected
+        }
+        nested = new gotcake.proto.FieldMask();
+        this.add(number, nested);
+    }
+    nested.addPath_(field[1], names, index + 1, path);
+};
@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+goog.provide('gotcake.proto.Int64');
+
+/**
+ * A mutable 64-bit integer, held as two unsigned 32-bit halves.
+ * Buffers read 64-bit values into the shared scratch instance, and generated code converts them from there to the
+ * representation of the field, so that no object is allocated per value.
+ * @param {number=} opt_low the low 32 bits
+ * @param {number=} opt_high the high 32 bits
+ * @constructor
+ * @struct
+ */
+gotcake.proto.Int64 = function(opt_low, opt_high) {
+
+    /**
+     * The low 32 bits, as an unsigned number
+     * @type {number}
+     */
+    this.low = (opt_low || 0) >>> 0;
+
+    /**
+     * The high 32 bits, as an unsigned number
+     * @type {number}
+     */
+    this.high = (opt_high || 0) >>> 0;
+
+};
+
+/**
+ * @type {number}
+ * @const
+ * @private
+ */
+gotcake.proto.Int64.TWO_32_ = 4294967296;
+
+/**
+ * The largest high half of a magnitude which can be held exactly by a number
+ * @type {number}
+ * @const
+ * @private
+ */
+gotcake.proto.Int64.MAX_SAFE_HIGH_ = 0x1FFFFF;
+
+/**
+ * The largest integer which can be held exactly by a number, which is 2^53 - 1
+ * @type {number}
+ * @const
+ */
+gotcake.proto.Int64.MAX_SAFE_INTEGER = 9007199254740991;
+
+/**
+ * The instance that buffers read 64-bit values into, and that generated code converts values with before writing them
+ * @type {gotcake.proto.Int64}
+ */
+gotcake.proto.Int64.scratch = new gotcake.proto.Int64();
+
+/**
+ * Sets both halves of the value
+ * @param {number} low the low 32 bits
+ * @param {number} high the high 32 bits
+ * @return {gotcake.proto.Int64} this value
+ */
+gotcake.proto.Int64.prototype.setParts = function(low, high) {
+    this.low = low >>> 0;
+    this.high = high >>> 0;
+    return this;
+};
+
+/**
+ * Sets the value from an integral number, which must be exact
+ * @param {number} value
+ * @return {gotcake.proto.Int64} this value
+ */
+gotcake.proto.Int64.prototype.setNumber = function(value) {
+    var magnitude = Math.abs(value);
+    this.low = (magnitude % gotcake.proto.Int64.TWO_32_) >>> 0;
+    this.high = Math.floor(magnitude / gotcake.proto.Int64.TWO_32_) >>> 0;
+    if (value < 0) {
+        this.negate_();
+    }
+    return this;
+};
+
+/**
+ * Sets the value from a decimal string, which may be negative
+ * @param {string} value
+ * @return {gotcake.proto.Int64} this value
+ */
+gotcake.proto.Int64.prototype.setDecimalString = function(value) {
+    var negative = value.charAt(0) === '-';
+    var low = 0;
+    var high = 0;
+    for (var i = negative ? 1 : 0; i < value.length; ++i) {
+        var digit = value.charCodeAt(i) - 48;
+        if (digit < 0 || digit > 9) {
+            throw Error("invalid 64-bit integer: " + value);
+        }
+        // low is at most 2^32 * 10, so it stays exact
+        low = low * 10 + digit;
+        high = (high * 10 + Math.floor(low / gotcake.proto.Int64.TWO_32_)) >>> 0;
+        low = low >>> 0;
+    }
+    this.low = low;
+    this.high = high;
+    if (negative) {
+        this.negate_();
+    }
+    return this;
+};
+
+/**
+ * Zig-zag encodes the value in place, for sint64 fields
+ * @return {gotcake.proto.Int64} this value
+ */
+gotcake.proto.Int64.prototype.encodeZigZag = function() {
+    var sign = (this.high | 0) >> 31;
+    this.high = (((this.high << 1) | (this.low >>> 31)) ^ sign) >>> 0;
+    this.low = ((this.low << 1) ^ sign) >>> 0;
+    return this;
+};
+
+/**
+ * Zig-zag decodes the value in place, for sint64 fields
+ * @return {gotcake.proto.Int64} this value
+ */
+gotcake.proto.Int64.prototype.decodeZigZag = function() {
+    var mask = -(this.low & 1);
+    this.low = (((this.low >>> 1) | (this.high << 31)) ^ mask) >>> 0;
+    this.high = ((this.high >>> 1) ^ mask) >>> 0;
+    return this;
+};
+
+/**
+ * Converts the value to a number
+ * @param {boolean} signed true if the value is two's complement signed
+ * @param {boolean=} opt_clamp true to clamp values which can't be held exactly to MAX_SAFE_INTEGER with the same sign,
+ *      rather than throwing an error
+ * @return {number}
+ */
+gotcake.proto.Int64.prototype.toNumber = function(signed, opt_clamp) {
+    if (signed && (this.high & 0x80000000)) {
+        var low = (~this.low + 1) >>> 0;
+        var high = (~this.high + (low === 0 ? 1 : 0)) >>> 0;
+        if (high > gotcake.proto.Int64.MAX_SAFE_HIGH_) {
+            return -gotcake.proto.Int64.overflow_(opt_clamp);
+        }
+        return -(high * gotcake.proto.Int64.TWO_32_ + low);
+    }
+    if (this.high > gotcake.proto.Int64.MAX_SAFE_HIGH_) {
+        return gotcake.proto.Int64.overflow_(opt_clamp);
+    }
+    return this.high * gotcake.proto.Int64.TWO_32_ + this.low;
+};
+
+/**
+ * Converts the value to a decimal string
+ * @param {boolean} signed true if the value is two's complement signed
+ * @return {string}
+ */
+gotcake.proto.Int64.prototype.toDecimalString = function(signed) {
+    if (signed && (this.high & 0x80000000)) {
+        var low = (~this.low + 1) >>> 0;
+        var high = (~this.high + (low === 0 ? 1 : 0)) >>> 0;
+        return '-' + gotcake.proto.Int64.joinUnsignedDecimal_(low, high);
+    }
+    return gotcake.proto.Int64.joinUnsignedDecimal_(this.low, this.high);
+};
+
+/**
+ * Gets the number of bytes needed to encode the value as a varint
+ * @return {number}
+ */
+gotcake.proto.Int64.prototype.getVarintSize = function() {
+    var high = this.high;
+    if (high === 0) {
+        var low = this.low;
+        return low < 0x80 ? 1
+                : low < 0x4000 ? 2
+                : low < 0x200000 ? 3
+                : low < 0x10000000 ? 4
+                : 5;
+    }
+    return high < 0x8 ? 5
+            : high < 0x400 ? 6
+            : high < 0x20000 ? 7
+            : high < 0x1000000 ? 8
+            : high < 0x80000000 ? 9
+            : 10;
+};
+
+/**
+ * Negates the value in place
+ * @private
+ */
+gotcake.proto.Int64.prototype.negate_ = function() {
+    this.low = (~this.low + 1) >>> 0;
+    this.high = (~this.high + (this.low === 0 ? 1 : 0)) >>> 0;
+};
+
+/**
+ * Handles a value which is too large to be held exactly by a number
+ * @param {boolean=} opt_clamp true to return MAX_SAFE_INTEGER rather than throwing an error
+ * @return {number}
+ * @private
+ */
+gotcake.proto.Int64.overflow_ = function(opt_clamp) {
+    if (opt_clamp) {
+        return gotcake.proto.Int64.MAX_SAFE_INTEGER;
+    }
+    throw Error("64-bit integer is too large for a number");
+};
+
+/**
+ * Converts an unsigned 64-bit value to a decimal string without losing precision.
+ * The value is split into 24, 24 and 16 bit pieces, which are summed as base 10^7 digits.
+ * @param {number} low the low 32 bits
+ * @param {number} high the high 32 bits
+ * @return {string}
+ * @private
+ */
+gotcake.proto.Int64.joinUnsignedDecimal_ = function(low, high) {
+    if (high <= gotcake.proto.Int64.MAX_SAFE_HIGH_) {
+        return '' + (high * gotcake.proto.Int64.TWO_32_ + low);
+    }
+    var low24 = low & 0xFFFFFF;
+    var mid24 = ((low >>> 24) | (high << 8)) & 0xFFFFFF;
+    var high16 = high >>> 16;
+    // 2^24 is 1 6777216 and 2^48 is 2 8147497 6710656 in base 10^7
+    var digitA = low24 + mid24 * 6777216 + high16 * 6710656;
+    var digitB = mid24 + high16 * 8147497;
+    var digitC = high16 * 2;
+    var base = 10000000;
+    if (digitA >= base) {
+        digitB += Math.floor(digitA / base);
+        digitA %= base;
+    }
+    if (digitB >= base) {
+        digitC += Math.floor(digitB / base);
+        digitB %= base;
+    }
+    // the value is at least 2^53, so it has more than 14 digits
+    return digitC + gotcake.proto.Int64.padDigits_(digitB) + gotcake.proto.Int64.padDigits_(digitA);
+};
+
+/**
+ * Pads a base 10^7 digit to 7 decimal digits
+ * @param {number} digit
+ * @return {string}
+ * @private
+ */
+gotcake.proto.Int64.padDigits_ = function(digit) {
+    var digits = '' + digit;
+    return '0000000'.substring(digits.length) + digits;
+};
@@ -23,6 +23,7 @@
  */
 
 goog.require('gotcake.proto.Buffer');
+goog.forwardDeclare('gotcake.proto.FieldMask');
 goog.require('gotcake.proto.WireTypes');
 
 goog.provide('gotcake.proto.Message');
@@ -53,10 +54,29 @@ gotcake.proto.Message.prototype.decodeFieldCallback = function(tag, buffer) {
 };
 
 /**
- * A method to be overridden by subclasses to encode their data to a buffer
- * @param {gotcake.proto.Buffer} the buffer to write encoded data to
+ * The size of the message computed by the last call to getSerializedSize.
+ * Encoding reads it to write the length prefix of nested messages without measuring them again.
+ * @type {number}
+ * @protected
+ */
+gotcake.proto.Message.prototype.cachedSize = -1;
+
+/**
+ * A method to be overridden by subclasses to compute their encoded size, caching it as cachedSize.
+ * Nested messages are measured by the same pass, so each of their cached sizes is also refreshed.
+ * @return {number} the encoded size in bytes
  */
-gotcake.proto.Message.prototype.encode = function(buffer) {
+gotcake.proto.Message.prototype.getSerializedSize = function() {
+    throw Error("encoding not supported");
+};
+
+/**
+ * A method to be overridden by subclasses to write each of their fields to a buffer.
+ * The cached sizes of nested messages must be up to date.
+ * @param {gotcake.proto.Buffer} buffer the buffer to write encoded data to
+ * @protected
+ */
+gotcake.proto.Message.prototype.encodeFields = function(buffer) {
     throw Error("encoding not supported");
 };
 
@@ -77,19 +97,93 @@ gotcake.proto.Message.prototype.decode = function(source, opt_lengthDelimited) {
     if (!(source instanceof gotcake.proto.Buffer)) {
         source = new gotcake.proto.Buffer(source);
     }
-    var end = opt_lengthDelimited ? source.offset + source.readVarint32() : source.end;
+    var end = source.end;
+    if (opt_lengthDelimited) {
+        end = source.readVarint32(); // the length must be read before the offset it is relative to
+        end += source.offset;
+    }
     while (source.offset < end) {
-        var tag = source.readVarint32();
-        var ret = this.decodeFieldCallback(tag, source);
-        if (ret === false) {
-            gotcake.proto.Message.skipField_(tag & 0x07, source);
-        } else if (typeof ret === 'number') {
-            this.decodePackedField_(ret, source);
-        }
+        this.decodeField(source.readVarint32(), source);
     }
     return this;
 };
 
+/**
+ * Decodes the fields of a message selected by a field mask from the given source, skipping the others without decoding
+ * them. Message types generated without field masks decode every field.
+ * @param {string|ArrayBuffer|gotcake.proto.Buffer} source
+ * @param {gotcake.proto.FieldMask} mask the fields to decode, or null to decode every field
+ * @param {boolean=} opt_lengthDelimited specify true to decode a length-delimited message
+ * @return {gotcake.proto.Message} this message
+ */
+gotcake.proto.Message.prototype.decodeMasked = function(source, mask, opt_lengthDelimited) {
+    this.decode(source, opt_lengthDelimited);
+    return this;
+};
+
+/**
+ * Decodes a field through decodeFieldCallback, unpacking packed fields and passing unknown ones to skipUnknownField
+ * @param {number} tag the tag of the field, which has already been read
+ * @param {gotcake.proto.Buffer} source the source buffer
+ * @protected
+ */
+gotcake.proto.Message.prototype.decodeField = function(tag, source) {
+    var ret = this.decodeFieldCallback(tag, source);
+    if (ret === false) {
+        this.skipUnknownField(tag, source);
+    } else if (typeof ret === 'number') {
+        this.decodePackedField_(ret, source);
+    }
+};
+
+/**
+ * Skips over a field that the message type doesn't know. Messages generated with unknown field retention override this
+ * to record the field, so that it is encoded again with the message.
+ * @param {number} tag the tag of the field, which has already been read
+ * @param {gotcake.proto.Buffer} source the source buffer
+ * @protected
+ */
+gotcake.proto.Message.prototype.skipUnknownField = function(tag, source) {
+    gotcake.proto.Message.skipField(tag & 0x07, source);
+};
+
+/**
+ * A method to be overridden by subclasses to reset every field without allocating.
+ * Arrays are truncated in place, and nested messages are cleared and kept to be reused by the next decode.
+ * @return {gotcake.proto.Message} this message
+ */
+gotcake.proto.Message.prototype.clear = function() {
+    throw Error("clearing not supported");
+};
+
+/**
+ * Clears the message and decodes the given source into it, reusing its arrays and nested messages
+ * @param {string|ArrayBuffer|gotcake.proto.Buffer} source
+ * @param {boolean=} opt_lengthDelimited specify true to decode a length-delimited message
+ * @return {gotcake.proto.Message} this message
+ */
+gotcake.proto.Message.prototype.decodeInto = function(source, opt_lengthDelimited) {
+    return this.clear().decode(source, opt_lengthDelimited);
+};
+
+/**
+ * Encodes the message to the given buffer, or to a new buffer of exactly the encoded size if none is given
+ * @param {gotcake.proto.Buffer=} opt_buffer the buffer to write encoded data to
+ * @param {boolean=} opt_lengthDelimited specify true to encode a length-delimited message
+ * @return {gotcake.proto.Buffer} the buffer the message was written to
+ */
+gotcake.proto.Message.prototype.encode = function(opt_buffer, opt_lengthDelimited) {
+    var size = this.getSerializedSize();
+    var buffer = opt_buffer || new gotcake.proto.Buffer(opt_lengthDelimited
+            ? gotcake.proto.Buffer.getLengthDelimitedSize(size)
+            : size);
+    if (opt_lengthDelimited) {
+        buffer.writeVarint32(size);
+    }
+    this.encodeFields(buffer);
+    return buffer;
+};
+
 /**
  * Decodes a packed field
  * @param {number} tag the field tag
@@ -106,16 +200,37 @@ gotcake.proto.Message.prototype.decodePackedField_ = function(tag, source) {
     }
 };
 
+/**
+ * Appends a single value to the typed array of a packed field, for values that were encoded without packing. The
+ * values are kept at the start of a larger capacity array, which doubles in size when it is full, so that appending
+ * n values copies O(n) values in all. The field is then set to the start of the capacity array that is returned.
+ * @param {Int32Array|Uint32Array|Float32Array|Float64Array} values the current values of the field
+ * @param {Int32Array|Uint32Array|Float32Array|Float64Array} capacity the array returned by the last append to the
+ *      field, or null
+ * @param {number} value the value to append
+ * @return {Int32Array|Uint32Array|Float32Array|Float64Array} the capacity array, holding all of the values at its start
+ */
+gotcake.proto.Message.appendToTypedArray = function(values, capacity, value) {
+    var length = values.length;
+    // the capacity is only written past the values if they are still its start, and not an array set by the caller
+    if (capacity === null || capacity.buffer !== values.buffer || capacity.byteOffset !== values.byteOffset ||
+            capacity.length <= length) {
+        capacity = new values.constructor(Math.max(8, length * 2));
+        capacity.set(values);
+    }
+    capacity[length] = value;
+    return capacity;
+};
+
 /**
  * Skips over the next field, given the tag of the field
  * @param {number} wireType the wireType of the field
  * @param {gotcake.proto.Buffer} source the source buffer
- * @private
  */
-gotcake.proto.Message.skipField_ = function(wireType, source) {
+gotcake.proto.Message.skipField = function(wireType, source) {
     switch (wireType) {
         case gotcake.proto.WireTypes.VARINT:
-            source.readVarint32(); break;
+            source.skipVarint(); break;
         case gotcake.proto.WireTypes.FIXED32:
             source.skip(4); break;
         case gotcake.proto.WireTypes.FIXED64:
@@ -137,7 +252,7 @@ gotcake.proto.Message.skipField_ = function(wireType, source) {
 gotcake.proto.Message.skipGroup_ = function(source) {
     var wireType;
     while((wireType = source.readVarint32() & 0x07) !== gotcake.proto.WireTypes.GROUP_END) {
-        gotcake.proto.Message.skipField_(wireType, source);
+        gotcake.proto.Message.skipField(wireType, source);
     }
 };
 
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+goog.require('gotcake.proto.Message');
+
+goog.provide('gotcake.proto.Pool');
+
+/**
+ * A free list of messages of a single type, so that messages which are decoded often can be reused instead of
+ * being allocated each time
+ * @param {function(new:gotcake.proto.Message)} messageType the message type to pool
+ * @param {number=} opt_maxSize the most released messages to keep, which defaults to DEFAULT_MAX_SIZE
+ * @constructor
+ */
+gotcake.proto.Pool = function(messageType, opt_maxSize) {
+
+    /**
+     * @type {function(new:gotcake.proto.Message)}
+     * @private
+     */
+    this.messageType_ = messageType;
+
+    /**
+     * @type {number}
+     * @private
+     */
+    this.maxSize_ = opt_maxSize || gotcake.proto.Pool.DEFAULT_MAX_SIZE;
+
+    /**
+     * @type {gotcake.proto.Message[]}
+     * @private
+     */
+    this.free_ = [];
+
+};
+
+/**
+ * The default maximum number of released messages kept by a pool
+ * @type {number}
+ * @const
+ */
+gotcake.proto.Pool.DEFAULT_MAX_SIZE = 64;
+
+/**
+ * Gets a cleared message from the pool, or a new message if the pool is empty
+ * @return {gotcake.proto.Message}
+ */
+gotcake.proto.Pool.prototype.acquire = function() {
+    return this.free_.pop() || new this.messageType_();
+};
+
+/**
+ * Clears a message and returns it to the pool. The message must not be used again until it is acquired.
+ * @param {gotcake.proto.Message} message the message to release
+ */
+gotcake.proto.Pool.prototype.release = function(message) {
+    if (this.free_.length < this.maxSize_) {
+        this.free_.push(message.clear());
+    }
+};
+
+/**
+ * Acquires a message from the pool and decodes the given source into it
+ * @param {string|ArrayBuffer|gotcake.proto.Buffer} source
+ * @param {boolean=} opt_lengthDelimited specify true to decode a length-delimited message
+ * @return {gotcake.proto.Message}
+ */
+gotcake.proto.Pool.prototype.decode = function(source, opt_lengthDelimited) {
+    return this.acquire().decode(source, opt_lengthDelimited);
+};
+
+/**
+ * Gets the number of released messages that are waiting to be reused
+ * @return {number}
+ */
+gotcake.proto.Pool.prototype.getFreeCount = function() {
+    return this.free_.length;
+};
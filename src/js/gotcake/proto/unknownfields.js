@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+goog.require('gotcake.proto.Buffer');
+goog.require('gotcake.proto.Message');
+
+goog.provide('gotcake.proto.UnknownFields');
+
+/**
+ * The fields of a decoded message that its type doesn't know, such as fields added by a newer version of the schema.
+ * Each field is recorded as a range of the buffer it was decoded from rather than being parsed, and is copied back out
+ * verbatim when the message is encoded. The buffers are shared rather than copied, so they are kept until the fields
+ * are cleared.
+ * @constructor
+ * @struct
+ */
+gotcake.proto.UnknownFields = function() {
+
+    /**
+     * The buffer each field was decoded from
+     * @type {ArrayBuffer[]}
+     * @private
+     */
+    this.buffers_ = [];
+
+    /**
+     * The tag, offset and length of the value of each field, with the offset and length in the field's buffer
+     * @type {number[]}
+     * @private
+     */
+    this.ranges_ = [];
+
+};
+
+/**
+ * Records where the next field is in the source buffer and skips over it
+ * @param {number} tag the tag of the field, which has already been read
+ * @param {gotcake.proto.Buffer} source the source buffer
+ */
+gotcake.proto.UnknownFields.prototype.retain = function(tag, source) {
+    var offset = source.offset;
+    gotcake.proto.Message.skipField(tag & 0x07, source);
+    if (source.offset > source.end) {
+        throw Error("unknown field extends past the end of the buffer");
+    }
+    this.buffers_.push(source.buffer);
+    // the tag is written again when encoding, so the range only covers the value
+    this.ranges_.push(tag, offset, source.offset - offset);
+};
+
+/**
+ * Computes the encoded size of the fields
+ * @return {number} the size in bytes
+ */
+gotcake.proto.UnknownFields.prototype.getSerializedSize = function() {
+    var ranges = this.ranges_;
+    var size = 0;
+    for (var i = 0; i < ranges.length; i += 3) {
+        size += gotcake.proto.Buffer.getVarint32Size(ranges[i] >>> 0) + ranges[i + 2];
+    }
+    return size;
+};
+
+/**
+ * Writes each field to a buffer, copying its value from the buffer it was decoded from
+ * @param {gotcake.proto.Buffer} buffer the buffer to write to
+ */
+gotcake.proto.UnknownFields.prototype.encode = function(buffer) {
+    var ranges = this.ranges_;
+    for (var i = 0; i < ranges.length; i += 3) {
+        buffer.writeVarint32(ranges[i] >>> 0);
+        buffer.writeRawBytes(this.buffers_[i / 3], ranges[i + 1], ranges[i + 2]);
+    }
+};
+
+/**
+ * Checks if any fields have been recorded
+ * @return {boolean}
+ */
+gotcake.proto.UnknownFields.prototype.isEmpty = function() {
+    return this.buffers_.length === 0;
+};
+
+/**
+ * Forgets every field, releasing the buffers they were decoded from
+ */
+gotcake.proto.UnknownFields.prototype.clear = function() {
+    this.buffers_.length = 0;
+    this.ranges_.length = 0;
+};
@@ -53,6 +53,7 @@ public class Server {
 
             final ServletHandler servletHandler = new ServletHandler();
             servletHandler.addServletWithMapping(ProtobufProducingServlet.class, "/get");
+            servletHandler.addServletWithMapping(ProtobufEchoServlet.class, "/echo");
 
             final HandlerList handlerList = new HandlerList();
             handlerList.setHandlers(new Handler[] {
@@ -0,0 +1,272 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gotcake.protobuf.builder;
+
+import com.google.protobuf.DescriptorProtos;
+import com.gotcake.protobuf.CodeGenerator;
+import com.gotcake.protobuf.closure.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * Measures the allocation and write time of section buffers on a large schema. Run with an optional message count
+ * and field count per message, which default to 2000 and 20.
+ * <p>
+ * The first part builds the same section tree the closure generator builds for each message, once with
+ * {@link SectionBuffer} and once with a TreeMap backed buffer like the one it replaced. The second part runs the
+ * whole generator over a synthetic file with the same shape.
+ * @author Aaron Cake
+ */
+public class SectionBufferBenchmark {
+
+    private static final int ITERATIONS = 20;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(final String[] args) throws IOException {
+        final int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int fieldCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        System.out.println("Schema: " + messageCount + " messages x " + fieldCount + " fields");
+
+        // warm up both implementations before measuring either
+        for (int i = 0; i < 5; i++) {
+            measureSectionBuffer(messageCount, fieldCount);
+            measureTreeMapBuffer(messageCount, fieldCount);
+        }
+        final long[] slots = new long[4];
+        final long[] treeMap = new long[4];
+        for (int i = 0; i < ITERATIONS; i++) {
+            add(slots, measureSectionBuffer(messageCount, fieldCount));
+            add(treeMap, measureTreeMapBuffer(messageCount, fieldCount));
+        }
+        report("TreeMap buffer", treeMap);
+        report("Slot array buffer", slots);
+
+        final DescriptorProtos.FileDescriptorProto file = createFile(messageCount, fieldCount);
+        final CodeGenerator generator = new ClosureJavascriptGeneratorFactory().createGenerator(
+                DescriptorProtos.FileDescriptorSet.newBuilder().addFile(file).build(),
+                Collections.<String, String>emptyMap());
+        for (int i = 0; i < 3; i++) {
+            measureGenerator(generator, file);
+        }
+        final long[] generated = new long[4];
+        for (int i = 0; i < ITERATIONS; i++) {
+            add(generated, measureGenerator(generator, file));
+        }
+        report("Closure generator", generated);
+    }
+
+    private static void add(final long[] total, final long[] sample) {
+        for (int i = 0; i < total.length; i++) {
+            total[i] += sample[i];
+        }
+    }
+
+    private static void report(final String name, final long[] total) {
+        System.out.printf("%-20s build: %7.2f ms, %8.2f MB allocated   writeTo: %7.2f ms, %8.2f MB allocated%n", name,
+                total[0] / 1e6 / ITERATIONS, total[1] / 1048576.0 / ITERATIONS,
+                total[2] / 1e6 / ITERATIONS, total[3] / 1048576.0 / ITERATIONS);
+    }
+
+    private static long allocatedBytes() {
+        return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return the build time, the bytes allocated by the build, the write time and the bytes allocated by the write
+     */
+    private static long[] measureSectionBuffer(final int messageCount, final int fieldCount) throws IOException {
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final SectionBuffer global = new SectionBuffer();
+        global.stringSection(GlobalSection.Provides, "goog.provide('bench');");
+        for (int m = 0; m < messageCount; m++) {
+            final SectionBuffer message = global.childSection(GlobalSection.Content);
+            final SectionBuffer constructor = message.childSection(MessageSection.Constructor);
+            constructor.stringSection(FunctionSection.Docs, "/** @constructor */");
+            constructor.stringSection(FunctionSection.Header, "bench.M", m, " = function() {");
+            final SectionBuffer body = constructor.childSection(FunctionSection.Body);
+            for (int f = 0; f < fieldCount; f++) {
+                final SectionBuffer field = body.indentedChildSection(ConstructorBodySection.Fields);
+                field.stringSection(FieldSection.Docs, "/** @type {number} */");
+                field.stringSection(FieldSection.Body, "this.f", f, " = 0;");
+            }
+            constructor.stringSection(FunctionSection.Closer, "};");
+            for (int i = 0; i < 3; i++) {
+                final SectionBuffer method = message.childSection(MessageSection.Methods);
+                method.stringSection(FunctionSection.Header, "bench.M", m, ".prototype.m", i, " = function() {");
+                method.stringSection(FunctionSection.Closer, "};");
+            }
+        }
+        final long built = System.nanoTime();
+        final long allocated = allocatedBytes() - allocatedBefore;
+        final long writeAllocatedBefore = allocatedBytes();
+        final long writeStart = System.nanoTime();
+        global.writeTo(new StringBuilder());
+        final long written = System.nanoTime();
+        return new long[] { built - start, allocated, written - writeStart, allocatedBytes() - writeAllocatedBefore };
+    }
+
+    /**
+     * The same as {@link #measureSectionBuffer(int, int)}, using the TreeMap backed buffer
+     */
+    private static long[] measureTreeMapBuffer(final int messageCount, final int fieldCount) throws IOException {
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final TreeMapSectionBuffer global = new TreeMapSectionBuffer(false);
+        global.stringSection(GlobalSection.Provides, "goog.provide('bench');");
+        for (int m = 0; m < messageCount; m++) {
+            final TreeMapSectionBuffer message = global.childSection(GlobalSection.Content, false);
+            final TreeMapSectionBuffer constructor = message.childSection(MessageSection.Constructor, false);
+            constructor.stringSection(FunctionSection.Docs, "/** @constructor */");
+            constructor.stringSection(FunctionSection.Header, "bench.M", m, " = function() {");
+            final TreeMapSectionBuffer body = constructor.childSection(FunctionSection.Body, false);
+            for (int f = 0; f < fieldCount; f++) {
+                final TreeMapSectionBuffer field = body.childSection(ConstructorBodySection.Fields, true);
+                field.stringSection(FieldSection.Docs, "/** @type {number} */");
+                field.stringSection(FieldSection.Body, "this.f", f, " = 0;");
+            }
+            constructor.stringSection(FunctionSection.Closer, "};");
+            for (int i = 0; i < 3; i++) {
+                final TreeMapSectionBuffer method = message.childSection(MessageSection.Methods, false);
+                method.stringSection(FunctionSection.Header, "bench.M", m, ".prototype.m", i, " = function() {");
+                method.stringSection(FunctionSection.Closer, "};");
+            }
+        }
+        final long built = System.nanoTime();
+        final long allocated = allocatedBytes() - allocatedBefore;
+        final long writeAllocatedBefore = allocatedBytes();
+        final long writeStart = System.nanoTime();
+        final IndentedLineBuffer buffer = new IndentedLineBuffer(new StringBuilder());
+        global.writeTo(buffer);
+        buffer.flush();
+        final long written = System.nanoTime();
+        return new long[] { built - start, allocated, written - writeStart, allocatedBytes() - writeAllocatedBefore };
+    }
+
+    private static long[] measureGenerator(final CodeGenerator generator,
+                                           final DescriptorProtos.FileDescriptorProto file) throws IOException {
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final SectionBuffer buffer = new SectionBuffer();
+        generator.processProtoFile(file, buffer);
+        final long built = System.nanoTime();
+        final long allocated = allocatedBytes() - allocatedBefore;
+        final long writeAllocatedBefore = allocatedBytes();
+        final long writeStart = System.nanoTime();
+        buffer.writeTo(new StringBuilder());
+        final long written = System.nanoTime();
+        return new long[] { built - start, allocated, written - writeStart, allocatedBytes() - writeAllocatedBefore };
+    }
+
+    private static DescriptorProtos.FileDescriptorProto createFile(final int messageCount, final int fieldCount) {
+        final DescriptorProtos.FieldDescriptorProto.Type[] types = {
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_INT32,
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING,
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_DOUBLE,
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_BOOL,
+                DescriptorProtos.FieldDescriptorProto.Type.TYPE_BYTES
+        };
+        final DescriptorProtos.FileDescriptorProto.Builder file = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName("bench/bench.proto")
+                .setPackage("bench");
+        for (int m = 0; m < messageCount; m++) {
+            final DescriptorProtos.DescriptorProto.Builder message = file.addMessageTypeBuilder().setName("M" + m);
+            for (int f = 0; f < fieldCount; f++) {
+                final DescriptorProtos.FieldDescriptorProto.Builder field = message.addFieldBuilder()
+                        .setName("f" + f)
+                        .setNumber(f + 1);
+                if (m > 0 && f == fieldCount - 1) {
+                    field.setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                            .setTypeName(".bench.M" + (m - 1))
+                            .setLabel(DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL);
+                } else {
+                    field.setType(types[f % types.length])
+                            .setLabel(f % 4 == 3
+                                    ? DescriptorProtos.FieldDescriptorProto.Label.LABEL_REPEATED
+                                    : DescriptorProtos.FieldDescriptorProto.Label.LABEL_OPTIONAL);
+                }
+            }
+        }
+        return file.build();
+    }
+
+    /**
+     * The previous SectionBuffer layout, which kept each section's contents in a TreeMap keyed by ordinal
+     */
+    private static class TreeMapSectionBuffer implements LineWritable {
+
+        private final TreeMap<Integer, ArrayList<LineWritable>> contents = new TreeMap<>();
+        private final boolean indented;
+
+        public TreeMapSectionBuffer(final boolean indented) {
+            this.indented = indented;
+        }
+
+        public void section(final Enum<?> section, final LineWritable content) {
+            ArrayList<LineWritable> lineWritables = contents.get(section.ordinal());
+            if (lineWritables == null) {
+                lineWritables = new ArrayList<>();
+                contents.put(section.ordinal(), lineWritables);
+            }
+            lineWritables.add(content);
+        }
+
+        public void stringSection(final Enum<?> section, final Object... strings) {
+            section(section, new StringLineWritable(strings));
+        }
+
+        public TreeMapSectionBuffer childSection(final Enum<?> section, final boolean indented) {
+            final TreeMapSectionBuffer child = new TreeMapSectionBuffer(indented);
+            section(section, child);
+            return child;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return contents.isEmpty();
+        }
+
+        @Override
+        public void writeTo(final IndentedLineBuffer buffer) throws IOException {
+            if (indented)
+                buffer.in();
+            for (final int section: contents.keySet()) {
+                for (final LineWritable writable: contents.get(section)) {
+                    writable.writeTo(buffer);
+                }
+            }
+            if (indented)
+                buffer.out();
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Aaron Cake
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.gotcake.protobuf.parser;
+
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.gotcake.protobuf.javascript.protos.*;
+import com.gotcake.protobuf.proto.ClosureOptionProtos;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses every proto file in test/proto with the in-process parser, and compares each descriptor with the one protoc
+ * produced for the java classes in test/gen-java.
+ * @author Aaron Cake
+ */
+public class ProtoFileSetParserTest {
+
+    // the same search dirs as the build passes to the compiler
+    private static final String[] SEARCH_DIRS = { "src/proto", "test/proto", "build/proto-test", "lib/main/proto" };
+
+    private static final ExtensionRegistry extensionRegistry = ExtensionRegistry.newInstance();
+    private static final List<String> searchDirs = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        ClosureOptionProtos.registerAllExtensions(extensionRegistry);
+        for (final String searchDir: SEARCH_DIRS) {
+            searchDirs.add(new File(searchDir).getCanonicalPath());
+        }
+    }
+
+    @Test
+    public void testFooBar() throws IOException {
+        assertParsedAsProtoc(FooBarProtos.getDescriptor());
+    }
+
+    @Test
+    public void testPackedThingy() throws IOException {
+        assertParsedAsProtoc(PackedThingyProtos.getDescriptor());
+    }
+
+    @Test
+    public void testStuff() throws IOException {
+        assertParsedAsProtoc(StuffProtos.getDescriptor());
+        assertParsedAsProtoc(StableStuffProtos.getDescriptor());
+        assertParsedAsProtoc(DispatchStuffProtos.getDescriptor());
+    }
+
+    @Test
+    public void testConfig() throws IOException {
+        assertParsedAsProtoc(ConfigProtos.getDescriptor());
+        assertParsedAsProtoc(TableConfigProtos.getDescriptor());
+    }
+
+    @Test
+    public void testDecodingOptions() throws IOException {
+        assertParsedAsProtoc(InlineDecodeProtos.getDescriptor());
+        assertParsedAsProtoc(TypedArrayProtos.getDescriptor());
+        assertParsedAsProtoc(VarintProtos.getDescriptor());
+        assertParsedAsProtoc(LazyProtos.getDescriptor());
+        assertParsedAsProtoc(ImageProtos.getDescriptor());
+    }
+
+    @Test
+    public void testMessageOptions() throws IOException {
+        assertParsedAsProtoc(PassthroughProtos.getDescriptor());
+        assertParsedAsProtoc(ProfileProtos.getDescriptor());
+        assertParsedAsProtoc(OptimizeProtos.getDescriptor());
+    }
+
+    /**
+     * Parses the proto file a descriptor was generated from, and checks that the parser produces the same descriptor
+     * @param expected the descriptor protoc produced
+     * @throws IOException
+     */
+    private static void assertParsedAsProtoc(final Descriptors.FileDescriptor expected) throws IOException {
+        final String name = expected.getName();
+        final DescriptorProtos.FileDescriptorSet parsed = new ProtoFileSetParser(searchDirs, extensionRegistry)
+                .parse(Collections.singletonList(findFile(name).getCanonicalPath()));
+        assertEquals(name, 1, parsed.getFileCount());
+        assertEquals(name, normalize(expected.toProto()), normalize(parsed.getFile(0)));
+    }
+
+    private static File findFile(final String name) {
+        for (final String searchDir: searchDirs) {
+            final File file = new File(searchDir, name);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new AssertionError(name + " was not found in any search dir");
+    }
+
+    /**
+     * Parses a descriptor again with the closure option extensions registered, since the descriptors of the generated
+     * classes hold their custom options as unknown fields
+     */
+    private static DescriptorProtos.FileDescriptorProto normalize(final DescriptorProtos.FileDescriptorProto proto)
+            throws InvalidProtocolBufferException {
+        return DescriptorProtos.FileDescriptorProto.parseFrom(proto.toByteString(), extensionRegistry);
+    }
+
+}
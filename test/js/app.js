@@ -1,5 +1,7 @@
 goog.provide('gotcake');
 
+goog.require('gotcake.closure.benchmark');
 goog.require('gotcake.closure.test');
 
-goog.exportSymbol('gotcake.closure.test.runTests', gotcake.closure.test.runTests);
\ No newline at end of file
+goog.exportSymbol('gotcake.closure.test.runTests', gotcake.closure.test.runTests);
+goog.exportSymbol('gotcake.closure.benchmark.runBenchmarks', gotcake.closure.benchmark.runBenchmarks);
\ No newline at end of file
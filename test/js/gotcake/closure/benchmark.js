@@ -0,0 +1,747 @@
+goog.provide('gotcake.closure.benchmark');
+
+
+goog.require('gotcake.FooBar');
+goog.require('gotcake.proto.Buffer');
+goog.require('gotcake.proto.Stuff');
+goog.require('gotcake.proto.config.Config16');
+goog.require('gotcake.proto.config.Config200');
+goog.require('gotcake.proto.config.Config32');
+goog.require('gotcake.proto.config.Config64');
+goog.require('gotcake.proto.config.table.Config16');
+goog.require('gotcake.proto.config.table.Config200');
+goog.require('gotcake.proto.config.table.Config32');
+goog.require('gotcake.proto.config.table.Config64');
+goog.require('gotcake.proto.dispatch.FooBar');
+goog.require('gotcake.proto.dispatch.Stuff');
+goog.require('gotcake.proto.image.CopiedImage');
+goog.require('gotcake.proto.image.Image');
+goog.require('gotcake.proto.optimize.CompactEvent');
+goog.require('gotcake.proto.optimize.Event');
+goog.require('gotcake.proto.optimize.Label');
+goog.require('gotcake.proto.passthrough.Gadget');
+goog.require('gotcake.proto.passthrough.GadgetV2');
+goog.require('gotcake.proto.profile.Address');
+goog.require('gotcake.proto.profile.Contact');
+goog.require('gotcake.proto.profile.Profile');
+goog.require('gotcake.proto.stable.Stuff');
+
+
+/**
+ * The number of messages decoded by each timed run
+ * @type {number}
+ * @const
+ */
+gotcake.closure.benchmark.ITERATIONS = 20000;
+
+
+/**
+ * Builds and encodes a Stuff with a containment and some things
+ * @param {number} seed varies the field values
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeStuff_ = function(seed) {
+    var stuff = new gotcake.proto.Stuff();
+    stuff.setOwner('owner' + seed);
+    stuff.setContainment(new gotcake.proto.Stuff.Containment());
+    stuff.containment.setId(seed);
+    stuff.containment.setType(1 + seed % 4);
+    stuff.containment.setVolume(seed / 4);
+    for (var i = 0; i < 8; ++i) {
+        var thing = new gotcake.proto.Thing();
+        thing.setName('thing' + i);
+        thing.setKind(1 + (seed + i) % 3);
+        stuff.things.push(thing);
+    }
+    return stuff.encode().toArrayBuffer();
+};
+
+
+/**
+ * Builds and encodes the same message as encodeStuff_, using the shape-stable types
+ * @param {number} seed varies the field values
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeStableStuff_ = function(seed) {
+    var stuff = new gotcake.proto.stable.Stuff();
+    stuff.setOwner('owner' + seed);
+    stuff.setContainment(new gotcake.proto.stable.Stuff.Containment());
+    stuff.containment.setId(seed);
+    stuff.containment.setType(1 + seed % 4);
+    stuff.containment.setVolume(seed / 4);
+    for (var i = 0; i < 8; ++i) {
+        var thing = new gotcake.proto.stable.Thing();
+        thing.setName('thing' + i);
+        thing.setKind(1 + (seed + i) % 3);
+        stuff.things.push(thing);
+    }
+    return stuff.encode().toArrayBuffer();
+};
+
+
+/**
+ * Builds and encodes a FooBar with a few values in most of its fields. Fields are encoded in field number order, as
+ * protobuf-java writes them for ProtobufProducingServlet.
+ * @param {number} seed varies the field values
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeFooBar_ = function(seed) {
+    var fooBar = new gotcake.FooBar();
+    for (var i = 0; i < 4; ++i) {
+        fooBar.int32.push(seed * 100 - i);
+        fooBar.fixed32.push(seed + i);
+        fooBar.int64.push(seed * 1000000 + i);
+        fooBar.flag.push(i % 2 === 0);
+        fooBar.strings.push('string' + seed + i);
+        fooBar.uint32.push(seed * 3 + i);
+        fooBar.sint32.push(i - seed);
+        fooBar.float64.push(seed / (i + 1));
+    }
+    return fooBar.encode().toArrayBuffer();
+};
+
+
+/**
+ * Describes the shape of a message as its property names in creation order, each with the type of its value.
+ * Engines give objects with the same properties, created in the same order and holding the same kinds of values,
+ * the same hidden class, which keeps property access in the decode path monomorphic.
+ * @param {Object} message the message
+ * @returns {string}
+ */
+gotcake.closure.benchmark.getShape_ = function(message) {
+    var shape = [];
+    for (var key in message) {
+        if (message.hasOwnProperty(key)) {
+            var value = message[key];
+            shape.push(key + ':' + (value === null ? 'null' : typeof value));
+        }
+    }
+    return shape.join(',');
+};
+
+
+/**
+ * Decodes the sources in turn and reads the numeric fields of each message.
+ * Each message type has its own copy of the loop, so that the loop itself only ever sees one shape.
+ * @param {ArrayBuffer[]} sources the encoded messages
+ * @returns {number} the time taken in milliseconds
+ */
+gotcake.closure.benchmark.timeDecodeStuff_ = function(sources) {
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < gotcake.closure.benchmark.ITERATIONS; ++i) {
+        var stuff = new gotcake.proto.Stuff().decode(sources[i % sources.length]);
+        sum += stuff.containment.id + stuff.containment.type + stuff.containment.volume;
+        for (var j = 0; j < stuff.things.length; ++j) {
+            sum += stuff.things[j].kind;
+        }
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return Date.now() - start;
+};
+
+
+/**
+ * The same as timeDecodeStuff_, for the shape-stable types
+ * @param {ArrayBuffer[]} sources the encoded messages
+ * @returns {number} the time taken in milliseconds
+ */
+gotcake.closure.benchmark.timeDecodeStableStuff_ = function(sources) {
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < gotcake.closure.benchmark.ITERATIONS; ++i) {
+        var stuff = new gotcake.proto.stable.Stuff().decode(sources[i % sources.length]);
+        sum += stuff.containment.id + stuff.containment.type + stuff.containment.volume;
+        for (var j = 0; j < stuff.things.length; ++j) {
+            sum += stuff.things[j].kind;
+        }
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return Date.now() - start;
+};
+
+
+/**
+ * The same as timeDecodeStuff_, for the types that dispatch every field on its tag
+ * @param {ArrayBuffer[]} sources the encoded messages
+ * @returns {number} the time taken in milliseconds
+ */
+gotcake.closure.benchmark.timeDecodeDispatchStuff_ = function(sources) {
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < gotcake.closure.benchmark.ITERATIONS; ++i) {
+        var stuff = new gotcake.proto.dispatch.Stuff().decode(sources[i % sources.length]);
+        sum += stuff.containment.id + stuff.containment.type + stuff.containment.volume;
+        for (var j = 0; j < stuff.things.length; ++j) {
+            sum += stuff.things[j].kind;
+        }
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return Date.now() - start;
+};
+
+
+/**
+ * Decodes the FooBar sources in turn and reads a numeric field of each message
+ * @param {ArrayBuffer[]} sources the encoded messages
+ * @returns {number} the time taken in milliseconds
+ */
+gotcake.closure.benchmark.timeDecodeFooBar_ = function(sources) {
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < gotcake.closure.benchmark.ITERATIONS; ++i) {
+        var fooBar = new gotcake.FooBar().decode(sources[i % sources.length]);
+        sum += fooBar.int32[0] + fooBar.float64.length;
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return Date.now() - start;
+};
+
+
+/**
+ * The same as timeDecodeFooBar_, for the type that dispatches every field on its tag
+ * @param {ArrayBuffer[]} sources the encoded messages
+ * @returns {number} the time taken in milliseconds
+ */
+gotcake.closure.benchmark.timeDecodeDispatchFooBar_ = function(sources) {
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < gotcake.closure.benchmark.ITERATIONS; ++i) {
+        var fooBar = new gotcake.proto.dispatch.FooBar().decode(sources[i % sources.length]);
+        sum += fooBar.int32[0] + fooBar.float64.length;
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return Date.now() - start;
+};
+
+
+/**
+ * Compares decoding messages by trying the tag of each field in field number order with dispatching every field on
+ * its tag, for the Stuff and FooBar messages
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ * @param {ArrayBuffer[]} sources the encoded Stuff messages
+ */
+gotcake.closure.benchmark.runFieldOrderBenchmarks_ = function(log, results, sources) {
+    var fooBarSources = [];
+    for (var seed = 0; seed < 16; ++seed) {
+        fooBarSources.push(gotcake.closure.benchmark.encodeFooBar_(seed));
+    }
+
+    // warm up every path before timing them
+    gotcake.closure.benchmark.timeDecodeDispatchStuff_(sources);
+    gotcake.closure.benchmark.timeDecodeFooBar_(fooBarSources);
+    gotcake.closure.benchmark.timeDecodeDispatchFooBar_(fooBarSources);
+
+    results['dispatchDecodeMillis'] = gotcake.closure.benchmark.timeDecodeDispatchStuff_(sources);
+    results['fooBarDecodeMillis'] = gotcake.closure.benchmark.timeDecodeFooBar_(fooBarSources);
+    results['dispatchFooBarDecodeMillis'] = gotcake.closure.benchmark.timeDecodeDispatchFooBar_(fooBarSources);
+    log('decode ' + gotcake.closure.benchmark.ITERATIONS + ' messages dispatching every field: ' +
+            results['dispatchDecodeMillis'] + ' ms');
+    log('decode ' + gotcake.closure.benchmark.ITERATIONS + ' FooBars: ' + results['fooBarDecodeMillis'] + ' ms');
+    log('decode ' + gotcake.closure.benchmark.ITERATIONS + ' FooBars dispatching every field: ' +
+            results['dispatchFooBarDecodeMillis'] + ' ms');
+};
+
+
+/**
+ * Encodes a FooBar with only its repeated strings field set
+ * @param {number} length the length of each string
+ * @param {boolean} ascii true for strings of ASCII characters only, false to mix in characters of two and three bytes
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeFooBarStrings_ = function(length, ascii) {
+    var fooBar = new gotcake.FooBar();
+    var characters = ascii ? 'abcdefghijklmnopqrstuvwxyz' : 'abcdéfghijklmnöpqrstuvwxyz€';
+    for (var i = 0; i < 64; ++i) {
+        var value = '';
+        for (var j = 0; j < length; ++j) {
+            value += characters.charAt((i + j * 7) % characters.length);
+        }
+        fooBar.strings.push(value);
+    }
+    return fooBar.encode().toArrayBuffer();
+};
+
+
+/**
+ * Reads a string the way the buffer did before strings had their own decoders, for comparison
+ * @this {gotcake.proto.Buffer}
+ * @returns {string}
+ */
+gotcake.closure.benchmark.readVStringByEscaping_ = function() {
+    var numBytes = this.readVarint32();
+    var bytes = Array.prototype.slice.call(new Uint8Array(this.buffer, this.offset, numBytes));
+    this.offset += numBytes;
+    return decodeURIComponent(escape(String.fromCharCode.apply(null, bytes)));
+};
+
+
+/**
+ * Reads every string of an encoded FooBar repeatedly
+ * @param {ArrayBuffer} source the FooBar, with only its strings field set
+ * @param {function(this:gotcake.proto.Buffer):string} readString reads each string
+ * @returns {number} the time taken per string in nanoseconds
+ */
+gotcake.closure.benchmark.timeReadStrings_ = function(source, readString) {
+    var count = 0;
+    var length = 0;
+    var start = Date.now();
+    while (count < gotcake.closure.benchmark.CONFIG_FIELDS / 10) {
+        var buffer = new gotcake.proto.Buffer(source);
+        while (buffer.offset < buffer.end) {
+            buffer.readVarint32(); // the tag of the strings field
+            length += readString.call(buffer).length;
+            ++count;
+        }
+    }
+    gotcake.closure.benchmark.checkSum_(length);
+    return (Date.now() - start) * 1000000 / count;
+};
+
+
+/**
+ * Compares the ways of decoding strings, over the strings field of FooBar
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runStringBenchmarks_ = function(log, results) {
+    var readers = [
+        ['auto', gotcake.proto.Buffer.prototype.readVString],
+        ['textDecoder', gotcake.proto.Buffer.prototype.readVStringWithTextDecoder],
+        ['javascript', gotcake.proto.Buffer.prototype.readVStringInJavascript],
+        ['escaping', gotcake.closure.benchmark.readVStringByEscaping_]
+    ];
+    var lengths = [8, 32, 256];
+    for (var i = 0; i < lengths.length; ++i) {
+        for (var ascii = 1; ascii >= 0; --ascii) {
+            var source = gotcake.closure.benchmark.encodeFooBarStrings_(lengths[i], !!ascii);
+            var line = 'decode ' + (ascii ? 'ASCII' : 'UTF-8') + ' strings of ' + lengths[i] + ' characters:';
+            for (var j = 0; j < readers.length; ++j) {
+                // warm up each reader before timing it
+                gotcake.closure.benchmark.timeReadStrings_(source, readers[j][1]);
+                var nanos = gotcake.closure.benchmark.timeReadStrings_(source, readers[j][1]);
+                results[readers[j][0] + (ascii ? 'Ascii' : 'Utf8') + 'StringNanos' + lengths[i]] = nanos;
+                line += ' ' + readers[j][0] + ' ' + nanos.toFixed(0) + ' ns';
+            }
+            log(line);
+        }
+    }
+};
+
+
+/**
+ * Encodes an image with pixels of the given size
+ * @param {number} numBytes the size of the pixels in bytes
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeImage_ = function(numBytes) {
+    var pixels = new Uint8Array(numBytes);
+    for (var i = 0; i < numBytes; ++i) {
+        pixels[i] = i * 31;
+    }
+    var image = new gotcake.proto.image.Image();
+    image.setName('benchmark');
+    image.setWidth(numBytes >> 2);
+    image.setHeight(1);
+    image.setPixels(pixels);
+    return image.encode().toArrayBuffer();
+};
+
+
+/**
+ * Decodes an image repeatedly
+ * @param {function(new:gotcake.proto.Message)} messageType the message type, Image or CopiedImage
+ * @param {ArrayBuffer} source the encoded image
+ * @returns {number} the time taken per image in microseconds
+ */
+gotcake.closure.benchmark.timeDecodeImage_ = function(messageType, source) {
+    var iterations = Math.max(1000, Math.ceil(gotcake.closure.benchmark.CONFIG_FIELDS * 16 / source.byteLength));
+    var numBytes = 0;
+    var start = Date.now();
+    for (var i = 0; i < iterations; ++i) {
+        numBytes += new messageType().decode(source).pixels.byteLength;
+    }
+    gotcake.closure.benchmark.checkSum_(numBytes);
+    return (Date.now() - start) * 1000 / iterations;
+};
+
+
+/**
+ * Compares decoding the pixels of images as views of the source buffer and as copies, over Image and CopiedImage
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runBytesBenchmarks_ = function(log, results) {
+    var sizes = [1024, 65536, 1048576];
+    for (var i = 0; i < sizes.length; ++i) {
+        var source = gotcake.closure.benchmark.encodeImage_(sizes[i]);
+        // warm up both paths before timing them
+        gotcake.closure.benchmark.timeDecodeImage_(gotcake.proto.image.Image, source);
+        gotcake.closure.benchmark.timeDecodeImage_(gotcake.proto.image.CopiedImage, source);
+        var viewMicros = gotcake.closure.benchmark.timeDecodeImage_(gotcake.proto.image.Image, source);
+        var copyMicros = gotcake.closure.benchmark.timeDecodeImage_(gotcake.proto.image.CopiedImage, source);
+        results['viewImageMicros' + sizes[i]] = viewMicros;
+        results['copyImageMicros' + sizes[i]] = copyMicros;
+        log('decode an image of ' + sizes[i] + ' bytes: ' + viewMicros.toFixed(2) + ' us with a view, ' +
+                copyMicros.toFixed(2) + ' us with a copy');
+    }
+};
+
+
+/**
+ * Creates a GadgetV2 with every field set and a part for each seed below the given one
+ * @param {number} seed varies the field values
+ * @returns {gotcake.proto.passthrough.GadgetV2}
+ */
+gotcake.closure.benchmark.createGadgetV2_ = function(seed) {
+    var gadget = new gotcake.proto.passthrough.GadgetV2();
+    gadget.setName('gadget ' + seed);
+    gadget.setSerial(seed * 1000003);
+    gadget.setChecksum(seed * 7919);
+    gadget.setWeight(seed / 3);
+    gadget.setFirmware(new ArrayBuffer(64 + seed));
+    for (var i = 0; i < 8; ++i) {
+        gadget.readings.push(seed * i - 20);
+    }
+    gadget.setVendor('vendor ' + seed);
+    for (var j = 0; j < seed; ++j) {
+        gadget.parts.push(gotcake.closure.benchmark.createGadgetV2_(j));
+    }
+    return gadget;
+};
+
+
+/**
+ * Decodes a message and encodes it again repeatedly
+ * @param {function(new:gotcake.proto.Message)} messageType the message type to decode the source as
+ * @param {ArrayBuffer} source the encoded message
+ * @returns {number} the time taken per message in microseconds
+ */
+gotcake.closure.benchmark.timePassThrough_ = function(messageType, source) {
+    var iterations = gotcake.closure.benchmark.ITERATIONS;
+    var numBytes = 0;
+    var start = Date.now();
+    for (var i = 0; i < iterations; ++i) {
+        numBytes += new messageType().decode(source).encode().offset;
+    }
+    if (numBytes !== source.byteLength * iterations) {
+        throw Error('unexpected field values');
+    }
+    return (Date.now() - start) * 1000 / iterations;
+};
+
+
+/**
+ * Compares passing a GadgetV2 through as a Gadget, which keeps the fields it doesn't know as ranges of the source,
+ * with decoding and encoding every field as a GadgetV2
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runPassThroughBenchmarks_ = function(log, results) {
+    var source = gotcake.closure.benchmark.createGadgetV2_(6).encode().toArrayBuffer();
+    // warm up both paths before timing them
+    gotcake.closure.benchmark.timePassThrough_(gotcake.proto.passthrough.Gadget, source);
+    gotcake.closure.benchmark.timePassThrough_(gotcake.proto.passthrough.GadgetV2, source);
+    results['unknownPassThroughMicros'] = gotcake.closure.benchmark.timePassThrough_(gotcake.proto.passthrough.Gadget, source);
+    results['knownPassThroughMicros'] = gotcake.closure.benchmark.timePassThrough_(gotcake.proto.passthrough.GadgetV2, source);
+    log('pass a message of ' + source.byteLength + ' bytes through: ' +
+            results['unknownPassThroughMicros'].toFixed(2) + ' us with unknown fields kept as ranges, ' +
+            results['knownPassThroughMicros'].toFixed(2) + ' us with every field decoded');
+};
+
+
+/**
+ * Builds and encodes a Profile with every field set and a few contacts
+ * @param {number} seed varies the field values
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeProfile_ = function(seed) {
+    var profile = new gotcake.proto.profile.Profile();
+    profile.setId(seed * 1000003);
+    profile.setName('name ' + seed);
+    profile.setEmail('user' + seed + '@example.com');
+    var address = new gotcake.proto.profile.Address();
+    address.setStreet(seed + ' long street');
+    address.setCity('city ' + seed);
+    address.setCountry('country ' + seed);
+    address.setPostcode('' + (10000 + seed));
+    profile.setAddress(address);
+    for (var i = 0; i < 4; ++i) {
+        var contact = new gotcake.proto.profile.Contact();
+        contact.setKind('kind ' + i);
+        contact.setValue('value ' + seed + ' ' + i);
+        contact.setVerified(i % 2 === 0);
+        contact.setAddress(address);
+        profile.contacts.push(contact);
+        profile.tags.push('tag ' + i);
+    }
+    for (var j = 0; j < 16; ++j) {
+        profile.scores.push(seed * j - 50);
+    }
+    profile.setAvatar(new ArrayBuffer(256));
+    profile.setRating(seed / 7);
+    // the detail fields repeat the ten types of the first ten details
+    profile.setDetail1('detail ' + seed);
+    profile.setDetail11('detail ' + (seed + 11));
+    profile.setDetail21('detail ' + (seed + 21));
+    profile.setDetail31('detail ' + (seed + 31));
+    profile.setDetail2(seed * 3);
+    profile.setDetail12(seed * 5);
+    profile.setDetail22(seed * 7);
+    profile.setDetail32(seed * 11);
+    profile.setDetail5(seed / 3);
+    profile.setDetail15(seed / 5);
+    profile.setDetail25(seed / 7);
+    profile.setDetail35(seed / 11);
+    return profile.encode().toArrayBuffer();
+};
+
+
+/**
+ * Decodes messages with a field mask repeatedly
+ * @param {Array.<ArrayBuffer>} sources the encoded messages
+ * @param {gotcake.proto.FieldMask} mask the fields to decode, or null to decode every field
+ * @returns {number} the time taken per message in microseconds
+ */
+gotcake.closure.benchmark.timeDecodeProfile_ = function(sources, mask) {
+    var iterations = gotcake.closure.benchmark.ITERATIONS;
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < iterations; ++i) {
+        var profile = new gotcake.proto.profile.Profile().decodeMasked(sources[i & 15], mask);
+        sum += profile.name.length + profile.address.city.length;
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return (Date.now() - start) * 1000 / iterations;
+};
+
+
+/**
+ * Compares decoding the name, email and address city of a wide Profile through a field mask, which skips every other
+ * field without decoding it, with decoding every field
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runFieldMaskBenchmarks_ = function(log, results) {
+    var sources = [];
+    for (var seed = 0; seed < 16; ++seed) {
+        sources.push(gotcake.closure.benchmark.encodeProfile_(seed));
+    }
+    var mask = gotcake.proto.FieldMask.fromPaths(gotcake.proto.profile.Profile.getMaskField,
+            ['name', 'email', 'address.city']);
+    // warm up both paths before timing them
+    gotcake.closure.benchmark.timeDecodeProfile_(sources, mask);
+    gotcake.closure.benchmark.timeDecodeProfile_(sources, null);
+    results['maskedDecodeMicros'] = gotcake.closure.benchmark.timeDecodeProfile_(sources, mask);
+    results['unmaskedDecodeMicros'] = gotcake.closure.benchmark.timeDecodeProfile_(sources, null);
+    log('decode a profile of ' + sources[0].byteLength + ' bytes: ' +
+            results['maskedDecodeMicros'].toFixed(2) + ' us for three fields with a field mask, ' +
+            results['unmaskedDecodeMicros'].toFixed(2) + ' us with every field decoded');
+};
+
+
+/**
+ * Builds and encodes an Event with some values and labels
+ * @param {number} seed varies the field values
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeEvent_ = function(seed) {
+    var event = new gotcake.proto.optimize.Event();
+    event.setTimestamp(1400000000000 + seed);
+    event.setKind('kind ' + seed);
+    for (var i = 0; i < 32; ++i) {
+        event.values.push(seed * i - 100);
+    }
+    for (var j = 0; j < 4; ++j) {
+        var label = new gotcake.proto.optimize.Label();
+        label.setText('label ' + j);
+        label.setColor(seed * 0x10101 + j);
+        event.labels.push(label);
+    }
+    return event.encode().toArrayBuffer();
+};
+
+
+/**
+ * Decodes messages repeatedly
+ * @param {function(ArrayBuffer):number} decodeEvent decodes a message and returns the number of values and labels
+ * @param {Array.<ArrayBuffer>} sources the encoded messages
+ * @returns {number} the time taken per message in microseconds
+ */
+gotcake.closure.benchmark.timeDecodeEvent_ = function(decodeEvent, sources) {
+    var iterations = gotcake.closure.benchmark.ITERATIONS;
+    var sum = 0;
+    var start = Date.now();
+    for (var i = 0; i < iterations; ++i) {
+        sum += decodeEvent(sources[i & 15]);
+    }
+    gotcake.closure.benchmark.checkSum_(sum);
+    return (Date.now() - start) * 1000 / iterations;
+};
+
+
+/**
+ * Compares decoding an Event, which is optimized for SPEED, with its copy CompactEvent, which gets the CODE_SIZE code
+ * of optimize.proto
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runOptimizeForBenchmarks_ = function(log, results) {
+    var sources = [];
+    for (var seed = 0; seed < 16; ++seed) {
+        sources.push(gotcake.closure.benchmark.encodeEvent_(seed));
+    }
+    var decodeEvent = function(source) {
+        var event = new gotcake.proto.optimize.Event().decode(source);
+        return event.values.length + event.labels.length;
+    };
+    var decodeCompactEvent = function(source) {
+        var event = new gotcake.proto.optimize.CompactEvent().decode(source);
+        return event.values.length + event.labels.length;
+    };
+    // warm up both paths before timing them
+    gotcake.closure.benchmark.timeDecodeEvent_(decodeEvent, sources);
+    gotcake.closure.benchmark.timeDecodeEvent_(decodeCompactEvent, sources);
+    results['speedDecodeMicros'] = gotcake.closure.benchmark.timeDecodeEvent_(decodeEvent, sources);
+    results['codeSizeDecodeMicros'] = gotcake.closure.benchmark.timeDecodeEvent_(decodeCompactEvent, sources);
+    log('decode an event of ' + sources[0].byteLength + ' bytes: ' +
+            results['speedDecodeMicros'].toFixed(2) + ' us optimized for speed, ' +
+            results['codeSizeDecodeMicros'].toFixed(2) + ' us optimized for code size');
+};
+
+
+/**
+ * The number of fields decoded by each timed run of a config message
+ * @type {number}
+ * @const
+ */
+gotcake.closure.benchmark.CONFIG_FIELDS = 2000000;
+
+
+/**
+ * Encodes a config message with each of its fields set. The fields are written straight to a buffer, so that the
+ * same source can be decoded by both copies of the message.
+ * @param {number} fieldCount the number of fields of the message, which are numbered from 1
+ * @returns {ArrayBuffer}
+ */
+gotcake.closure.benchmark.encodeConfig_ = function(fieldCount) {
+    var buffer = new gotcake.proto.Buffer(fieldCount * 4);
+    for (var number = 1; number <= fieldCount; ++number) {
+        buffer.writeVarint32(number << 3); // wire type VARINT
+        buffer.writeVarint32(number * 37);
+    }
+    return buffer.toArrayBuffer();
+};
+
+
+/**
+ * Decodes a config message repeatedly
+ * @param {function(new:gotcake.proto.Message)} messageType the message type
+ * @param {ArrayBuffer} source the encoded message
+ * @param {number} fieldCount the number of fields set in the source
+ * @returns {number} the time taken per field in nanoseconds
+ */
+gotcake.closure.benchmark.timeDecodeConfig_ = function(messageType, source, fieldCount) {
+    var iterations = Math.ceil(gotcake.closure.benchmark.CONFIG_FIELDS / fieldCount);
+    var message = null;
+    var start = Date.now();
+    for (var i = 0; i < iterations; ++i) {
+        message = new messageType().decode(source);
+    }
+    var millis = Date.now() - start;
+    if (message.getSerializedSize() !== source.byteLength) {
+        throw Error('unexpected field values');
+    }
+    return millis * 1000000 / (iterations * fieldCount);
+};
+
+
+/**
+ * Compares decoding config messages of increasing size through a switch on the tag and through a table of
+ * per-field functions, to find where the table becomes faster
+ * @param {function(string)} log receives each line of the results
+ * @param {Object.<string,*>} results the results to add to
+ */
+gotcake.closure.benchmark.runDispatchBenchmarks_ = function(log, results) {
+    var configs = [
+        [16, gotcake.proto.config.Config16, gotcake.proto.config.table.Config16],
+        [32, gotcake.proto.config.Config32, gotcake.proto.config.table.Config32],
+        [64, gotcake.proto.config.Config64, gotcake.proto.config.table.Config64],
+        [200, gotcake.proto.config.Config200, gotcake.proto.config.table.Config200]
+    ];
+    for (var i = 0; i < configs.length; ++i) {
+        var fieldCount = configs[i][0];
+        var source = gotcake.closure.benchmark.encodeConfig_(fieldCount);
+        // warm up both paths before timing them
+        gotcake.closure.benchmark.timeDecodeConfig_(configs[i][1], source, fieldCount);
+        gotcake.closure.benchmark.timeDecodeConfig_(configs[i][2], source, fieldCount);
+        var switchNanos = gotcake.closure.benchmark.timeDecodeConfig_(configs[i][1], source, fieldCount);
+        var tableNanos = gotcake.closure.benchmark.timeDecodeConfig_(configs[i][2], source, fieldCount);
+        results['switchNanos' + fieldCount] = switchNanos;
+        results['tableNanos' + fieldCount] = tableNanos;
+        log('decode ' + fieldCount + ' fields: ' + switchNanos.toFixed(1) + ' ns per field through a switch, ' +
+                tableNanos.toFixed(1) + ' ns per field through a table');
+    }
+};
+
+
+/**
+ * Makes sure the fields read by a timed loop were decoded, which also keeps the reads from being optimized away
+ * @param {number} sum the sum of the fields
+ */
+gotcake.closure.benchmark.checkSum_ = function(sum) {
+    if (isNaN(sum)) {
+        throw Error('unexpected field values');
+    }
+};
+
+
+/**
+ * Compares decoding the messages of stuff.proto with their shape-stable copies in stablestuff.proto, the messages of
+ * stuff.proto and foobar.proto with their copies in dispatchstuff.proto, the messages of config.proto with their
+ * table dispatched copies in tableconfig.proto, the ways of decoding strings, bytes decoded as views and copies,
+ * messages passed through with unknown fields, the messages of profile.proto decoded with and without a field mask,
+ * and the messages of optimize.proto optimized for speed and for code size
+ * @param {function(string)=} opt_log receives each line of the results, which defaults to the console
+ * @returns {Object.<string,*>} the results
+ */
+gotcake.closure.benchmark.runBenchmarks = function(opt_log) {
+    var log = opt_log || function(line) {
+        window.console.log(line);
+    };
+    var sources = [], stableSources = [];
+    for (var seed = 0; seed < 16; ++seed) {
+        sources.push(gotcake.closure.benchmark.encodeStuff_(seed));
+        stableSources.push(gotcake.closure.benchmark.encodeStableStuff_(seed));
+    }
+
+    var decoded = new gotcake.proto.Stuff().decode(sources[0]);
+    var stableDecoded = new gotcake.proto.stable.Stuff().decode(stableSources[0]);
+    var results = {
+        'shapeStable': gotcake.closure.benchmark.getShape_(new gotcake.proto.Stuff.Containment()) ===
+                gotcake.closure.benchmark.getShape_(decoded.containment),
+        'stableShapeStable': gotcake.closure.benchmark.getShape_(new gotcake.proto.stable.Stuff.Containment()) ===
+                gotcake.closure.benchmark.getShape_(stableDecoded.containment)
+    };
+    log('default fields keep their shape when decoded: ' + results['shapeStable']);
+    log('shape-stable fields keep their shape when decoded: ' + results['stableShapeStable']);
+
+    // warm up both paths before timing them
+    gotcake.closure.benchmark.timeDecodeStuff_(sources);
+    gotcake.closure.benchmark.timeDecodeStableStuff_(stableSources);
+
+    results['decodeMillis'] = gotcake.closure.benchmark.timeDecodeStuff_(sources);
+    results['stableDecodeMillis'] = gotcake.closure.benchmark.timeDecodeStableStuff_(stableSources);
+    log('decode ' + gotcake.closure.benchmark.ITERATIONS + ' messages: ' + results['decodeMillis'] + ' ms');
+    log('decode ' + gotcake.closure.benchmark.ITERATIONS + ' shape-stable messages: ' + results['stableDecodeMillis'] + ' ms');
+
+    gotcake.closure.benchmark.runFieldOrderBenchmarks_(log, results, sources);
+    gotcake.closure.benchmark.runDispatchBenchmarks_(log, results);
+    gotcake.closure.benchmark.runStringBenchmarks_(log, results);
+    gotcake.closure.benchmark.runBytesBenchmarks_(log, results);
+    gotcake.closure.benchmark.runPassThroughBenchmarks_(log, results);
+    gotcake.closure.benchmark.runFieldMaskBenchmarks_(log, results);
+    gotcake.closure.benchmark.runOptimizeForBenchmarks_(log, results);
+    return results;
+};
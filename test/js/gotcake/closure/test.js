@@ -4,46 +4,57 @@ goog.provide('gotcake.closure.test');
 goog.require('goog.net.XhrIo');
 goog.require('gotcake.FooBar');
 goog.require('gotcake.PackedThingy');
+goog.require('gotcake.proto.Buffer');
+goog.require('gotcake.proto.FieldMask');
+goog.require('gotcake.proto.Stuff');
+goog.require('gotcake.proto.image.CopiedImage');
+goog.require('gotcake.proto.image.Image');
+goog.require('gotcake.proto.inline.CompactFooBar');
+goog.require('gotcake.proto.inline.FooBar');
+goog.require('gotcake.proto.inline.PackedThingy');
+goog.require('gotcake.proto.lazy.Document');
+goog.require('gotcake.proto.lazy.Part');
+goog.require('gotcake.proto.passthrough.Gadget');
+goog.require('gotcake.proto.optimize.CompactEvent');
+goog.require('gotcake.proto.optimize.Event');
+goog.require('gotcake.proto.optimize.Label');
+goog.require('gotcake.proto.optimize.Query');
+goog.require('gotcake.proto.optimize.QueryEcho');
+goog.require('gotcake.proto.passthrough.GadgetV2');
+goog.require('gotcake.proto.profile.Address');
+goog.require('gotcake.proto.profile.Contact');
+goog.require('gotcake.proto.profile.Profile');
+goog.require('gotcake.proto.typed.TypedThingy');
+goog.require('gotcake.proto.typed.UnpackedThingy');
+goog.require('gotcake.proto.varints.Varints');
 
 
 /**
- * Executes a test against gotcake.FooBar
+ * Executes a test against gotcake.FooBar, and again against gotcake.proto.inline.FooBar
  * @param {string} name
  * @param {Object.<string,*>} data
- * @param {!function(*, gotcake.FooBar, *)} cb
+ * @param {!function(*, (gotcake.FooBar|gotcake.proto.inline.FooBar), *)} cb
  */
 gotcake.closure.test.testFooBar = function(name, data, cb) {
-    QUnit.test(name,  function(assert) {
-        var done = assert['async']();
-        gotcake.closure.test.ajaxBinary('POST', '/get?type=FooBar', 'application/json; charset=UTF-8', JSON.stringify(data), function(xhr) {
-            if (xhr.isSuccess()) {
-                var arrBuff = xhr.getResponse();
-                var msg = new gotcake.FooBar();
-                msg.decode(arrBuff);
-                cb(assert, msg, data);
-                done();
-            } else {
-                throw Error('Request returned with status: ' + xhr.getStatus());
-            }
-        });
-    });
+    gotcake.closure.test.testDecode_(name, 'FooBar', gotcake.FooBar, data, cb);
+    gotcake.closure.test.testDecode_(name + " inline", 'FooBar', gotcake.proto.inline.FooBar, data, cb);
 };
 
 /**
- * Executes a test against gotcake.FooBar
+ * Executes an encode/decode round trip test against gotcake.proto.Stuff
  * @param {string} name
- * @param {gotcake.Stuff} stuff
- * @param {!function(*, gotcake.Stuff, *)} cb
+ * @param {gotcake.proto.Stuff} stuff
+ * @param {!function(*, gotcake.proto.Stuff, gotcake.proto.Stuff)} cb
  */
 gotcake.closure.test.stuffEchoTest = function(name, stuff, cb) {
     QUnit.test(name,  function(assert) {
         var done = assert['async']();
-        gotcake.closure.test.ajaxBinary('POST', '/echo?type=Stuff', 'application/x-protobuf', stuff.encode(), function(xhr) {
+        gotcake.closure.test.ajaxBinary('POST', '/echo?type=Stuff', 'application/x-protobuf', stuff.encode().toArrayBuffer(), function(xhr) {
             if (xhr.isSuccess()) {
                 var arrBuff = xhr.getResponse();
-                var msg = new gotcake.FooBar();
+                var msg = new gotcake.proto.Stuff();
                 msg.decode(arrBuff);
-                cb(assert, msg, data);
+                cb(assert, msg, stuff);
                 done();
             } else {
                 throw Error('Request returned with status: ' + xhr.getStatus());
@@ -53,18 +64,33 @@ gotcake.closure.test.stuffEchoTest = function(name, stuff, cb) {
 };
 
 /**
- * Executes a test against gotcake.PackedThingy
+ * Executes a test against gotcake.PackedThingy, and again against gotcake.proto.inline.PackedThingy
  * @param {string} name
  * @param {Object.<string,*>} data
- * @param {!function(*, gotcake.PackedThingy, *)} cb
+ * @param {!function(*, (gotcake.PackedThingy|gotcake.proto.inline.PackedThingy), *)} cb
  */
 gotcake.closure.test.testPackedThingy = function(name, data, cb) {
+    gotcake.closure.test.testDecode_(name, 'PackedThingy', gotcake.PackedThingy, data, cb);
+    gotcake.closure.test.testDecode_(name + " inline", 'PackedThingy', gotcake.proto.inline.PackedThingy, data, cb);
+};
+
+
+/**
+ * Executes a test that decodes a message of the given type from the server
+ * @param {string} name
+ * @param {string} type the name of the message type on the server
+ * @param {function(new:gotcake.proto.Message)} ctor the constructor of the message to decode
+ * @param {Object.<string,*>} data
+ * @param {!function(*, ?, *)} cb
+ * @private
+ */
+gotcake.closure.test.testDecode_ = function(name, type, ctor, data, cb) {
     QUnit.test(name,  function(assert) {
         var done = assert['async']();
-        gotcake.closure.test.ajaxBinary('POST', '/get?type=PackedThingy', 'application/json; charset=UTF-8', JSON.stringify(data), function(xhr) {
+        gotcake.closure.test.ajaxBinary('POST', '/get?type=' + type, 'application/json; charset=UTF-8', JSON.stringify(data), function(xhr) {
             if (xhr.isSuccess()) {
                 var arrBuff = xhr.getResponse();
-                var msg = new gotcake.PackedThingy();
+                var msg = new ctor();
                 msg.decode(arrBuff);
                 cb(assert, msg, data);
                 done();
@@ -133,12 +159,34 @@ gotcake.closure.test.runTests = function() {
     var float64s = [0, 1, 7654321, 1.7976931348623157e+308, 2.2250738585072014E-308, 4.9e-324, 0/0, 1/0, -1/0];
     var signedInts = [2147483647, -2147483648, 0, -75, 6, 123456, -1];
     var usignedInts = [2147483647, 4294967295, 0, 76, 2147483648, 123456, 1];
+    // 64-bit fields are decoded as numbers by default, so only values up to 2^53 are exact
+    var signedLongs = [9007199254740991, -9007199254740991, 0, -75, 4294967296, -4294967297, -1];
+    var unsignedLongs = [9007199254740991, 4294967295, 0, 76, 4294967296, 123456, 1];
 
     // test unpacked fields
 
     gotcake.closure.test.testFooBar("decode bytes", {'rawbytes':bytes1}, function(assert, msg){
         assert['deepEqual'](gotcake.closure.test.extractArrays_(msg.rawbytes), bytes1, "All bytes must match");
     });
+    gotcake.closure.test.testFooBar("decode bytes as views", {'rawbytes':bytes1}, function(assert, msg){
+        var copied = new gotcake.proto.image.CopiedImage();
+        copied.thumbnails = msg.rawbytes;
+        var source = copied.encode().toArrayBuffer();
+        var image = new gotcake.proto.image.Image().decode(source);
+        var thumbnails = [];
+        for (var i = 0; i < image.thumbnails.length; ++i) {
+            assert['strictEqual'](image.thumbnails[i].buffer, source, "Thumbnails must view the source buffer");
+            thumbnails.push(Array.prototype.slice.call(image.thumbnails[i]));
+        }
+        assert['deepEqual'](thumbnails, bytes1, "All bytes must match");
+        var owned = gotcake.proto.Buffer.copyBytes(image.thumbnails[0]);
+        new Uint8Array(source)[image.thumbnails[0].byteOffset] = 255;
+        assert['strictEqual'](image.thumbnails[0][0], 255, "Views must see changes to the source buffer");
+        assert['strictEqual'](owned[0], bytes1[0][0], "Copies must not see changes to the source buffer");
+        image.thumbnails[0][0] = bytes1[0][0];
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([image.encode().toArrayBuffer()]),
+                gotcake.closure.test.extractArrays_([source]), "Views must encode to the same bytes");
+    });
     gotcake.closure.test.testFooBar("decode strings", {'strings':strings1}, function(assert, msg){
         assert['deepEqual'](msg.strings, strings1, "All strings must match");
     });
@@ -157,6 +205,21 @@ gotcake.closure.test.runTests = function() {
     gotcake.closure.test.testFooBar("decode sfixed32", {'sfixed32':signedInts}, function(assert, msg){
         assert['deepEqual'](msg.sfixed32, signedInts, "All ints must match");
     });
+    gotcake.closure.test.testFooBar("decode int64", {'int64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.int64, signedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testFooBar("decode sint64", {'sint64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.sint64, signedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testFooBar("decode uint64", {'uint64':unsignedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.uint64, unsignedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testFooBar("decode fixed64", {'fixed64':unsignedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.fixed64, unsignedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testFooBar("decode sfixed64", {'sfixed64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.sfixed64, signedLongs, "All longs must match");
+    });
     gotcake.closure.test.testFooBar("decode float32", {'float32':float32Literal}, function(assert, msg){
         assert['deepEqual'](msg.float32, float32s, "All floats must match");
     });
@@ -181,10 +244,554 @@ gotcake.closure.test.runTests = function() {
     gotcake.closure.test.testPackedThingy("decode packed sfixed32", {'sfixed32':signedInts}, function(assert, msg){
         assert['deepEqual'](msg.sfixed32, signedInts, "All ints must match");
     });
+    gotcake.closure.test.testPackedThingy("decode packed int64", {'int64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.int64, signedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testPackedThingy("decode packed sint64", {'sint64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.sint64, signedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testPackedThingy("decode packed uint64", {'uint64':unsignedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.uint64, unsignedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testPackedThingy("decode packed fixed64", {'fixed64':unsignedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.fixed64, unsignedLongs, "All longs must match");
+    });
+    gotcake.closure.test.testPackedThingy("decode packed sfixed64", {'sfixed64':signedLongs}, function(assert, msg){
+        assert['deepEqual'](msg.sfixed64, signedLongs, "All longs must match");
+    });
     gotcake.closure.test.testPackedThingy("decode packed float32", {'float32':float32Literal}, function(assert, msg){
         assert['deepEqual'](msg.float32, float32s, "All floats must match");
     });
     gotcake.closure.test.testPackedThingy("decode packed float64", {'float64':float64Literal}, function(assert, msg){
         assert['deepEqual'](msg.float64, float64s, "All floats must match");
     });
-};
\ No newline at end of file
+
+    // test inline decoding
+
+    QUnit.test("skip unknown fields with each decoder", function(assert) {
+        var buffer = new gotcake.proto.Buffer(1);
+        var head = new gotcake.FooBar();
+        head.int32 = signedInts.slice();
+        head.encode(buffer);
+        // fields 16 to 19 are unknown to FooBar, with one of each wire type but groups
+        buffer.writeVarint32(128); // number 16, VARINT
+        buffer.writeVarint32(300);
+        buffer.writeVarint32(137); // number 17, FIXED64
+        buffer.writeFloat64(0.5);
+        buffer.writeVarint32(146); // number 18, LENGTH_DELIMITED
+        buffer.writeVString(strings1[2]);
+        buffer.writeVarint32(157); // number 19, FIXED32
+        buffer.writeFloat32(0.5);
+        var tail = new gotcake.FooBar();
+        tail.strings = strings1.slice();
+        tail.float64 = float64s.slice();
+        tail.encode(buffer);
+        var source = buffer.toArrayBuffer();
+        var ctors = [gotcake.FooBar, gotcake.proto.inline.FooBar, gotcake.proto.inline.CompactFooBar];
+        for (var i = 0; i < ctors.length; ++i) {
+            var foobar = new ctors[i]().decode(source);
+            assert['deepEqual'](foobar.int32, signedInts, "Fields before unknown fields must match");
+            assert['deepEqual'](foobar.strings, strings1, "Fields after unknown fields must match");
+            assert['deepEqual'](foobar.float64, float64s, "Fields after unknown fields must match");
+        }
+    });
+
+    QUnit.test("decode length-delimited messages with each decoder", function(assert) {
+        // 100 two byte fields need a two byte length, so the last field is within the length of the end
+        var first = [];
+        for (var i = 0; i < 100; ++i) {
+            first.push(i);
+        }
+        var second = [-1, 1];
+        var ctors = [gotcake.FooBar, gotcake.proto.inline.FooBar, gotcake.proto.inline.CompactFooBar];
+        for (var j = 0; j < ctors.length; ++j) {
+            var buffer = new gotcake.proto.Buffer(1);
+            var foobar = new ctors[j]();
+            foobar.int32 = first;
+            foobar.encode(buffer, true);
+            foobar.int32 = second;
+            foobar.encode(buffer, true);
+            var source = new gotcake.proto.Buffer(buffer.toArrayBuffer());
+            assert['deepEqual'](new ctors[j]().decode(source, true).int32, first, "The last field must be decoded");
+            assert['deepEqual'](new ctors[j]().decode(source, true).int32, second,
+                    "The next message must start after the last field");
+            assert['strictEqual'](source.offset, source.end, "The whole buffer must be decoded");
+        }
+    });
+
+    // test string decoding
+
+    QUnit.test("decode UTF-8 with each string reader", function(assert) {
+        var readers = {
+            'auto': gotcake.proto.Buffer.prototype.readVString,
+            'textDecoder': gotcake.proto.Buffer.prototype.readVStringWithTextDecoder,
+            'javascript': gotcake.proto.Buffer.prototype.readVStringInJavascript
+        };
+        var long = '';
+        for (var i = 0; i < 1500; ++i) {
+            long += 'a\u00e9\u20ac\ud83d\ude00';
+        }
+        var valid = ['Aaron', 'caf\u00e9', '\u20ac\u1234', '\ud83d\ude00', strings1[2], 'a long ASCII string', long];
+        // each invalid case is the bytes of a string field followed by the decoding TextDecoder gives them
+        var invalid = [
+            [[0x61, 0xE2, 0x82], 'a\ufffd'],
+            [[0x61, 0xC3], 'a\ufffd'],
+            [[0xF0, 0x9F, 0x98], '\ufffd'],
+            [[0xFF, 0x41, 0x42, 0x43], '\ufffdABC'],
+            [[0x80, 0xBF, 0x41], '\ufffd\ufffdA'],
+            [[0xC0, 0xAF], '\ufffd\ufffd'],
+            [[0xED, 0xA0, 0x80], '\ufffd\ufffd\ufffd'],
+            [[0xF4, 0x90, 0x80, 0x80], '\ufffd\ufffd\ufffd\ufffd'],
+            [[0xE2, 0x41, 0x82, 0xAC], '\ufffdA\ufffd\ufffd'],
+            [[0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0x61, 0xE2, 0x82],
+                    'aaaaaaaaaaaaaaa\ufffd']
+        ];
+        var buffer = new gotcake.proto.Buffer(1);
+        for (var j = 0; j < valid.length; ++j) {
+            buffer.writeVString(valid[j]);
+            buffer.writeVString('A');
+        }
+        for (var k = 0; k < invalid.length; ++k) {
+            buffer.writeVBytesView(new Uint8Array(invalid[k][0]));
+            buffer.writeVString('A');
+        }
+        var source = buffer.toArrayBuffer();
+        for (var name in readers) {
+            var read = readers[name];
+            var decoder = new gotcake.proto.Buffer(source);
+            for (var m = 0; m < valid.length; ++m) {
+                assert['strictEqual'](read.call(decoder), valid[m], "Valid strings must match with " + name);
+                assert['strictEqual'](read.call(decoder), 'A', "The next field must be intact with " + name);
+            }
+            for (var n = 0; n < invalid.length; ++n) {
+                assert['strictEqual'](read.call(decoder), invalid[n][1], "Invalid UTF-8 must decode as TextDecoder does with " + name);
+                assert['strictEqual'](read.call(decoder), 'A', "Invalid UTF-8 must not take bytes of the next field with " + name);
+            }
+        }
+    });
+
+    // test typed arrays
+
+    var setThingyFields = function(thingy, count) {
+        for (var i = 0; i < count; ++i) {
+            thingy.int32[i] = signedInts[i % signedInts.length];
+            thingy.sint32[i] = signedInts[(i + 1) % signedInts.length];
+            thingy.uint32[i] = usignedInts[i % usignedInts.length];
+            thingy.fixed32[i] = usignedInts[(i + 1) % usignedInts.length];
+            thingy.sfixed32[i] = signedInts[(i + 2) % signedInts.length];
+            thingy.float32[i] = float32s[i % float32s.length];
+            thingy.float64[i] = float64s[i % float64s.length];
+        }
+        return thingy;
+    };
+    var getThingyFields = function(thingy) {
+        var fields = [thingy.int32, thingy.sint32, thingy.uint32, thingy.fixed32, thingy.sfixed32, thingy.float32,
+                thingy.float64];
+        for (var i = 0; i < fields.length; ++i) {
+            fields[i] = Array.prototype.slice.call(fields[i]);
+        }
+        return fields;
+    };
+    var newTypedThingy = function(count) {
+        var typed = new gotcake.proto.typed.TypedThingy();
+        typed.int32 = new Int32Array(count);
+        typed.sint32 = new Int32Array(count);
+        typed.uint32 = new Uint32Array(count);
+        typed.fixed32 = new Uint32Array(count);
+        typed.sfixed32 = new Int32Array(count);
+        typed.float32 = new Float32Array(count);
+        typed.float64 = new Float64Array(count);
+        return setThingyFields(typed, count);
+    };
+
+    QUnit.test("decode typed arrays from packed and unpacked fields", function(assert) {
+        var typed = newTypedThingy(9);
+        var unpacked = setThingyFields(new gotcake.proto.typed.UnpackedThingy(), 9);
+        var expected = getThingyFields(unpacked);
+        var packedSource = typed.encode().toArrayBuffer();
+        var unpackedSource = unpacked.encode().toArrayBuffer();
+
+        var fromPacked = new gotcake.proto.typed.TypedThingy().decode(packedSource);
+        assert['ok'](fromPacked.int32 instanceof Int32Array && fromPacked.float64 instanceof Float64Array,
+                "Fields must be decoded into typed arrays");
+        assert['deepEqual'](getThingyFields(fromPacked), expected, "Packed values must match");
+        var fromUnpacked = new gotcake.proto.typed.TypedThingy().decode(unpackedSource);
+        assert['ok'](fromUnpacked.uint32 instanceof Uint32Array && fromUnpacked.float32 instanceof Float32Array,
+                "Unpacked fields must be decoded into typed arrays");
+        assert['deepEqual'](getThingyFields(fromUnpacked), expected, "Unpacked values must match");
+        assert['deepEqual'](getThingyFields(new gotcake.proto.typed.UnpackedThingy().decode(packedSource)), expected,
+                "Typed arrays must encode the same values as plain arrays");
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([fromUnpacked.encode().toArrayBuffer()]),
+                gotcake.closure.test.extractArrays_([packedSource]), "Unpacked values must encode packed");
+
+        // values that arrive in both forms are kept in the order they arrive in
+        var mixed = new gotcake.proto.Buffer(1);
+        mixed.writeRawBytes(new Uint8Array(unpackedSource), 0, unpackedSource.byteLength);
+        mixed.writeRawBytes(new Uint8Array(packedSource), 0, packedSource.byteLength);
+        mixed.writeRawBytes(new Uint8Array(unpackedSource), 0, unpackedSource.byteLength);
+        var merged = new gotcake.proto.typed.UnpackedThingy();
+        for (var i = 0; i < 3; ++i) {
+            merged.decode(unpackedSource);
+        }
+        assert['deepEqual'](getThingyFields(new gotcake.proto.typed.TypedThingy().decode(mixed.toArrayBuffer())),
+                getThingyFields(merged), "Packed and unpacked values must be merged in order");
+
+        // a typed array set by the caller is copied before values are appended to it
+        var backing = new Int32Array([1, 2, 99]);
+        var appended = new gotcake.proto.typed.TypedThingy();
+        appended.int32 = backing.subarray(0, 2);
+        appended.decode(unpackedSource);
+        assert['strictEqual'](backing[2], 99, "Appending must not write past the end of a caller's typed array");
+        assert['deepEqual'](Array.prototype.slice.call(appended.int32, 0, 3), [1, 2, signedInts[0]],
+                "Appended values must follow the existing values");
+
+        var many = setThingyFields(new gotcake.proto.typed.UnpackedThingy(), 5000);
+        var decodedMany = new gotcake.proto.typed.TypedThingy().decode(many.encode().toArrayBuffer());
+        assert['deepEqual'](getThingyFields(decodedMany), getThingyFields(many), "Many unpacked values must match");
+        decodedMany.clear();
+        assert['strictEqual'](decodedMany.int32.length, 0, "Clearing must empty typed arrays");
+        decodedMany.decode(unpackedSource);
+        assert['deepEqual'](getThingyFields(decodedMany), expected, "A cleared message must decode only new values");
+    });
+
+    // test encoding
+
+    var stuff = new gotcake.proto.Stuff();
+    stuff.setOwner(strings1[2]);
+    stuff.setContainment(new gotcake.proto.Stuff.Containment());
+    stuff.containment.setId(-75);
+    stuff.containment.setType(gotcake.proto.ContainmentType.CRATE);
+    stuff.containment.setVolume(0.5);
+    for (var i = 0; i < strings1.length; ++i) {
+        var thing = new gotcake.proto.Thing();
+        thing.setName(strings1[i]);
+        thing.setKind(gotcake.proto.Thing.Kind.TWO);
+        stuff.things.push(thing);
+    }
+    gotcake.closure.test.stuffEchoTest("encode nested messages", stuff, function(assert, msg, stuff) {
+        // encoding cached the size of every message of stuff, so the decoded messages need theirs to compare equal
+        msg.getSerializedSize();
+        assert['equal'](msg.owner, stuff.owner, "Owner must match");
+        assert['deepEqual'](msg.containment, stuff.containment, "Containment must match");
+        assert['deepEqual'](msg.things, stuff.things, "All things must match");
+    });
+    gotcake.closure.test.stuffEchoTest("record field presence", stuff, function(assert, msg) {
+        assert['ok'](msg.hasOwner() && msg.hasContainment(), "Decoded fields must be present");
+        assert['ok'](msg.isInitialized(), "The required containment must be present");
+        msg.clearContainment();
+        assert['ok'](!msg.hasContainment() && msg.containment === null, "The containment must be cleared");
+        assert['ok'](!msg.isInitialized(), "The required containment must be missing");
+        assert['ok'](msg.hasOwner(), "The owner must still be present");
+    });
+    var assigned = new gotcake.proto.Stuff();
+    assigned.owner = strings1[2];
+    assigned.containment = new gotcake.proto.Stuff.Containment();
+    assigned.containment.id = -75;
+    assigned.containment.type = gotcake.proto.ContainmentType.CRATE;
+    assigned.containment.volume = 0.5;
+    var assignedThing = new gotcake.proto.Thing();
+    assignedThing.name = strings1[0];
+    assignedThing.kind = gotcake.proto.Thing.Kind.TWO;
+    assigned.things.push(assignedThing);
+    gotcake.closure.test.stuffEchoTest("encode fields set by assignment", assigned, function(assert, msg, assigned) {
+        assert['ok'](assigned.isInitialized() && assigned.containment.isInitialized() && assignedThing.isInitialized(),
+                "Required fields set by assignment must be present");
+        assert['ok'](assigned.hasOwner() && assigned.hasContainment(), "Fields set by assignment must be present");
+        assert['equal'](msg.owner, assigned.owner, "Owner must match");
+        assert['equal'](msg.containment.id, -75, "Containment id must match");
+        assert['equal'](msg.containment.type, gotcake.proto.ContainmentType.CRATE, "Containment type must match");
+        assert['equal'](msg.containment.volume, 0.5, "Containment volume must match");
+        assert['equal'](msg.things[0].name, strings1[0], "Thing name must match");
+        assert['equal'](msg.things[0].kind, gotcake.proto.Thing.Kind.TWO, "Thing kind must match");
+    });
+    gotcake.closure.test.stuffEchoTest("decode into a reused message", stuff, function(assert, msg, stuff) {
+        var things = msg.things;
+        var containment = msg.containment;
+        msg.decodeInto(stuff.encode().toArrayBuffer());
+        assert['strictEqual'](msg.things, things, "The things array must be reused");
+        assert['strictEqual'](msg.containment, containment, "The containment must be reused");
+        msg.getSerializedSize();
+        assert['deepEqual'](msg.containment, stuff.containment, "Containment must match");
+        assert['deepEqual'](msg.things, stuff.things, "All things must match");
+    });
+    gotcake.closure.test.stuffEchoTest("decode fields out of order", stuff, function(assert, msg, stuff) {
+        // the fields are written in the opposite order to the encoder, so none of them are where they are expected
+        msg.getSerializedSize();
+        var buffer = new gotcake.proto.Buffer(1);
+        buffer.writeVarint32(26); // containment, number 3
+        msg.containment.encode(buffer, true);
+        for (var i = msg.things.length - 1; i >= 0; --i) {
+            buffer.writeVarint32(18); // things, number 2
+            msg.things[i].encode(buffer, true);
+        }
+        buffer.writeVarint32(10); // owner, number 1
+        buffer.writeVString(msg.owner);
+        var reordered = new gotcake.proto.Stuff().decode(buffer.toArrayBuffer());
+        assert['strictEqual'](reordered.owner, stuff.owner, "Owner must match");
+        assert['strictEqual'](reordered.containment.id, stuff.containment.id, "Containment must match");
+        assert['strictEqual'](reordered.things.length, stuff.things.length, "All things must be decoded");
+        for (var j = 0; j < stuff.things.length; ++j) {
+            var thing = reordered.things[stuff.things.length - 1 - j];
+            assert['strictEqual'](thing.name, stuff.things[j].name, "Thing names must match");
+            assert['strictEqual'](thing.kind, stuff.things[j].kind, "Thing kinds must match");
+        }
+    });
+
+    // test unknown fields
+
+    QUnit.test("pass unknown fields through", function(assert) {
+        var newer = new gotcake.proto.passthrough.GadgetV2();
+        newer.setName(strings1[2]);
+        newer.setSerial(signedLongs[4]);
+        newer.setChecksum(usignedInts[1]);
+        newer.setWeight(float64s[3]);
+        newer.setFirmware(new Uint8Array(bytes1[0]).buffer);
+        newer.readings = signedInts.slice();
+        newer.setVendor(strings1[5]);
+        var part = new gotcake.proto.passthrough.GadgetV2();
+        part.setName(strings1[0]);
+        part.setSerial(signedLongs[5]);
+        newer.parts.push(part);
+        var source = newer.encode().toArrayBuffer();
+
+        var older = new gotcake.proto.passthrough.Gadget().decode(source);
+        assert['strictEqual'](older.name, newer.name, "Known fields must be decoded");
+        assert['strictEqual'](older.parts[0].name, part.name, "Known fields of nested messages must be decoded");
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([older.encode().toArrayBuffer()]),
+                gotcake.closure.test.extractArrays_([source]), "Unknown fields must be encoded again verbatim");
+
+        older.setName(strings1[1]);
+        var updated = new gotcake.proto.passthrough.GadgetV2().decode(older.encode().toArrayBuffer());
+        assert['strictEqual'](updated.name, strings1[1], "Changed fields must be encoded");
+        assert['strictEqual'](updated.serial, newer.serial, "Unknown varint fields must be kept");
+        assert['strictEqual'](updated.checksum, newer.checksum, "Unknown fixed32 fields must be kept");
+        assert['strictEqual'](updated.weight, newer.weight, "Unknown fixed64 fields must be kept");
+        assert['deepEqual'](updated.readings, newer.readings, "Unknown packed fields must be kept");
+        assert['strictEqual'](updated.vendor, newer.vendor, "Unknown fields with long tags must be kept");
+        assert['strictEqual'](updated.parts[0].serial, part.serial, "Unknown fields of nested messages must be kept");
+
+        older.clear();
+        assert['strictEqual'](older.getSerializedSize(), 0, "Clearing must drop unknown fields");
+    });
+
+    // test field masks
+
+    QUnit.test("decode fields selected by a mask", function(assert) {
+        var profile = new gotcake.proto.profile.Profile();
+        profile.setId(signedLongs[4]);
+        profile.setName(strings1[2]);
+        profile.setEmail(strings1[3]);
+        var address = new gotcake.proto.profile.Address();
+        address.setCity(strings1[0]);
+        address.setCountry(strings1[1]);
+        profile.setAddress(address);
+        for (var i = 0; i < 3; ++i) {
+            var contact = new gotcake.proto.profile.Contact();
+            contact.setKind(strings1[i]);
+            contact.setValue(strings1[i + 3]);
+            contact.setVerified(i % 2 === 0);
+            profile.contacts.push(contact);
+        }
+        profile.scores = signedInts.slice();
+        profile.setAvatar(new Uint8Array(bytes1[0]).buffer);
+        profile.setRating(float64s[3]);
+        profile.setDetail1(strings1[4]);
+        profile.setDetail39(float32s[2]);
+        var source = profile.encode().toArrayBuffer();
+
+        var byNumber = new gotcake.proto.profile.Profile().decodeMasked(source, new gotcake.proto.FieldMask([2, 6, 48]));
+        assert['strictEqual'](byNumber.name, profile.name, "Selected fields must be decoded");
+        assert['deepEqual'](byNumber.scores, profile.scores, "Selected packed fields must be decoded");
+        assert['strictEqual'](byNumber.detail39, profile.detail39, "Selected fields past the first word must be decoded");
+        assert['ok'](!byNumber.hasId() && !byNumber.hasEmail() && !byNumber.hasAddress() && !byNumber.hasAvatar() &&
+                !byNumber.hasRating() && !byNumber.hasDetail1(), "Other fields must be skipped");
+        assert['strictEqual'](byNumber.contacts.length, 0, "Other repeated fields must be skipped");
+
+        var mask = gotcake.proto.FieldMask.fromPaths(gotcake.proto.profile.Profile.getMaskField,
+                ['email', 'address.city', 'contacts.value']);
+        var byPath = new gotcake.proto.profile.Profile().decodeMasked(source, mask);
+        assert['strictEqual'](byPath.email, profile.email, "Fields selected by path must be decoded");
+        assert['ok'](!byPath.hasName() && !byPath.hasId(), "Fields not in a path must be skipped");
+        assert['strictEqual'](byPath.address.city, address.city, "Nested masks must select fields of sub-messages");
+        assert['ok'](!byPath.address.hasCountry(), "Nested masks must skip the other fields of sub-messages");
+        assert['strictEqual'](byPath.contacts.length, profile.contacts.length, "Every repeated sub-message must be decoded");
+        for (var j = 0; j < profile.contacts.length; ++j) {
+            assert['strictEqual'](byPath.contacts[j].value, profile.contacts[j].value, "Nested masks must apply to each sub-message");
+            assert['ok'](!byPath.contacts[j].hasKind() && !byPath.contacts[j].hasVerified(), "Nested masks must apply to each sub-message");
+        }
+
+        var whole = gotcake.proto.FieldMask.fromPaths(gotcake.proto.profile.Profile.getMaskField, ['address.city', 'address']);
+        assert['strictEqual'](new gotcake.proto.profile.Profile().decodeMasked(source, whole).address.country, address.country,
+                "A path to a message field must select the whole sub-message");
+
+        var all = new gotcake.proto.profile.Profile().decodeMasked(source, null);
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([all.encode().toArrayBuffer()]),
+                gotcake.closure.test.extractArrays_([source]), "A null mask must decode every field");
+
+        assert['throws'](function() {
+            gotcake.proto.FieldMask.fromPaths(gotcake.proto.profile.Profile.getMaskField, ['address.planet']);
+        }, "Unknown fields in paths must be rejected");
+    });
+
+    // test optimize_for
+
+    QUnit.test("optimize messages for speed, code size, decoding or encoding", function(assert) {
+        var event = new gotcake.proto.optimize.Event();
+        event.setTimestamp(signedLongs[4]);
+        event.setKind(strings1[2]);
+        event.values = signedInts.slice();
+        for (var i = 0; i < 3; ++i) {
+            var label = new gotcake.proto.optimize.Label();
+            label.setText(strings1[i]);
+            label.setColor(usignedInts[i]);
+            event.labels.push(label);
+        }
+        var source = event.encode().toArrayBuffer();
+        var compact = new gotcake.proto.optimize.CompactEvent().decode(source);
+        assert['strictEqual'](compact.kind, event.kind, "Compact messages must decode what fast messages encode");
+        assert['deepEqual'](compact.values, event.values, "Compact messages must decode packed fields");
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([compact.encode().toArrayBuffer()]),
+                gotcake.closure.test.extractArrays_([source]), "Compact messages must encode what they decode");
+        var decoded = new gotcake.proto.optimize.Event().decode(compact.encode().toArrayBuffer());
+        assert['strictEqual'](decoded.timestamp, event.timestamp, "Fast messages must decode what compact messages encode");
+        assert['strictEqual'](decoded.labels[2].text, event.labels[2].text, "Fast messages must decode compact sub-messages");
+
+        var query = new gotcake.proto.optimize.Query();
+        query.setText(strings1[3]);
+        query.setLimit(usignedInts[3]);
+        query.labels = event.labels;
+        var echo = new gotcake.proto.optimize.QueryEcho().decode(query.encode().toArrayBuffer());
+        assert['strictEqual'](echo.text, query.text, "Decode-only messages must decode what encode-only messages encode");
+        assert['strictEqual'](echo.limit, query.limit, "Decode-only messages must decode what encode-only messages encode");
+        assert['strictEqual'](echo.labels.length, query.labels.length, "Decode-only messages must decode their sub-messages");
+        assert['throws'](function() {
+            new gotcake.proto.optimize.Query().decode(source);
+        }, "Encode-only messages must not decode");
+        assert['throws'](function() {
+            echo.encode();
+        }, "Decode-only messages must not encode");
+    });
+
+    // test inline varints
+
+    QUnit.test("decode inline varints", function(assert) {
+        // values that take 1, 2, 3, 4 and 5 bytes, and negative values that take 10 bytes
+        var ints = [0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, 2147483647, -1, -75,
+                -2147483648];
+        var uints = [0, 127, 128, 16384, 2097152, 268435456, 2147483648, 4294967295];
+        var sints = [0, -1, 1, -64, 64, -65, 8191, -8192, 2147483647, -2147483648];
+        var varints = new gotcake.proto.varints.Varints();
+        varints.int32 = ints.slice();
+        varints.sint32 = sints.slice();
+        varints.uint32 = uints.slice();
+        varints.packedInt32 = ints.slice();
+        varints.packedSint32 = sints.slice();
+        var nested = new gotcake.proto.varints.Varints();
+        nested.int32 = ints.slice();
+        nested.setFar(300);
+        varints.setNested(nested);
+        varints.setFar(4294967295);
+        var source = varints.encode().toArrayBuffer();
+
+        var decoded = new gotcake.proto.varints.Varints().decode(source);
+        assert['deepEqual'](decoded.int32, ints, "All int32 values must match");
+        assert['deepEqual'](decoded.sint32, sints, "All sint32 values must match");
+        assert['deepEqual'](decoded.uint32, uints, "All uint32 values must match");
+        assert['deepEqual'](decoded.packedInt32, ints, "All packed int32 values must match");
+        assert['deepEqual'](decoded.packedSint32, sints, "All packed sint32 values must match");
+        assert['deepEqual'](decoded.nested.int32, ints, "Nested values must match");
+        assert['strictEqual'](decoded.nested.far, 300, "Fields with long tags must match");
+        assert['strictEqual'](decoded.far, 4294967295, "Fields with long tags must match");
+
+        var negative = new gotcake.proto.varints.Varints();
+        negative.int32.push(-1);
+        assert['strictEqual'](negative.getSerializedSize(), 11, "Negative int32 values must take 10 bytes");
+        var negativeSource = negative.encode().toArrayBuffer();
+        assert['deepEqual'](new gotcake.proto.varints.Varints().decode(negativeSource).int32, [-1],
+                "Negative int32 values must be decoded from 10 bytes");
+
+        var truncated = [negativeSource.slice(0, 6), source.slice(0, source.byteLength - 1), negativeSource.slice(0, 1)];
+        for (var i = 0; i < truncated.length; ++i) {
+            assert['throws'](function() {
+                new gotcake.proto.varints.Varints().decode(truncated[i]);
+            }, "Truncated varints must throw");
+        }
+        var truncatedTag = new Uint8Array([0x80, 0x80]).buffer;
+        assert['throws'](function() {
+            new gotcake.proto.varints.Varints().decode(truncatedTag);
+        }, "Truncated tags must throw");
+    });
+
+    // test lazy fields
+
+    QUnit.test("decode message fields lazily", function(assert) {
+        var newPart = function(number, text) {
+            var part = new gotcake.proto.lazy.Part();
+            part.setNumber(number);
+            part.setText(text);
+            return part;
+        };
+        var partNumbers = function(parts) {
+            var numbers = [];
+            for (var i = 0; i < parts.length; ++i) {
+                numbers.push(parts[i].number);
+            }
+            return numbers;
+        };
+        var document = new gotcake.proto.lazy.Document();
+        document.setHeader(newPart(1, strings1[0]));
+        document.setParts([newPart(2, strings1[1]), newPart(3, strings1[2])]);
+        document.setFooter(newPart(4, strings1[5]));
+        document.setRevision(99);
+        var source = document.encode().toArrayBuffer();
+        var sourceBytes = gotcake.closure.test.extractArrays_([source]);
+
+        var decoded = new gotcake.proto.lazy.Document().decode(source);
+        assert['strictEqual'](decoded.revision, 99, "Other fields must be decoded");
+        assert['strictEqual'](decoded.header, null, "Lazy fields must not be decoded before their getters are called");
+        assert['ok'](decoded.hasHeader() && decoded.isInitialized(), "Lazy fields must be present before they are decoded");
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([decoded.encode().toArrayBuffer()]), sourceBytes,
+                "Undecoded lazy fields must encode the same bytes");
+        assert['strictEqual'](decoded.getHeader().text, strings1[0], "Getters must decode lazy fields");
+        assert['strictEqual'](decoded.getParts()[1].text, strings1[2], "Getters must decode repeated lazy fields");
+        assert['strictEqual'](decoded.getFooter().number, 4, "Getters must decode required lazy fields");
+        assert['strictEqual'](decoded.getHeader(), decoded.getHeader(), "Lazy fields must only be decoded once");
+        assert['deepEqual'](gotcake.closure.test.extractArrays_([decoded.encode().toArrayBuffer()]), sourceBytes,
+                "Decoded lazy fields must encode the same bytes");
+
+        var changed = new gotcake.proto.lazy.Document().decode(source);
+        changed.getHeader().setNumber(7);
+        var reread = new gotcake.proto.lazy.Document().decode(changed.encode().toArrayBuffer());
+        assert['strictEqual'](reread.getHeader().number, 7, "Changes to decoded lazy fields must be encoded");
+        assert['deepEqual'](partNumbers(reread.getParts()), [2, 3], "Undecoded lazy fields must be encoded with them");
+
+        var merged = new gotcake.proto.lazy.Document().decode(source);
+        merged.decode(new gotcake.proto.lazy.Document().decode(source).encode().toArrayBuffer());
+        assert['deepEqual'](partNumbers(merged.getParts()), [2, 3, 2, 3],
+                "Repeated lazy fields must be merged from each buffer in order");
+
+        var delimited = new gotcake.proto.Buffer(4);
+        delimited.writeVString(strings1[1]);
+        document.encode(delimited, true);
+        var delimitedSource = new gotcake.proto.Buffer(delimited.toArrayBuffer());
+        delimitedSource.readVString();
+        var nested = new gotcake.proto.lazy.Document().decode(delimitedSource, true);
+        assert['strictEqual'](nested.getFooter().text, strings1[5], "Lazy fields must be decoded from inside a larger buffer");
+
+        var cleared = new gotcake.proto.lazy.Document().decode(source);
+        cleared.clear();
+        assert['ok'](!cleared.hasHeader() && cleared.getParts().length === 0 && !cleared.isInitialized(),
+                "Clearing must drop undecoded lazy fields");
+        assert['strictEqual'](cleared.getSerializedSize(), 0, "Cleared lazy fields must not be encoded");
+        cleared.setFooter(newPart(5, strings1[4]));
+        cleared.decodeInto(source);
+        assert['strictEqual'](cleared.getFooter().number, 4, "decodeInto must replace lazy fields");
+        assert['deepEqual'](partNumbers(cleared.getParts()), [2, 3], "decodeInto must not keep earlier lazy values");
+
+        var withoutFooter = new gotcake.proto.lazy.Document().decode(source);
+        withoutFooter.clearFooter();
+        assert['ok'](!withoutFooter.hasFooter() && !withoutFooter.isInitialized(), "Lazy fields must be cleared");
+        assert['ok'](!new gotcake.proto.lazy.Document().decode(withoutFooter.encode().toArrayBuffer()).hasFooter(),
+                "Cleared lazy fields must not be encoded");
+    });
+};